@@ -0,0 +1,112 @@
+package communication;
+
+import java.io.InterruptedIOException;
+
+/** Token bucket limiting the bytes per second sent to the remote machines. A limiter can have a parent, e.g. one
+ *  limiter per machine sharing a global one: bytes are taken from both. Transfers that have already sent many bytes
+ *  are bulk: while other transfers wait for tokens, bulk ones give way to them, but never for long, so big files
+ *  still make progress.
+ * @author marco
+ *
+ */
+public class BandwidthLimiter {
+	//Bulk transfers give way to the others at most this long (ms) each time
+	private static final long MAX_BULK_WAIT = 1000;
+	//Bytes taken from the bucket at a time
+	static final int CHUNK = 16 * 1024;
+
+	private long rate;
+	private long capacity;
+	private long bulkThreshold;
+	private BandwidthLimiter parent;
+
+	private double tokens;
+	private long refilled;
+	//Non bulk transfers waiting for tokens
+	private int waiting = 0;
+	private long transferred = 0;
+
+	/**
+	 * @param rate Bytes per second, 0 or less for no limit
+	 * @param bulkThreshold Bytes after which a transfer is bulk
+	 * @param parent Limiter bytes are also taken from, null if none
+	 */
+	public BandwidthLimiter(long rate, long bulkThreshold, BandwidthLimiter parent){
+		this.rate = rate;
+		//One second of burst
+		this.capacity = Math.max(rate, CHUNK);
+		this.bulkThreshold = bulkThreshold;
+		this.parent = parent;
+		this.tokens = this.capacity;
+		this.refilled = System.nanoTime();
+	}
+
+	/** Waits until some bytes can be sent
+	 * @param bytes Number of bytes, at most {@link #CHUNK}
+	 * @param bulk true if the bytes belong to a bulk transfer
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	public void acquire(int bytes, boolean bulk) throws InterruptedIOException{
+		this.take(bytes, bulk);
+		if(this.parent != null)
+			this.parent.take(bytes, bulk);
+	}
+
+	private synchronized void take(int bytes, boolean bulk) throws InterruptedIOException{
+		if(this.rate <= 0){
+			this.transferred += bytes;
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		if(!bulk)
+			this.waiting++;
+		try {
+			while(true){
+				this.refill();
+				boolean giveWay = bulk && this.waiting > 0 && System.currentTimeMillis() - start < MAX_BULK_WAIT;
+				if(!giveWay && this.tokens >= bytes){
+					this.tokens -= bytes;
+					this.transferred += bytes;
+					return;
+				}
+				long wait = giveWay ? 10 : (long) Math.ceil((bytes - this.tokens) * 1000 / this.rate);
+				this.wait(Math.max(1, wait));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+		} finally {
+			if(!bulk)
+				this.waiting--;
+			//Bulk transfers giving way may go now
+			this.notifyAll();
+		}
+	}
+
+	private void refill(){
+		long now = System.nanoTime();
+		this.tokens = Math.min(this.capacity, this.tokens + (now - this.refilled) * this.rate / 1e9);
+		this.refilled = now;
+	}
+
+	/**
+	 * @param sent Bytes already sent by a transfer
+	 * @return true if the transfer is bulk
+	 */
+	public boolean isBulk(long sent){
+		return sent >= this.bulkThreshold;
+	}
+
+	/**
+	 * @return bytes sent through this limiter
+	 */
+	public synchronized long getTransferred(){
+		return this.transferred;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return (this.rate <= 0 ? "unlimited" : this.rate / 1024 + " KB/s") + ", " + this.transferred / 1024 + " KB sent";
+	}
+}
@@ -0,0 +1,395 @@
+package communication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/** Rsync-style block delta between a local file and its remote copy. The remote machine only needs standard tools:
+ *  it reports a weak checksum (the POSIX cksum CRC) and a strong one (md5) of every block of its copy. The local file
+ *  is scanned with a rolling version of the weak checksum, so blocks are found at any offset, and the strong checksum
+ *  confirms every candidate. Matching blocks are copied remotely, everything else is sent as literal data, then the
+ *  new file is rebuilt remotely with dd and replaces the old copy.
+ * @author marco
+ *
+ */
+public class BlockDelta {
+	/** Size of a block */
+	public static final int BLOCK_SIZE = 64 * 1024;
+	/** Files smaller than this are always sent whole */
+	public static final long MIN_FILE_SIZE = 1024 * 1024;
+	/** Files bigger than this can't be mapped in memory and are always sent whole */
+	public static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+	/** The delta is used only if the literal data is less than this fraction of the file */
+	private static final double MAX_LITERAL_RATIO = 0.75;
+	private static final String SEPARATOR = "--";
+
+	//CRC table of the cksum polynomial, and contribution of a byte leaving a window of BLOCK_SIZE bytes
+	private static final int[] CRC_TABLE = crcTable();
+	private static int[] outTable;
+
+	private Path source;
+	private long size;
+	//Sequence of runs: copies of remote blocks and literal data
+	private ArrayList<Run> runs = new ArrayList<Run>();
+	private long literalBytes = 0;
+	//md5 of the whole local file, checked on the rebuilt remote file
+	private String md5;
+
+	private BlockDelta(Path source, long size){
+		this.source = source;
+		this.size = size;
+	}
+
+	/** Remote command printing the weak checksums of every block of a file, then the strong ones. Fails if the file doesn't exist.
+	 * @param remoteFile Absolute path of the remote file
+	 */
+	public static String signatureCommand(String remoteFile){
+		String file = SshClient.quote(remoteFile);
+		return "test -f " + file
+				+ " && split -b " + BLOCK_SIZE + " --filter=cksum - < " + file
+				+ " && echo " + SEPARATOR
+				+ " && split -b " + BLOCK_SIZE + " --filter=md5sum - < " + file;
+	}
+
+	/**
+	 * @return remote file the literal data is uploaded to
+	 */
+	public static String deltaFile(String remoteFile){
+		return remoteFile + ".dingo-delta";
+	}
+
+	/**
+	 * @return remote file the patch script is uploaded to
+	 */
+	public static String scriptFile(String remoteFile){
+		return remoteFile + ".dingo-patch";
+	}
+
+	/** Compares the local file with the signatures of the remote copy
+	 * @param source Local file
+	 * @param signatures Output of signatureCommand
+	 * @return the delta to apply to the remote copy
+	 * @throws IOException if the local file can't be read or the signatures are not valid
+	 */
+	public static BlockDelta compute(Path source, String signatures) throws IOException{
+		SignatureTable remote = new SignatureTable(signatures);
+
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		try(RandomAccessFile file = new RandomAccessFile(source.toFile(), "r")){
+			BlockDelta delta = new BlockDelta(source, file.length());
+			if(delta.size > MAX_FILE_SIZE)
+				throw new IOException("File too big for a delta: " + source);
+
+			MappedByteBuffer data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, delta.size);
+			int size = (int) delta.size;
+			int[] out = outTable();
+			byte[] window = new byte[BLOCK_SIZE];
+
+			int pos = 0;
+			int literalStart = 0;
+			int crc = size >= BLOCK_SIZE ? crcRegister(data, 0) : 0;
+			while(pos + BLOCK_SIZE <= size){
+				int match = -1;
+				int candidate = remote.find(crcFinish(crc));
+				if(candidate >= 0){
+					//Weak checksum hit, confirm it with the strong one
+					data.position(pos);
+					data.get(window);
+					byte[] strong = md5.digest(window);
+					for(; candidate >= 0 && match < 0; candidate = remote.next(candidate)){
+						if(Arrays.equals(strong, remote.strong(candidate)))
+							match = remote.block(candidate);
+					}
+				}
+
+				if(match >= 0){
+					delta.literal(literalStart, pos - literalStart);
+					delta.copy(match);
+					pos += BLOCK_SIZE;
+					literalStart = pos;
+					if(pos + BLOCK_SIZE <= size)
+						crc = crcRegister(data, pos);
+				} else {
+					if(pos + BLOCK_SIZE == size)
+						break;
+					//Roll the window by one byte
+					int leaving = data.get(pos) & 0xFF;
+					int entering = data.get(pos + BLOCK_SIZE) & 0xFF;
+					crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ entering) & 0xFF] ^ out[leaving];
+					pos++;
+				}
+			}
+			delta.literal(literalStart, size - literalStart);
+
+			data.position(0);
+			md5.update(data);
+			StringBuilder hex = new StringBuilder();
+			for(byte b: md5.digest()){
+				hex.append(String.format("%02x", b));
+			}
+			delta.md5 = hex.toString();
+			return delta;
+		}
+	}
+
+	private void copy(int remoteBlock){
+		Run last = this.runs.isEmpty() ? null : this.runs.get(this.runs.size() - 1);
+		if(last != null && !last.literal && last.start + last.length == remoteBlock){
+			last.length++;
+		} else {
+			this.runs.add(new Run(false, remoteBlock, 1));
+		}
+	}
+
+	private void literal(long offset, long length){
+		if(length <= 0)
+			return;
+		Run last = this.runs.isEmpty() ? null : this.runs.get(this.runs.size() - 1);
+		if(last != null && last.literal && last.start + last.length == offset){
+			last.length += length;
+		} else {
+			this.runs.add(new Run(true, offset, length));
+		}
+		this.literalBytes += length;
+	}
+
+	/**
+	 * @return true if sending the delta is cheaper than sending the whole file
+	 */
+	public boolean isWorthIt(){
+		return this.literalBytes < this.size * MAX_LITERAL_RATIO;
+	}
+
+	/**
+	 * @return number of bytes that have to be sent as literal data
+	 */
+	public long getLiteralBytes(){
+		return this.literalBytes;
+	}
+
+	/** Writes the literal data, in the order the patch script reads it
+	 * @param out Stream to the remote delta file
+	 * @throws IOException
+	 */
+	public void writeLiterals(OutputStream out) throws IOException{
+		try(RandomAccessFile file = new RandomAccessFile(this.source.toFile(), "r")){
+			byte[] buffer = new byte[BLOCK_SIZE];
+			for(Run run: this.runs){
+				if(!run.literal)
+					continue;
+				file.seek(run.start);
+				long remaining = run.length;
+				while(remaining > 0){
+					int length = (int) Math.min(buffer.length, remaining);
+					file.readFully(buffer, 0, length);
+					out.write(buffer, 0, length);
+					remaining -= length;
+				}
+			}
+		}
+	}
+
+	/** Shell script rebuilding the remote file from its old copy and the literal data, then removing the temporary files
+	 * @param remoteFile Absolute path of the remote file
+	 */
+	public String patchScript(String remoteFile){
+		String target = SshClient.quote(remoteFile);
+		String delta = SshClient.quote(deltaFile(remoteFile));
+		String rebuilt = SshClient.quote(remoteFile + ".dingo-new");
+
+		StringBuilder script = new StringBuilder();
+		//Temporary files are removed whatever happens
+		script.append("cleanup() { rm -f ").append(delta).append(" ").append(rebuilt).append(" ")
+			.append(SshClient.quote(scriptFile(remoteFile))).append("; }\n");
+		script.append("trap cleanup EXIT\n");
+		script.append("{\n");
+		//Literal data is stored one run after the other in the delta file
+		long literalOffset = 0;
+		for(Run run: this.runs){
+			if(run.literal){
+				script.append("dd if=").append(delta).append(" bs=").append(BLOCK_SIZE).append(" iflag=skip_bytes,count_bytes skip=")
+					.append(literalOffset).append(" count=").append(run.length).append(" 2>/dev/null || exit 1\n");
+				literalOffset += run.length;
+			} else {
+				script.append("dd if=").append(target).append(" bs=").append(BLOCK_SIZE).append(" skip=").append(run.start)
+					.append(" count=").append(run.length).append(" 2>/dev/null || exit 1\n");
+			}
+		}
+		script.append("} > ").append(rebuilt).append(" || exit 1\n");
+		script.append("chmod --reference=").append(target).append(" ").append(rebuilt).append(" 2>/dev/null\n");
+		script.append("test `wc -c < ").append(rebuilt).append("` -eq ").append(this.size).append(" || exit 1\n");
+		//The remote copy may have changed since its signatures were read
+		script.append("test `md5sum < ").append(rebuilt).append(" | cut -c1-32` = ").append(this.md5).append(" || exit 1\n");
+		script.append("mv -f ").append(rebuilt).append(" ").append(target).append(" || exit 1\n");
+		return script.toString();
+	}
+
+	private static int[] crcTable(){
+		int[] table = new int[256];
+		for(int i = 0; i < 256; i++){
+			int crc = i << 24;
+			for(int bit = 0; bit < 8; bit++){
+				crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+			}
+			table[i] = crc;
+		}
+		return table;
+	}
+
+	/**
+	 * @return for every byte value, its contribution to the CRC register once BLOCK_SIZE more bytes have been processed
+	 */
+	private static synchronized int[] outTable(){
+		if(outTable == null){
+			int[] table = new int[256];
+			for(int b = 0; b < 256; b++){
+				int crc = CRC_TABLE[b];
+				for(int i = 0; i < BLOCK_SIZE; i++){
+					crc = (crc << 8) ^ CRC_TABLE[(crc >>> 24) & 0xFF];
+				}
+				table[b] = crc;
+			}
+			outTable = table;
+		}
+		return outTable;
+	}
+
+	/**
+	 * @return CRC register (before the length and the final inversion) of the block starting at offset
+	 */
+	private static int crcRegister(MappedByteBuffer data, int offset){
+		int crc = 0;
+		for(int i = offset; i < offset + BLOCK_SIZE; i++){
+			crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data.get(i)) & 0xFF];
+		}
+		return crc;
+	}
+
+	/**
+	 * @return the value printed by cksum for a block whose CRC register is crc
+	 */
+	private static int crcFinish(int crc){
+		for(long length = BLOCK_SIZE; length != 0; length >>>= 8){
+			crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ (int) length) & 0xFF];
+		}
+		return ~crc;
+	}
+
+	/**
+	 * Run of data of the new file: a copy of consecutive remote blocks, or literal data of the local file
+	 */
+	private static class Run{
+		boolean literal;
+		//First remote block for copies, offset in the local file for literals
+		long start;
+		//Number of blocks for copies, number of bytes for literals
+		long length;
+
+		Run(boolean literal, long start, long length){
+			this.literal = literal;
+			this.start = start;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Signatures of the full blocks of the remote copy, indexed by weak checksum
+	 */
+	private static class SignatureTable{
+		private int[] weak;
+		private byte[][] strong;
+		private int[] blocks;
+		//Open hash table on the weak checksum, with chaining among entries
+		private int[] heads;
+		private int[] chain;
+		private int count = 0;
+
+		SignatureTable(String signatures) throws IOException{
+			int separator = signatures.indexOf("\n" + SEPARATOR + "\n");
+			if(separator < 0)
+				throw new IOException("Invalid block signatures");
+			String[] weakLines = signatures.substring(0, separator).trim().split("\n");
+			String[] strongLines = signatures.substring(separator + SEPARATOR.length() + 2).trim().split("\n");
+			if(weakLines.length != strongLines.length)
+				throw new IOException("Invalid block signatures");
+
+			this.weak = new int[weakLines.length];
+			this.strong = new byte[weakLines.length][];
+			this.blocks = new int[weakLines.length];
+			int buckets = Integer.highestOneBit(Math.max(16, weakLines.length * 2));
+			this.heads = new int[buckets];
+			Arrays.fill(this.heads, -1);
+			this.chain = new int[weakLines.length];
+
+			try {
+				for(int i = 0; i < weakLines.length; i++){
+					String[] weakFields = weakLines[i].trim().split("\\s+");
+					if(weakFields.length < 2 || Long.parseLong(weakFields[1]) != BLOCK_SIZE)
+						continue; //Only full blocks can match the rolling window
+					this.weak[this.count] = (int) Long.parseLong(weakFields[0]);
+					this.strong[this.count] = fromHex(strongLines[i].trim().split("\\s+")[0]);
+					this.blocks[this.count] = i;
+					int bucket = this.weak[this.count] & (buckets - 1);
+					this.chain[this.count] = this.heads[bucket];
+					this.heads[bucket] = this.count;
+					this.count++;
+				}
+			} catch (NumberFormatException e) {
+				//e.g. a banner or a warning printed by the remote shell
+				throw new IOException("Invalid block signatures", e);
+			}
+		}
+
+		/**
+		 * @return first entry with the given weak checksum, -1 if none
+		 */
+		int find(int weakSum){
+			int entry = this.heads[weakSum & (this.heads.length - 1)];
+			while(entry >= 0 && this.weak[entry] != weakSum)
+				entry = this.chain[entry];
+			return entry;
+		}
+
+		/**
+		 * @return next entry with the same weak checksum of the given one, -1 if none
+		 */
+		int next(int entry){
+			int weakSum = this.weak[entry];
+			entry = this.chain[entry];
+			while(entry >= 0 && this.weak[entry] != weakSum)
+				entry = this.chain[entry];
+			return entry;
+		}
+
+		byte[] strong(int entry){
+			return this.strong[entry];
+		}
+
+		int block(int entry){
+			return this.blocks[entry];
+		}
+
+		private static byte[] fromHex(String hex) throws IOException{
+			if(hex.length() != 32)
+				throw new IOException("Invalid md5: " + hex);
+			byte[] bytes = new byte[16];
+			for(int i = 0; i < 16; i++){
+				bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+			}
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package communication;
+
+/** Receives the output of a remote command while it runs and its exit status as soon as it terminates.
+ *  Methods are called by the thread of the ssh session, so they should return quickly.
+ * @author marco
+ *
+ */
+public interface CommandListener {
+
+	/** Called every time the command writes on its standard output
+	 * @param data Buffer containing the output, valid only during the call
+	 * @param offset Start of the output in the buffer
+	 * @param length Number of bytes
+	 */
+	public void onOutput(byte[] data, int offset, int length);
+
+	/** Called every time the command writes on its standard error
+	 * @param data Buffer containing the output, valid only during the call
+	 * @param offset Start of the output in the buffer
+	 * @param length Number of bytes
+	 */
+	public void onError(byte[] data, int offset, int length);
+
+	/** Called once, when the command terminates, is cancelled or the connection is lost
+	 * @param exitStatus Exit status of the command, -1 if it is unknown
+	 */
+	public void onExit(int exitStatus);
+
+}
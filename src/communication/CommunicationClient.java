@@ -1,5 +1,6 @@
 package communication;
 
+import java.io.OutputStream;
 import java.nio.file.Path;
 
 /** Interface for a communication client, provides interfaces for methods to operate on a remote machine
@@ -15,6 +16,13 @@ public interface CommunicationClient extends Runnable{
 	 */
 	public boolean sendFile(Path source, String destination);
 	
+	/** Updates a file that already exists on the remote machine, sending only what changed when possible
+	 * @param source Absolute Path of the new version of the file
+	 * @param destination Absolute Path of the remote copy
+	 * @return true if the file has been correctly updated
+	 */
+	public boolean updateFile(Path source, String destination);
+	
 	/** Cancels a file
 	 * @param fileToCancel Absolute Path (with extension) of the file to cancel
 	 * @return true if the file has been correctly cancelled
@@ -40,6 +48,60 @@ public interface CommunicationClient extends Runnable{
 	 */
 	public boolean executeCommand(String command);
 	
+	/** Executes a remote command, killing it if it doesn't terminate in time
+	 * @param command Command to execute
+	 * @param timeout Milliseconds the command is allowed to run, 0 for no limit
+	 * @return true if the command has been executed correctly within the timeout
+	 */
+	public boolean executeCommand(String command, long timeout);
+	
+	/** Executes a remote command, collecting its standard output
+	 * @param command Command to execute
+	 * @param output Where the standard output of the command is written
+	 * @param timeout Milliseconds the command is allowed to run, 0 for no limit
+	 * @return the exit status of the command, -1 if it couldn't be executed or timed out
+	 */
+	public int runCommand(String command, OutputStream output, long timeout);
+	
+	/** Starts a remote command without waiting for it to terminate
+	 * @param command Command to execute
+	 * @param listener Receives the output and the exit status of the command
+	 * @return the running command, null if it couldn't be started
+	 */
+	public RemoteCommand startCommand(String command, CommandListener listener);
+	
+	/** Counts the connections of the client, used to find out when it reconnected after losing the connection
+	 * @return number of times the connection has been established
+	 */
+	public int getConnectionCount();
+	
+	/** Describes the state of the connection, used for status reports
+	 * @return a one-line description of the client
+	 */
+	public String getStatus();
+	
+	/** Executes a remote command, streaming data to its standard input
+	 * @param command Command to execute
+	 * @param source Data for the standard input of the command
+	 * @return true if the command has been executed correctly
+	 */
+	public boolean pipeCommand(String command, StreamSource source);
+	
+	/** Executes a remote command, streaming data to its standard input and collecting its standard output
+	 * @param command Command to execute
+	 * @param source Data for the standard input of the command
+	 * @param output Where the standard output of the command is written
+	 * @return true if the command has been executed correctly
+	 */
+	public boolean pipeCommand(String command, StreamSource source, OutputStream output);
+	
+	/** Extracts a compressed archive in a remote directory without copying the archive on the remote machine
+	 * @param archive Absolute Path of the .tar.gz archive
+	 * @param destinationDir Absolute Path of the remote directory
+	 * @return true if the archive has been correctly extracted
+	 */
+	public boolean deployArchive(Path archive, String destinationDir);
+	
 	/** Shuts down the CommunicationClient, performing the necessary operations in order to properly close the connection
 	 * @return
 	 */
@@ -0,0 +1,328 @@
+package communication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/** Gzip compressed copies of the files sent to the Bolt instances, shared by all the clients of a manager.
+ *  Blobs are kept in memory up to a maximum size, least recently used first out, and are keyed by the hash of their content:
+ *  a file changed once and sent to many machines is compressed only once. Content that doesn't compress well is remembered too,
+ *  so it is not tried again.
+ * @author marco
+ *
+ */
+public class CompressionCache {
+	/** Files smaller than this are sent as they are */
+	public static final long MIN_FILE_SIZE = 8 * 1024;
+	//Size of the sample compressed to guess if the whole file is worth compressing
+	private static final int SAMPLE_SIZE = 64 * 1024;
+	//Compressed size has to be less than this fraction of the original size
+	private static final double MAX_RATIO = 0.9;
+	//Extensions of formats that are already compressed
+	private static final HashSet<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+			"gz", "tgz", "bz2", "xz", "lz", "lzma", "zst", "z", "zip", "jar", "war", "7z", "rar",
+			"png", "jpg", "jpeg", "gif", "webp", "mp3", "ogg", "mp4", "mkv", "avi", "mov", "pdf"));
+	//Stored for content that doesn't compress well
+	private static final byte[] INCOMPRESSIBLE = new byte[0];
+
+	private long capacity;
+	private long used;
+	//Content hash -> compressed content, in access order
+	private LinkedHashMap<String, byte[]> blobs = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	//Local file -> hash of its content, valid while size and modification time don't change
+	private HashMap<Path, FileHash> hashes = new HashMap<Path, FileHash>();
+	//Files being compressed right now, other clients wait for the same result
+	private HashMap<String, FutureTask<Blob>> running = new HashMap<String, FutureTask<Blob>>();
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong skipped = new AtomicLong();
+	private AtomicLong bytesSaved = new AtomicLong();
+
+	/**
+	 * @param capacity Maximum number of compressed bytes kept in memory
+	 */
+	public CompressionCache(long capacity){
+		this.capacity = capacity;
+	}
+
+	/** Returns the compressed content of a file, compressing it if it is not in the cache yet
+	 * @param file Absolute Path of the file
+	 * @return the compressed content, null if the file should be sent as it is
+	 */
+	public Blob get(final Path file){
+		final long size;
+		final long modified;
+		try {
+			size = Files.size(file);
+			modified = Files.getLastModifiedTime(file).toMillis();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		if(size < MIN_FILE_SIZE || size > this.capacity / 4 || size > Integer.MAX_VALUE || isCompressedFormat(file)){
+			this.skipped.incrementAndGet();
+			return null;
+		}
+
+		//Only one client compresses a given version of a file
+		String key = file + "|" + size + "|" + modified;
+		FutureTask<Blob> task;
+		boolean owner = false;
+		synchronized(this){
+			task = this.running.get(key);
+			if(task == null){
+				task = new FutureTask<Blob>(new Callable<Blob>() {
+					public Blob call() throws IOException {
+						return load(file, size, modified);
+					}
+				});
+				this.running.put(key, task);
+				owner = true;
+			}
+		}
+
+		try {
+			if(owner)
+				task.run();
+			else
+				this.hits.incrementAndGet();
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			return null;
+		} finally {
+			if(owner){
+				synchronized(this){
+					this.running.remove(key);
+				}
+			}
+		}
+	}
+
+	/** Finds the compressed content in the cache or compresses the file
+	 */
+	private Blob load(Path file, long size, long modified) throws IOException{
+		String hash = null;
+		synchronized(this){
+			FileHash known = this.hashes.get(file);
+			if(known != null && known.size == size && known.modified == modified)
+				hash = known.hash;
+		}
+		if(hash == null)
+			hash = hash(file);
+
+		byte[] data;
+		synchronized(this){
+			data = this.blobs.get(hash);
+		}
+		if(data != null){
+			this.hits.incrementAndGet();
+		} else {
+			this.misses.incrementAndGet();
+			data = compress(file, size);
+			//Don't keep anything if the file changed in the meantime
+			if(Files.size(file) != size || Files.getLastModifiedTime(file).toMillis() != modified)
+				return data == INCOMPRESSIBLE ? null : new Blob(data, size);
+			this.put(hash, data);
+		}
+
+		synchronized(this){
+			this.hashes.put(file, new FileHash(size, modified, hash));
+		}
+		return data == INCOMPRESSIBLE ? null : new Blob(data, size);
+	}
+
+	private synchronized void put(String hash, byte[] data){
+		if(this.blobs.put(hash, data) == null)
+			this.used += cost(data);
+
+		Iterator<Map.Entry<String, byte[]>> it = this.blobs.entrySet().iterator();
+		while(this.used > this.capacity && it.hasNext()){
+			Map.Entry<String, byte[]> eldest = it.next();
+			this.used -= cost(eldest.getValue());
+			it.remove();
+		}
+		//Hashes pointing to evicted blobs are still valid, they are only dropped when there are too many
+		if(this.hashes.size() > 4 * Math.max(this.blobs.size(), 1024))
+			this.hashes.clear();
+	}
+
+	private static long cost(byte[] data){
+		//Keys and entries take memory too, even for incompressible content
+		return data.length + 128;
+	}
+
+	/** Compresses a whole file, giving up early if a sample of it doesn't compress well
+	 * @return the compressed content or INCOMPRESSIBLE
+	 */
+	private static byte[] compress(Path file, long size) throws IOException{
+		byte[] buffer = new byte[SAMPLE_SIZE];
+		try(InputStream in = Files.newInputStream(file)){
+			int sample = readFully(in, buffer);
+			if(!compressesWell(buffer, sample))
+				return INCOMPRESSIBLE;
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) (size / 2));
+			GZIPOutputStream gzip = new GZIPOutputStream(bytes, SAMPLE_SIZE);
+			gzip.write(buffer, 0, sample);
+			int count;
+			while((count = in.read(buffer)) >= 0){
+				gzip.write(buffer, 0, count);
+			}
+			gzip.close();
+
+			if(bytes.size() > size * MAX_RATIO)
+				return INCOMPRESSIBLE;
+			return bytes.toByteArray();
+		}
+	}
+
+	private static boolean compressesWell(byte[] sample, int length){
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(sample, 0, length);
+			deflater.finish();
+			byte[] out = new byte[length + 64];
+			int compressed = 0;
+			while(!deflater.finished() && compressed < out.length){
+				compressed += deflater.deflate(out, compressed, out.length - compressed);
+			}
+			return compressed <= length * MAX_RATIO;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static int readFully(InputStream in, byte[] buffer) throws IOException{
+		int total = 0;
+		int count;
+		while(total < buffer.length && (count = in.read(buffer, total, buffer.length - total)) >= 0){
+			total += count;
+		}
+		return total;
+	}
+
+	private static String hash(Path file) throws IOException{
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		byte[] buffer = new byte[SAMPLE_SIZE];
+		try(InputStream in = Files.newInputStream(file)){
+			int count;
+			while((count = in.read(buffer)) >= 0){
+				sha.update(buffer, 0, count);
+			}
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for(byte b: sha.digest()){
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private static boolean isCompressedFormat(Path file){
+		String name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		return dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase());
+	}
+
+	/** Records that a compressed blob has been transferred instead of the original file
+	 * @param blob Blob transferred
+	 */
+	public void transferred(Blob blob){
+		this.bytesSaved.addAndGet(blob.getOriginalSize() - blob.getSize());
+	}
+
+	/**
+	 * @return fraction of the compressed files found in the cache, between 0 and 1
+	 */
+	public double getHitRatio(){
+		long hits = this.hits.get();
+		long total = hits + this.misses.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * @return bytes not sent thanks to compression
+	 */
+	public long getBytesSaved(){
+		return this.bytesSaved.get();
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "compression cache [blobs=" + this.blobs.size() + ", used=" + this.used / 1024 + "/" + this.capacity / 1024 + " KB, hits=" + this.hits.get()
+				+ ", misses=" + this.misses.get() + ", hit ratio=" + String.format("%.2f", this.getHitRatio()) + ", skipped=" + this.skipped.get()
+				+ ", bytes saved=" + this.bytesSaved.get() + "]";
+	}
+
+	/**
+	 * Compressed content of a file
+	 */
+	public static class Blob {
+		private byte[] data;
+		private long originalSize;
+
+		Blob(byte[] data, long originalSize){
+			this.data = data;
+			this.originalSize = originalSize;
+		}
+
+		/** Writes the gzip compressed content
+		 * @param out Stream to write to, not closed
+		 * @throws IOException
+		 */
+		public void writeTo(OutputStream out) throws IOException{
+			out.write(this.data);
+			out.flush();
+		}
+
+		public long getSize(){
+			return this.data.length;
+		}
+
+		public long getOriginalSize(){
+			return this.originalSize;
+		}
+	}
+
+	/**
+	 * Hash of a version of a file
+	 */
+	private static class FileHash {
+		long size;
+		long modified;
+		String hash;
+
+		FileHash(long size, long modified, String hash){
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+		}
+	}
+}
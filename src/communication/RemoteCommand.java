@@ -0,0 +1,171 @@
+package communication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/** A command running on a remote machine on its own exec channel. Output is delivered to a CommandListener as soon as
+ *  it arrives, and termination is detected when the session closes the channel, without polling.
+ *  Many commands can run at the same time on the same session.
+ * @author marco
+ *
+ */
+public class RemoteCommand {
+	private String command;
+	private ChannelExec channel;
+	private CommandListener listener;
+	private OutputStream stdin;
+	private CountDownLatch closed = new CountDownLatch(1);
+	private volatile int exitStatus = -1;
+	private volatile boolean cancelled;
+
+	/** Prepares the command, nothing is executed until start is called
+	 * @param session Connected session to run the command on
+	 * @param command Command to execute
+	 * @param listener Receives output and exit status of the command
+	 * @param withInput true if the standard input of the command will be written using getInput
+	 * @throws JSchException if the channel can't be opened
+	 */
+	RemoteCommand(Session session, String command, CommandListener listener, boolean withInput) throws JSchException{
+		this.command = command;
+		this.listener = listener;
+		this.channel = (ChannelExec) session.openChannel("exec");
+		this.channel.setCommand(command + "\n");
+
+		//The session closes the standard output at EOF and the standard error when the channel is closed
+		this.channel.setOutputStream(new ListenerStream(false), false);
+		this.channel.setErrStream(new ListenerStream(true), false);
+		if(withInput){
+			try {
+				this.stdin = this.channel.getOutputStream();
+			} catch (IOException e) {
+				throw new JSchException(e.toString());
+			}
+		} else
+			this.channel.setInputStream(null);
+	}
+
+	/** Starts the command
+	 * @param connectTimeout Milliseconds to wait for the channel to open
+	 * @return true if the command has been started
+	 */
+	boolean start(int connectTimeout){
+		System.out.println("[SSHClient] Executing command: " + this.command);
+		try {
+			this.channel.connect(connectTimeout);
+			return true;
+		} catch (JSchException e) {
+			e.printStackTrace();
+			this.terminated();
+			return false;
+		}
+	}
+
+	/**
+	 * @return Standard input of the command, closing it sends EOF. Null if the command was created without input.
+	 */
+	public OutputStream getInput(){
+		return this.stdin;
+	}
+
+	/** Waits for the command to terminate
+	 * @param timeout Milliseconds to wait, 0 waits forever
+	 * @return true if the command terminated
+	 */
+	public boolean waitFor(long timeout){
+		try {
+			if(timeout <= 0){
+				this.closed.await();
+				return true;
+			}
+			return this.closed.await(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return this.isDone();
+		}
+	}
+
+	/**
+	 * @return true if the command terminated
+	 */
+	public boolean isDone(){
+		return this.closed.getCount() == 0;
+	}
+
+	/**
+	 * @return exit status of the command, -1 if it is still running, has been cancelled or it is unknown
+	 */
+	public int getExitStatus(){
+		return this.exitStatus;
+	}
+
+	/**
+	 * Stops the command, the remote process is killed and the channel closed
+	 */
+	public void cancel(){
+		if(this.isDone())
+			return;
+
+		System.out.println("[SSHClient] Cancelling command: " + this.command);
+		this.cancelled = true;
+		try {
+			this.channel.sendSignal("KILL");
+		} catch (Exception e) {
+			//Not every server supports signals, closing the channel is enough to stop waiting
+		}
+		this.channel.disconnect();
+		this.terminated();
+	}
+
+	public String getCommand(){
+		return this.command;
+	}
+
+	private void terminated(){
+		synchronized(this){
+			if(this.isDone())
+				return;
+			//The exit status is received before the channel is closed
+			this.exitStatus = this.cancelled || this.channel.isConnected() ? -1 : this.channel.getExitStatus();
+			this.closed.countDown();
+		}
+		System.out.println("[SSHClient] exit-status: " + this.exitStatus + " (" + this.command + ")");
+		this.channel.disconnect();
+		this.listener.onExit(this.exitStatus);
+	}
+
+	/**
+	 * Stream written by the session with the output of the command
+	 */
+	private class ListenerStream extends OutputStream{
+		private boolean error;
+
+		ListenerStream(boolean error){
+			this.error = error;
+		}
+
+		@Override
+		public void write(int b) {
+			this.write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if(this.error)
+				listener.onError(b, off, len);
+			else
+				listener.onOutput(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			if(this.error)
+				terminated();
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package communication;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/** Pool of long-lived sftp channels opened on a single session. Channels are opened lazily, reused across
+ *  operations and reopened when they are found dead, so every operation doesn't pay a channel open round trip.
+ * @author marco
+ *
+ */
+public class SftpChannelPool {
+	private Session session;
+	private int maxSize;
+	private int connectTimeout;
+
+	//Idle channels, ready to be reused
+	private ArrayDeque<ChannelSftp> idle = new ArrayDeque<ChannelSftp>();
+	//Channels currently open (idle + borrowed)
+	private int open = 0;
+	private boolean closed = false;
+
+	//Statistics
+	private AtomicLong reuses = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong failures = new AtomicLong();
+
+	/** Creates a new pool on the given session
+	 * @param session Session the channels are opened on, must be connected before acquiring channels
+	 * @param maxSize Maximum number of channels open at the same time
+	 * @param connectTimeout Timeout (ms) used when connecting a new channel
+	 */
+	public SftpChannelPool(Session session, int maxSize, int connectTimeout){
+		this.session = session;
+		this.maxSize = maxSize < 1 ? 1 : maxSize;
+		this.connectTimeout = connectTimeout;
+	}
+
+	/** Gets a connected channel, reusing an idle one if possible. Blocks if all the channels are borrowed.
+	 * @return a connected sftp channel, to be given back with release() or invalidate()
+	 * @throws JSchException if a new channel can't be opened
+	 */
+	public ChannelSftp acquire() throws JSchException{
+		synchronized(this){
+			while(true){
+				if(this.closed)
+					throw new JSchException("Sftp channel pool is closed");
+
+				//Health check of the idle channels, dead ones are dropped
+				while(!this.idle.isEmpty()){
+					ChannelSftp channel = this.idle.pollFirst();
+					if(isHealthy(channel)){
+						this.reuses.incrementAndGet();
+						return channel;
+					}
+					System.out.println("[SftpPool] Dropping dead sftp channel.");
+					this.discard(channel);
+				}
+
+				if(this.open < this.maxSize){
+					//Reserve the slot, the channel is opened outside the lock
+					this.open++;
+					break;
+				}
+
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new JSchException("Interrupted while waiting for a sftp channel");
+				}
+			}
+		}
+
+		this.misses.incrementAndGet();
+		try {
+			System.out.println("[SftpPool] Opening new sftp channel...");
+			ChannelSftp channel = (ChannelSftp) this.session.openChannel("sftp");
+			channel.connect(this.connectTimeout);
+			return channel;
+		} catch (JSchException e) {
+			synchronized(this){
+				this.open--;
+				this.notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	/** Gives back a channel after a successful operation
+	 * @param channel Channel obtained with acquire()
+	 */
+	public synchronized void release(ChannelSftp channel){
+		if(channel == null)
+			return;
+
+		if(this.closed || !isHealthy(channel)){
+			this.discard(channel);
+		} else {
+			this.idle.addFirst(channel);
+		}
+		this.notifyAll();
+	}
+
+	/** Gives back a channel after a failed operation, the channel is closed and will be reopened on demand
+	 * @param channel Channel obtained with acquire()
+	 */
+	public synchronized void invalidate(ChannelSftp channel){
+		if(channel == null)
+			return;
+
+		this.failures.incrementAndGet();
+		this.discard(channel);
+		this.notifyAll();
+	}
+
+	/**
+	 * Closes all the idle channels, borrowed channels are closed when given back
+	 */
+	public synchronized void shutdown(){
+		this.closed = true;
+		while(!this.idle.isEmpty()){
+			this.discard(this.idle.pollFirst());
+		}
+		this.notifyAll();
+	}
+
+	private void discard(ChannelSftp channel){
+		this.open--;
+		channel.disconnect();
+	}
+
+	private static boolean isHealthy(ChannelSftp channel){
+		return channel.isConnected() && !channel.isClosed() && !channel.isEOF();
+	}
+
+	/**
+	 * @return maximum number of channels of the pool
+	 */
+	public int getMaxSize(){
+		return this.maxSize;
+	}
+
+	/**
+	 * @return number of channels currently open
+	 */
+	public synchronized int getOpen(){
+		return this.open;
+	}
+
+	/**
+	 * @return number of operations served by an already open channel
+	 */
+	public long getReuses(){
+		return this.reuses.get();
+	}
+
+	/**
+	 * @return number of operations that had to open a new channel
+	 */
+	public long getMisses(){
+		return this.misses.get();
+	}
+
+	/**
+	 * @return number of channels dropped after a failed operation
+	 */
+	public long getFailures(){
+		return this.failures.get();
+	}
+
+	@Override
+	public String toString(){
+		return "sftp pool [open=" + this.getOpen() + "/" + this.maxSize + ", reuses=" + this.getReuses()
+				+ ", misses=" + this.getMisses() + ", failures=" + this.getFailures() + "]";
+	}
+}
@@ -1,16 +1,20 @@
 package communication;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Properties;
-import java.util.Vector;
 
 import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.ChannelExec;
 import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import com.jcraft.jsch.ChannelSftp.LsEntrySelector;
 import com.jcraft.jsch.ChannelShell;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
@@ -24,7 +28,20 @@ import com.jcraft.jsch.UserInfo;
  * @author marco
  */
 public class SshClient implements CommunicationClient{
+	/** Default number of sftp channels kept open on every session */
+	public static final int DEFAULT_SFTP_POOL_SIZE = 4;
+	//Entries of a remote directory listed at a time
+	private static final int LS_BATCH = 1000;
+	
 	private Session session;
+	private SftpChannelPool sftpPool;
+	private int sftpPoolSize;
+	//Compressed copies of the files, shared with the other clients
+	private CompressionCache compression;
+	//Rate of the data sent to the machine, null for no limit
+	private BandwidthLimiter limiter;
+	//Number of times the session has been connected, more than 1 means it has been reconnected
+	private volatile int connections = 0;
 	
 	private String user;
 	private String host;
@@ -45,7 +62,21 @@ public class SshClient implements CommunicationClient{
 	 * @throws JSchException
 	 */
 	public SshClient(String usr, String hst, int prt, UserInfo usrInf, InputStream in, OutputStream out){
+		this(usr, hst, prt, usrInf, in, out, DEFAULT_SFTP_POOL_SIZE);
+	}
+	
+	/**Create a new SshClient, in order to connect to a remote host and perform ssh and sftp operations
+	 * @param usr Username of the user for the connection
+	 * @param hst IP address of the remote machine
+	 * @param prt  Port to connect to
+	 * @param usrInf Object containing user's password
+	 * @param in *testing
+	 * @param out *testing
+	 * @param sftpPoolSize Maximum number of sftp channels kept open on the session
+	 */
+	public SshClient(String usr, String hst, int prt, UserInfo usrInf, InputStream in, OutputStream out, int sftpPoolSize){
 		
+		this.sftpPoolSize = sftpPoolSize;
 		this.user = usr;
 		this.host = hst;
 		this.port = prt;
@@ -93,6 +124,9 @@ public class SshClient implements CommunicationClient{
         config.setProperty("StrictHostKeyChecking", "no");
         session.setConfig(config);
         
+        //Sftp channels are opened on demand and kept open for the whole session
+        this.sftpPool = new SftpChannelPool(this.session, this.sftpPoolSize, 3000);
+        
         //Connects the session with a certain timeout
         return this.connectSession(10000, 2);
 	}
@@ -147,6 +181,7 @@ public class SshClient implements CommunicationClient{
 				} 
 	        } else {
 	        	System.out.println("[SSHClient] Connected!");
+	        	this.connections++;
 	        	return true;
 	        }
 		}    
@@ -184,10 +219,8 @@ public class SshClient implements CommunicationClient{
 	 * @param source absolute source Path 
 	 * @param destination absolute destination Path (it's a String)
 	 * @return true if the file is correctly copied
-	 * @throws JSchException
-	 * @throws SftpException
 	 */
-	public boolean sendFile(Path source, String destination){
+	public boolean sendFile(final Path source, final String destination){
 		if(!this.checkSessionConnection()) 
 			return false;
 		
@@ -196,32 +229,44 @@ public class SshClient implements CommunicationClient{
 			return false;
 		}
 		
-		ChannelSftp channel;
-		try {
-			channel = (ChannelSftp)createChannel("sftp");
-			
-			System.out.println("[SSHClient] Connecting Sftp channel...");
-			channel.connect(3000);
-			
-			System.out.println("[SSHClient] Copying file: " + source + " to: " + destination);
-			channel.put(source.toString(), destination);
-			
-			channel.disconnect();
-		} catch (JSchException | SftpException e1) {
-			e1.printStackTrace();
-			return false;
+		if(this.compression != null){
+			final CompressionCache.Blob blob = this.compression.get(source);
+			if(blob != null){
+				System.out.println("[SSHClient] Copying compressed file: " + source + " to: " + destination + " (" + blob.getSize() + " of " + blob.getOriginalSize() + " bytes)");
+				boolean sent = this.pipeCommand("gzip -dc > " + quote(destination), new StreamSource() {
+					public void writeTo(OutputStream out) throws IOException {
+						blob.writeTo(out);
+					}
+				});
+				if(sent){
+					this.compression.transferred(blob);
+					return true;
+				}
+				System.out.println("[SSHClient] Unable to send compressed file, sending it as it is.");
+			}
 		}
 		
-		return true;
+		return this.withSftp(new SftpOperation() {
+			public void run(ChannelSftp channel) throws SftpException {
+				System.out.println("[SSHClient] Copying file: " + source + " to: " + destination);
+				if(limiter == null){
+					channel.put(source.toString(), destination);
+					return;
+				}
+				try(OutputStream out = throttle(channel.put(destination))){
+					Files.copy(source, out);
+				} catch (IOException e) {
+					throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString());
+				}
+			}
+		});
 	}
 	
 	/** Creates a directory using sftp
 	 * @param destination Absolute Path of the directory to create
 	 * @return true if the directory has been created successfully
-	 * @throws JSchException
-	 * @throws SftpException
 	 */
-	public boolean createDir(String destination){
+	public boolean createDir(final String destination){
 		if(!this.checkSessionConnection()) return false;
 		
 		if(destination.toString().isEmpty() ){
@@ -229,21 +274,12 @@ public class SshClient implements CommunicationClient{
 			return false;
 		}
 
-		try {
-			ChannelSftp channel = (ChannelSftp)createChannel("sftp");
-			System.out.println("[SSHClient] Connecting Sftp channel...");
-			channel.connect(3000);
-			
-			System.out.println("[SSHClient] Creating directory: " + destination);
-			channel.mkdir(destination.toString());
-			
-			channel.disconnect();
-		} catch (SftpException | JSchException e) {
-			e.printStackTrace();
-			return false;
-		}
-		
-		return true;
+		return this.withSftp(new SftpOperation() {
+			public void run(ChannelSftp channel) throws SftpException {
+				System.out.println("[SSHClient] Creating directory: " + destination);
+				channel.mkdir(destination.toString());
+			}
+		});
 	}
 	
 	
@@ -251,86 +287,138 @@ public class SshClient implements CommunicationClient{
 	 * 
 	 * @param fileToCancel path of the file to remove
 	 * @return true if the file is correctly removed
-	 * @throws JSchException
-	 * @throws SftpException
 	 */
 	//TODO: Implement a mechanism to control if the file is correctly deleted
-	public boolean cancelFile(String fileToCancel){
+	public boolean cancelFile(final String fileToCancel){
 		if(!this.checkSessionConnection()) 
 			return false;
 		
-		ChannelSftp channel;
-		try {
-			channel = (ChannelSftp)createChannel("sftp");
-			
-			System.out.println("[SSHClient] Connecting Sftp channel...");
-			channel.connect(3000);
-			
-			System.out.println("[SSHClient] Deleting File: " + fileToCancel);
-			channel.rm(fileToCancel.toString());
-			
-			System.out.println("[SSHClient] Disconnecting Sftp channel...");
-			channel.disconnect();
-		} catch (JSchException | SftpException e) {
-			e.printStackTrace();
-			return false;
-		}
-		
-		return true;
+		return this.withSftp(new SftpOperation() {
+			public void run(ChannelSftp channel) throws SftpException {
+				System.out.println("[SSHClient] Deleting File: " + fileToCancel);
+				channel.rm(fileToCancel.toString());
+			}
+		});
 	}
 	
 	/**Cancels a directory or file on the remote machine, whatever it contains! It's pretty dangerous since it cancels everything without regards.
+	 * The whole tree is removed by a single remote command, sftp is used only if commands can't be executed.
 	 * 
 	 * @param dirToEmpty path of the directory to remove
 	 * @param cancelMainDir set this to false if you want to cancel only sub-directories and files
 	 * @return true if the directory is correctly removed
-	 * @throws JSchException
-	 * @throws SftpException
 	 */
-	//TODO: Implement a mechanism to control if the directory is correctly deleted
-	public boolean emptyDir(String dirToEmpty, boolean cancelMainDir){
+	public boolean emptyDir(final String dirToEmpty, final boolean cancelMainDir){
 		if(!this.checkSessionConnection()) 
 			return false;
 		
-		ChannelSftp channel;
-		try {
-			channel = (ChannelSftp)createChannel("sftp");
-			System.out.println("[SSHClient] Connecting Sftp channel...");
-			channel.connect(3000);
-			
-			SftpATTRS dirAttr = channel.lstat(dirToEmpty);
-			if(!dirAttr.isDir()){
-				System.out.println("[SSHClient] " + dirToEmpty + " is a file, cancelling...");
-				channel.rm(dirToEmpty);
-			} else {
-				Vector files = channel.ls(dirToEmpty);
-				if(files!=null){
-				      for(int ii=0; ii<files.size(); ii++){
-//					out.println(vv.elementAt(ii).toString());
-			                Object obj=files.elementAt(ii);
-			                if(obj instanceof com.jcraft.jsch.ChannelSftp.LsEntry && !((com.jcraft.jsch.ChannelSftp.LsEntry)obj).getFilename().equalsIgnoreCase("..")  
-			                		&& !((com.jcraft.jsch.ChannelSftp.LsEntry)obj).getFilename().equalsIgnoreCase(".")){
-			                  System.out.println("[SSHClient] Found sub-directory:" + ((com.jcraft.jsch.ChannelSftp.LsEntry)obj).getFilename());      
-			                  //Cancel all files in this directory
-			                  this.emptyDir( dirToEmpty +"/" +((com.jcraft.jsch.ChannelSftp.LsEntry)obj).getFilename(), true);
-			                 }
-				      }
-				}
+		String path = dirToEmpty.trim();
+		while(path.length() > 1 && path.endsWith("/"))
+			path = path.substring(0, path.length() - 1);
+		if(path.isEmpty() || path.equals("/")){
+			System.out.println("[SSHClient] Refusing to empty directory: \"" + dirToEmpty + "\"");
+			return false;
+		}
+		
+		System.out.println("[SSHClient] Deleting " + (cancelMainDir ? "" : "content of ") + "directory: " + path);
+		String command;
+		if(cancelMainDir)
+			command = "rm -rf -- " + quote(path);
+		else
+			command = "find " + quote(path) + " -mindepth 1 -maxdepth 1 -exec rm -rf -- {} +";
+		int exitStatus = this.runCommand(command, System.out, 0);
+		if(exitStatus >= 0)
+			return exitStatus == 0;
+		
+		System.out.println("[SSHClient] Unable to execute commands, deleting " + path + " using sftp...");
+		final String target = path;
+		return this.withSftp(new SftpOperation() {
+			public void run(ChannelSftp channel) throws SftpException {
+				emptyDir(channel, target, cancelMainDir);
+			}
+		});
+	}
+	
+	/**Recursive part of emptyDir, the whole tree is removed using the same channel. Directories are listed a 
+	 * batch of entries at a time, so big directories are never loaded in memory all at once.
+	 */
+	private void emptyDir(ChannelSftp channel, String dirToEmpty, boolean cancelMainDir) throws SftpException{
+		SftpATTRS dirAttr = channel.lstat(dirToEmpty);
+		if(!dirAttr.isDir()){
+			channel.rm(dirToEmpty);
+		} else {
+			//Every round deletes what has been listed, so the next listing starts with what is left
+			final ArrayList<LsEntry> batch = new ArrayList<LsEntry>();
+			do {
+				batch.clear();
+				channel.ls(dirToEmpty, new LsEntrySelector() {
+					public int select(LsEntry entry) {
+						if(!entry.getFilename().equals(".") && !entry.getFilename().equals(".."))
+							batch.add(entry);
+						return batch.size() < LS_BATCH ? CONTINUE : BREAK;
+					}
+				});
 				
-				if(cancelMainDir) {
-					System.out.println("[SSHClient] Deleting empty directory: " + dirToEmpty);
-					channel.rmdir(dirToEmpty.toString());
+				for(LsEntry entry: batch){
+					String child = dirToEmpty + "/" + entry.getFilename();
+					if(entry.getAttrs().isDir())
+						this.emptyDir(channel, child, true);
+					else
+						channel.rm(child);
 				}
-			}
+			} while(!batch.isEmpty());
 			
-			System.out.println("[SSHClient] Disconnecting Sftp channel...");
-			channel.disconnect();
-		} catch (JSchException | SftpException e) {
-			e.printStackTrace();
-			return false;
+			if(cancelMainDir) {
+				channel.rmdir(dirToEmpty);
+			}
+		}
+	}
+	
+	/** Operation performed on a pooled sftp channel
+	 */
+	private interface SftpOperation {
+		void run(ChannelSftp channel) throws SftpException;
+	}
+	
+	/**Runs an operation on a pooled sftp channel. If the channel turns out to be broken it is dropped and the 
+	 * operation is tried once more on a freshly opened channel.
+	 * 
+	 * @param operation to run
+	 * @return true if the operation completed without errors
+	 */
+	private boolean withSftp(SftpOperation operation){
+		for(int attempt=0; attempt<2; attempt++){
+			ChannelSftp channel = null;
+			try {
+				channel = this.sftpPool.acquire();
+				operation.run(channel);
+				this.sftpPool.release(channel);
+				return true;
+			} catch (JSchException e) {
+				//The channel couldn't be opened, maybe the session dropped in the meantime
+				e.printStackTrace();
+				if(attempt==0 && this.checkSessionConnection())
+					continue;
+				return false;
+			} catch (SftpException e) {
+				if(isChannelFailure(e) || !channel.isConnected()){
+					System.out.println("[SSHClient] Sftp channel broken, reopening it...");
+					this.sftpPool.invalidate(channel);
+					if(!this.checkSessionConnection())
+						return false;
+					continue;
+				}
+				e.printStackTrace();
+				this.sftpPool.release(channel);
+				return false;
+			}
 		}
 		
-		return true;
+		return false;
+	}
+	
+	private static boolean isChannelFailure(SftpException e){
+		return e.id == ChannelSftp.SSH_FX_NO_CONNECTION || e.id == ChannelSftp.SSH_FX_CONNECTION_LOST;
 	}
 	
 	
@@ -339,59 +427,205 @@ public class SshClient implements CommunicationClient{
 	 * 
 	 * @param command To execute
 	 * @return true if the command is executed correctly (exitStatus==0)
-	 * @throws JSchException
-	 * @throws IOException
 	 */
 	public boolean executeCommand(String command){
-		if(!this.checkSessionConnection()) return false;
+		return this.executeCommand(command, 0);
+	}
+	
+	/**
+	 * Executes a command, killing it if it takes too long
+	 * 
+	 * @param command To execute
+	 * @param timeout Milliseconds the command is allowed to run, 0 for no limit
+	 * @return true if the command is executed correctly (exitStatus==0) within the timeout
+	 */
+	public boolean executeCommand(String command, long timeout){
+		return this.runCommand(command, System.out, timeout) == 0;
+	}
+	
+	/**
+	 * Starts a command without waiting for it, many commands can run at the same time on the session
+	 * 
+	 * @param command To execute
+	 * @param listener Receives the output of the command while it runs and its exit status
+	 * @return the running command, null if it couldn't be started
+	 */
+	public RemoteCommand startCommand(String command, CommandListener listener){
+		return this.startCommand(command, listener, false);
+	}
+	
+	private RemoteCommand startCommand(String command, CommandListener listener, boolean withInput){
+		if(!this.checkSessionConnection()) return null;
 		
-		ChannelExec channel;
+		RemoteCommand remote;
 		try {
-			channel = (ChannelExec) createChannel("exec");
-			System.out.println("[SSHClient] Executing command: " + command);
-			channel.setCommand(command + "\n");
-			
-			channel.setInputStream(null);
-			channel.setErrStream(System.err);
-			
-			//connectInOut("linux", channel, System.in, System.out);
-			// get I/O streams for remote scp
-	        OutputStream out=channel.getOutputStream();
-		    
-		    //channel.setOutputStream(System.out);
-		    
-		    InputStream in = channel.getInputStream();
-		    
-		    channel.connect(300);
-		    
-		    byte[] tmp=new byte[1024];
-			while(true){
-			    while(in.available()>0){
-			      int i=in.read(tmp, 0, 1024);
-			      if(i<0)break;
-			      System.out.print(new String(tmp, 0, i));
-			    }
-			    if(channel.isClosed()){
-			      break;
-			    }
-			    try{Thread.sleep(1000);}catch(Exception ee){ ee.printStackTrace(); }
-		    }
-			
-			int exitStatus = channel.getExitStatus();
-		    System.out.println("exit-status: "+ exitStatus);
-		    
-		    channel.disconnect();
-		    System.out.println("[SSHClient] Exec channel disconnected");
-		    
-		    if(exitStatus == 0){
-		    	return true;
-		    } else 
-		    	return false;
-		} catch (JSchException | IOException e) {
+			remote = new RemoteCommand(this.session, command, listener, withInput);
+		} catch (JSchException e) {
+			e.printStackTrace();
+			return null;
+		}
+		
+		return remote.start(3000) ? remote : null;
+	}
+	
+	/**
+	 * Executes a command, collecting its standard output
+	 * 
+	 * @param command To execute
+	 * @param output Where the standard output of the command is written
+	 * @param timeout Milliseconds the command is allowed to run, 0 for no limit
+	 * @return the exit status of the command, -1 if the command couldn't be executed or timed out
+	 */
+	public int runCommand(String command, OutputStream output, long timeout){
+		RemoteCommand remote = this.startCommand(command, new StreamListener(output, System.err));
+		if(remote == null)
+			return -1;
+		
+		return this.waitCommand(remote, timeout);
+	}
+	
+	/**
+	 * Waits for a command to terminate, cancelling it when the timeout expires
+	 */
+	private int waitCommand(RemoteCommand remote, long timeout){
+		if(!remote.waitFor(timeout)){
+			System.out.println("[SSHClient] Command timed out after " + timeout + " ms: " + remote.getCommand());
+			remote.cancel();
+			return -1;
+		}
+		
+		return remote.getExitStatus();
+	}
+	
+	/**
+	 * Executes a command feeding its standard input from a local source, the data is streamed while the command runs
+	 * 
+	 * @param command To execute
+	 * @param source Data for the standard input of the command
+	 * @return true if all the data has been sent and the command is executed correctly (exitStatus==0)
+	 */
+	public boolean pipeCommand(String command, StreamSource source){
+		//Output goes straight to the console, the session thread never blocks on it while we are writing
+		return this.pipeCommand(command, source, System.out);
+	}
+	
+	/**
+	 * Executes a command feeding its standard input from a local source and collecting its standard output
+	 * 
+	 * @param command To execute
+	 * @param source Data for the standard input of the command
+	 * @param output Where the standard output of the command is written, it must never block
+	 * @return true if all the data has been sent and the command is executed correctly (exitStatus==0)
+	 */
+	public boolean pipeCommand(String command, StreamSource source, OutputStream output){
+		RemoteCommand remote = this.startCommand(command, new StreamListener(output, System.err), true);
+		if(remote == null)
+			return false;
+		
+		try {
+			OutputStream stdin = remote.getInput();
+			try {
+				source.writeTo(this.throttle(stdin));
+			} finally {
+				//Closing the input sends EOF to the command
+				stdin.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			remote.cancel();
+			return false;
+		}
+		
+		return this.waitCommand(remote, 0) == 0;
+	}
+	
+	/**
+	 * Deploys a compressed archive by streaming it into tar on the remote machine: the archive is extracted while it is
+	 * transferred and is never written to the remote disk.
+	 * 
+	 * @param archive absolute Path of the .tar.gz archive
+	 * @param destinationDir absolute Path of the remote directory to extract to, created if missing
+	 * @return true if the archive has been completely extracted
+	 */
+	public boolean deployArchive(final Path archive, String destinationDir){
+		System.out.println("[SSHClient] Streaming archive: " + archive + " to: " + destinationDir);
+		return this.pipeCommand("mkdir -p " + quote(destinationDir) + " && tar -xzf - -C " + quote(destinationDir), new StreamSource() {
+			public void writeTo(OutputStream out) throws IOException {
+				Files.copy(archive, out);
+			}
+		});
+	}
+	
+	/**
+	 * Updates a file that already exists on the remote machine, sending only the blocks that changed.
+	 * Falls back to sending the whole file for small files, when the remote copy is missing or when too much changed.
+	 * 
+	 * @param source absolute source Path
+	 * @param destination absolute destination Path of the remote copy
+	 * @return true if the remote copy is equal to the source
+	 */
+	public boolean updateFile(final Path source, final String destination){
+		if(!this.checkSessionConnection()) 
+			return false;
+		
+		long size;
+		try {
+			size = Files.size(source);
+		} catch (IOException e) {
 			e.printStackTrace();
 			return false;
 		}
+		if(size < BlockDelta.MIN_FILE_SIZE)
+			return this.sendFile(source, destination);
 		
+		//Signatures of the blocks of the remote copy
+		ByteArrayOutputStream signatures = new ByteArrayOutputStream();
+		if(this.runCommand(BlockDelta.signatureCommand(destination), signatures, 0) != 0){
+			System.out.println("[SSHClient] No remote signatures for " + destination + ", sending the whole file.");
+			return this.sendFile(source, destination);
+		}
+		
+		final BlockDelta delta;
+		try {
+			delta = BlockDelta.compute(source, signatures.toString("US-ASCII"));
+		} catch (IOException e) {
+			System.out.println("[SSHClient] Unable to compute the delta of " + source + " (" + e.getMessage() + "), sending the whole file.");
+			return this.sendFile(source, destination);
+		}
+		if(!delta.isWorthIt()){
+			System.out.println("[SSHClient] Too many changes in " + source + ", sending the whole file.");
+			return this.sendFile(source, destination);
+		}
+		
+		System.out.println("[SSHClient] Sending delta of " + source + ": " + delta.getLiteralBytes() + " of " + size + " bytes.");
+		boolean sent = this.withSftp(new SftpOperation() {
+			public void run(ChannelSftp channel) throws SftpException {
+				try {
+					OutputStream out = throttle(channel.put(BlockDelta.deltaFile(destination)));
+					delta.writeLiterals(out);
+					out.close();
+					out = channel.put(BlockDelta.scriptFile(destination));
+					out.write(delta.patchScript(destination).getBytes("UTF-8"));
+					out.close();
+				} catch (IOException e) {
+					throw new SftpException(ChannelSftp.SSH_FX_FAILURE, e.toString());
+				}
+			}
+		});
+		
+		if(!sent || !this.executeCommand("sh " + quote(BlockDelta.scriptFile(destination)))){
+			System.out.println("[SSHClient] Unable to apply the delta, sending the whole file.");
+			return this.sendFile(source, destination);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Quotes a string to be used as a single argument of a remote shell command
+	 */
+	public static String quote(String argument){
+		return "'" + argument.replace("'", "'\\''") + "'";
 	}
 	
 	/**
@@ -409,10 +643,52 @@ public class SshClient implements CommunicationClient{
 		return true;
 	}
 	
+	/** Sets the limiter of the data sent to the machine
+	 * @param limiter Limiter of this machine, null for no limit
+	 */
+	public void setBandwidthLimiter(BandwidthLimiter limiter){
+		this.limiter = limiter;
+	}
+	
+	/**
+	 * @return the stream, limited by the bandwidth limiter if there is one
+	 */
+	private OutputStream throttle(OutputStream out){
+		return this.limiter == null ? out : new ThrottledOutputStream(out, this.limiter);
+	}
+	
+	/** Compresses the files sent by sendFile when it is worth it
+	 * @param compression Cache of compressed files, null to send files as they are
+	 */
+	public void setCompressionCache(CompressionCache compression){
+		this.compression = compression;
+	}
+	
+	public int getConnectionCount(){
+		return this.connections;
+	}
+	
+	/**
+	 * @return the pool of sftp channels of this session, to look at its size and reuse statistics
+	 */
+	public SftpChannelPool getSftpPool(){
+		return this.sftpPool;
+	}
+	
+	public String getStatus(){
+		String status = this.user + "@" + this.host + ":" + this.port + " session " + (this.session != null && this.session.isConnected() ? "connected" : "disconnected");
+		if(this.sftpPool != null)
+			status = status + ", " + this.sftpPool;
+		return status;
+	}
+	
 	//Method to stop the thread
     public void shutdown() {
     	System.out.println("[SSHClient] Shutting down...");
-    	this.session.disconnect();
+    	if(this.sftpPool != null)
+    		this.sftpPool.shutdown();
+    	if(this.session != null)
+    		this.session.disconnect();
     	
     	synchronized (this){
 			this.notifyAll();
@@ -0,0 +1,51 @@
+package communication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** CommandListener copying the output of a remote command to local streams
+ * @author marco
+ *
+ */
+public class StreamListener implements CommandListener {
+	private OutputStream output;
+	private OutputStream error;
+
+	/**
+	 * @param output Where the standard output of the command is written, null to discard it
+	 * @param error Where the standard error of the command is written, null to discard it
+	 */
+	public StreamListener(OutputStream output, OutputStream error){
+		this.output = output;
+		this.error = error;
+	}
+
+	public void onOutput(byte[] data, int offset, int length) {
+		write(this.output, data, offset, length);
+	}
+
+	public void onError(byte[] data, int offset, int length) {
+		write(this.error, data, offset, length);
+	}
+
+	public void onExit(int exitStatus) {
+		try {
+			if(this.output != null)
+				this.output.flush();
+			if(this.error != null)
+				this.error.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void write(OutputStream stream, byte[] data, int offset, int length){
+		if(stream == null)
+			return;
+		try {
+			stream.write(data, offset, length);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package communication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Produces the data fed to the standard input of a remote command
+ * @author marco
+ *
+ */
+public interface StreamSource {
+	
+	/** Writes all the data to the stream, the stream is closed by the caller
+	 * @param out Standard input of the remote command
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException;
+	
+}
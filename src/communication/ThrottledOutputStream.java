@@ -0,0 +1,43 @@
+package communication;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Stream sending data only as fast as a {@link BandwidthLimiter} allows. The transfer becomes bulk once it has
+ *  sent more than the bulk threshold of the limiter.
+ * @author marco
+ *
+ */
+public class ThrottledOutputStream extends FilterOutputStream {
+	private BandwidthLimiter limiter;
+	private long sent = 0;
+
+	/**
+	 * @param out Stream to write to
+	 * @param limiter Limiter of the transfer
+	 */
+	public ThrottledOutputStream(OutputStream out, BandwidthLimiter limiter){
+		super(out);
+		this.limiter = limiter;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.limiter.acquire(1, this.limiter.isBulk(this.sent));
+		this.out.write(b);
+		this.sent++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0){
+			int count = Math.min(len, BandwidthLimiter.CHUNK);
+			this.limiter.acquire(count, this.limiter.isBulk(this.sent));
+			this.out.write(b, off, count);
+			this.sent += count;
+			off += count;
+			len -= count;
+		}
+	}
+}
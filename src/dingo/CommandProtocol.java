@@ -17,8 +17,19 @@ public class CommandProtocol
 	public static final String MESSAGE_DIR_CONTENT = "DIR_CONTENT";
 	public static final String MESSAGE_CONNECT_MACHINE = "CONNECT_MACHINE";
 	public static final String MESSAGE_ADD_BOLT = "ADD_BOLT"; 
+	public static final String MESSAGE_ADD_BOLTS = "ADD_BOLTS";
 	public static final String MESSAGE_REMOVE_BOLT = "REMOVE_BOLT";
 	public static final String MESSAGE_REMOVE_ALL_BOLTS = "REMOVE_ALL_BOLTS";
+	public static final String MESSAGE_RECONCILE = "RECONCILE";
+	public static final String MESSAGE_USE = "USE";
+	public static final String MESSAGE_ADD_MANAGER = "ADD_MANAGER";
+	public static final String MESSAGE_JOB = "JOB";
+	public static final String MESSAGE_JOBS = "JOBS";
+	public static final String MESSAGE_WAIT = "WAIT";
+	public static final String MESSAGE_CANCEL = "CANCEL";
+	//Framed mode: "FRAME id length" followed by the request, answered by "FRAME id length MORE|OK|KO" followed by the answer
+	public static final String MESSAGE_FRAME = "FRAME";
+	public static final String MESSAGE_MORE = "MORE";
 	
 	public static final String MESSAGE_FILE_ADDED = "file_added";
 	public static final String MESSAGE_FILE_DELETED = "file_deleted";
@@ -26,6 +37,7 @@ public class CommandProtocol
 	public static final String MESSAGE_DIRECTORY_ADDED = "directory_added";
 	public static final String MESSAGE_DIRECTORY_DELETED = "directory_deleted";
 	public static final String MESSAGE_DIRECTORY_CHANGED = "directory_changed";
+	public static final String MESSAGE_RECONCILE_NEEDED = "reconcile_needed";
 	
 	public static final String COMMAND_EXIT = "exit";
 	public static final String COMMAND_VER = "ver";
@@ -40,6 +52,18 @@ public class CommandProtocol
 	public static final String COMMAND_DIR_CONTENT= "dir_content";
 	public static final String COMMAND_CONNECT_MACHINE= "connect_machine";
 	public static final String COMMAND_ADD_BOLT = "add_bolt"; 
+	public static final String COMMAND_ADD_BOLTS = "add_bolts";
 	public static final String COMMAND_REMOVE_BOLT = "remove_bolt"; 
 	public static final String COMMAND_REMOVE_ALL_BOLTS = "remove_all_bolts";
+	public static final String COMMAND_RECONCILE = "reconcile";
+	public static final String COMMAND_USE = "use";
+	public static final String COMMAND_ADD_MANAGER = "add_manager";
+	public static final String COMMAND_JOB = "job";
+	public static final String COMMAND_JOBS = "jobs";
+	public static final String COMMAND_WAIT = "wait";
+	public static final String COMMAND_CANCEL = "cancel";
+	//Last argument of a command starting a job, to go on without waiting for it
+	public static final String COMMAND_BACKGROUND = "&";
+	//Last argument of connect, to talk to the server a line at a time instead of in frames
+	public static final String COMMAND_LEGACY = "legacy";
 }
@@ -1,6 +1,64 @@
 package dingo;
 
+import java.util.Properties;
+
 public class Settings
 {
 	public static final String DINGO_PROPERTIES = "settings/dingo.properties";	
+	//Files every manager needs its own copy of
+	private static final String[] MANAGER_FILES = {"FILE_INDEX", "CHANGE_JOURNAL"};
+	
+	/** Settings of a named manager: NAME.KEY overrides KEY. Unless overridden, the files that can't be shared
+	 *  between managers get the name of the manager appended.
+	 * @param settings Loaded properties
+	 * @param name Name of the manager
+	 * @return the settings of the manager, backed by the loaded ones
+	 */
+	public static Properties forManager(Properties settings, String name)
+	{
+		Properties result = new Properties(settings);
+		for (String file : MANAGER_FILES)
+		{
+			String value = settings.getProperty(file, "").trim();
+			if (!value.isEmpty()) result.setProperty(file, value + "." + name);
+		}
+		String prefix = name + ".";
+		for (String key : settings.stringPropertyNames())
+		{
+			if (key.startsWith(prefix)) result.setProperty(key.substring(prefix.length()), settings.getProperty(key));
+		}
+		return result;
+	}
+	
+	/** Reads a numeric setting
+	 * @param settings Loaded properties
+	 * @param key Name of the setting
+	 * @param defaultValue Value used if the setting is missing or not a number
+	 * @return the value of the setting
+	 */
+	public static long getLong(Properties settings, String key, long defaultValue)
+	{
+		String value = settings == null ? null : settings.getProperty(key);
+		if (value == null || value.trim().isEmpty()) return defaultValue;
+		try
+		{
+			return Long.parseLong(value.trim());
+		}
+		catch(NumberFormatException e)
+		{
+			System.out.println("[Settings] Invalid value for " + key + ": " + value + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+	
+	/** Reads a numeric setting
+	 * @param settings Loaded properties
+	 * @param key Name of the setting
+	 * @param defaultValue Value used if the setting is missing or not a number
+	 * @return the value of the setting
+	 */
+	public static int getInt(Properties settings, String key, int defaultValue)
+	{
+		return (int) Settings.getLong(settings, key, defaultValue);
+	}
 }
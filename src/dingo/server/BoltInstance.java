@@ -1,16 +1,25 @@
 package dingo.server;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.List;
 
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.SftpException;
 import com.jcraft.jsch.UserInfo;
 
 import communication.CommunicationClient;
+import communication.BandwidthLimiter;
+import communication.CompressionCache;
 import communication.SshClient;
+import communication.StreamSource;
+import dingo.server.archive.ArchiveDiff;
+import dingo.server.archive.ArchiveManifest;
+import dingo.server.archive.TarWriter;
 
 
 /** Denotes a remote instance of Bolt, provides methods to control the instance and propagate file changes
@@ -25,9 +34,17 @@ public class BoltInstance {
 	private int port;
 	private UserInfo ui;
 	private CommunicationClient cc;
+	private CompressionCache compression;
+	//Rate of the data sent to the machine, null for no limit
+	private BandwidthLimiter limiter;
 	
 	//Bolt Data
 	private String remoteDir;
+	private boolean streamDeploy = true;
+	//Phase of the initialization, read by the thread reporting the progress
+	private volatile String phase;
+	//Content of the archive deployed on this instance
+	private ArchiveManifest manifest;
 	//TODO Implement in the future:
 	private boolean running = false;
 	private boolean updated = false;
@@ -62,8 +79,8 @@ public class BoltInstance {
 		this.out = out;
 	}
 	
-	/**Initializes this instance, copying the compressed archive, extracting, compiling and executing.
-	 * Deletes the compressed archive at the end.
+	/**Initializes this instance, extracting the compressed archive, compiling and executing.
+	 * The archive is streamed into tar on the remote machine, or copied, extracted and then deleted if streaming is disabled.
 	 * 
 	 * @param archive Absolute path of the compressed archive (starting from root /) 
 	 * @return false if the initialization fails
@@ -78,29 +95,55 @@ public class BoltInstance {
 			return false;
 		}
 		
-		//Connect to the remote machine
-		System.out.println("[BoltInstance] Creating SshClient...");
-		this.cc = new SshClient(this.user, this.host, this.port, this.ui, this.in, this.out);
+		//Connect to the remote machine, a reinstall keeps the connection so its count of reconnections goes on
+		if(!this.phase("connecting"))
+			return false;
+		if(this.cc == null){
+			System.out.println("[BoltInstance] Creating SshClient...");
+			SshClient client = new SshClient(this.user, this.host, this.port, this.ui, this.in, this.out);
+			client.setCompressionCache(this.compression);
+			client.setBandwidthLimiter(this.limiter);
+			this.cc = client;
+			
+			System.out.println("[BoltInstance] Connecting to the remote machine...");
+			System.out.println("[BoltInstance] Starting Ssh...");
+			Thread ccT =new Thread(this.cc);
+			ccT.start();
+			synchronized(ccT){
+				try {
+					ccT.wait();
+				} catch (InterruptedException e) {
+					System.out.println("[BoltInstance] CommunicationClient interrupted! ");
+					e.printStackTrace();
+					return false;
+				}
+			}
+		}
 		
-		System.out.println("[BoltInstance] Connecting to the remote machine...");
-		System.out.println("[BoltInstance] Starting Ssh...");
-		Thread ccT =new Thread(this.cc);
-		ccT.start();
-		synchronized(ccT){
-			try {
-				ccT.wait();
-			} catch (InterruptedException e) {
-				System.out.println("[BoltInstance] CommunicationClient interrupted! ");
-				e.printStackTrace();
+		if(this.streamDeploy){
+			//Extract while transferring, nothing is left on the remote machine
+			if(!this.phase("deploying archive"))
+				return false;
+			System.out.println("[BoltInstance] Streaming compressed file: " + archive + " into " + this.remoteDir);
+			if(!this.cc.deployArchive(archive, this.remoteDir)){
+				System.out.println("[BoltInstance] Unable to deploy the archive.");
 				return false;
 			}
+			
+			this.phase("installed");
+			System.out.println("[BoltInstance] Instance initialized correctly! Returning true.");
+			return true;
 		}
 		
 		//Send compressed file
+		if(!this.phase("copying archive"))
+			return false;
 		System.out.println("[BoltInstance] Copying compressed file: " + archive);
 		this.cc.sendFile(archive, this.remoteDir + archive.getFileName());
 		
 		//Extract file and wait for completion
+		if(!this.phase("extracting archive"))
+			return false;
 		System.out.println("[BoltInstance] Extracting file: " + this.remoteDir +  archive.getFileName());
 		if(archive.getFileName().toString().endsWith(".tar.gz")){
 			if( !this.cc.executeCommand("tar -zxvf " + this.remoteDir + archive.getFileName() + " -C " + this.remoteDir)){
@@ -112,16 +155,38 @@ public class BoltInstance {
 		}
 		
 		//Cancel compressed file;
+		this.phase("deleting archive");
 		System.out.println("[BoltInstance] Deleting compressed file: " + this.remoteDir + archive.getFileName());
 		if(!this.cc.cancelFile(this.remoteDir +  archive.getFileName()) ){
 			System.out.println("[BoltInstance] Unable to cancel the File.");
 			return false;
 		}
 		
+		this.phase("installed");
 		System.out.println("[BoltInstance] Instance initialized correctly! Returning true.");
 		return true;
 	}
 	
+	/** Moves the initialization to a new phase
+	 * @param phase What is being done
+	 * @return false if the initialization has been cancelled
+	 */
+	private boolean phase(String phase){
+		this.phase = phase;
+		if(Thread.currentThread().isInterrupted()){
+			System.out.println("[BoltInstance] Initialization cancelled while " + phase + ".");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return what the initialization is doing, null if it hasn't started
+	 */
+	public String getPhase(){
+		return this.phase;
+	}
+	
 	/** Stop the instance and cancel all files
 	 * @return true if the instance has been correctly destroyed
 	 */
@@ -136,6 +201,13 @@ public class BoltInstance {
 			return false;
 	}
 	
+	/** Closes the connection to the machine, e.g. when the instance is not added to the cloud
+	 */
+	public void close(){
+		if(this.cc != null)
+			this.cc.shutdown();
+	}
+	
 	/** Updates the instance by stopping the execution, cancelling files and compiling again
 	 * @param archive New archive containing Bolt installation files
 	 * @return true if the instance has been correctly updated
@@ -163,21 +235,74 @@ public class BoltInstance {
 	}
 
 	
-	/** Updates the instance with another archive file
+	/** Updates the instance with another archive file. Only the entries added, changed or removed since the 
+	 *  archive deployed on this instance are propagated, the whole instance is reinstalled only if that fails.
 	 * @param archive Absolute Path of the archive file (starting from root /)
+	 * @param manifest Manifest of the new archive, null if it couldn't be read
 	 * @return true if the instance has been updated correctly
 	 */
-	public boolean archiveChanged(Path archive){
+	public boolean archiveChanged(Path archive, ArchiveManifest manifest){
+		if(this.manifest != null && manifest != null && manifest.isSafe()){
+			ArchiveDiff diff = this.manifest.diff(manifest);
+			System.out.println("[BoltInstance] Archive changed: " + diff);
+			if(this.applyDiff(archive, diff)){
+				System.out.println("[BoltInstance] Correctly updated, returning true.");
+				this.manifest = manifest;
+				return true;
+			}
+			System.out.println("[BoltInstance] Incremental update failed, reinstalling the instance...");
+		}
+		
 		if (this.update(archive)){
 			System.out.println("[BoltInstance] Correctly updated, returning true.");
+			this.manifest = manifest;
 			return true;
 		} else {
 			System.out.println("[BoltInstance] Something in the update went wrong, returning false.");
+			this.manifest = null;
 			return false;
 		}
 		
 	}
 	
+	/** Removes the entries that are not in the archive anymore and extracts only the added and changed ones
+	 * @param archive Absolute Path of the new archive
+	 * @param diff Differences with the archive deployed on this instance
+	 * @return true if the differences have been applied
+	 */
+	private boolean applyDiff(final Path archive, final ArchiveDiff diff){
+		if(diff.isEmpty())
+			return true;
+		
+		String dir = SshClient.quote(this.remoteDir);
+		if(!diff.getRemoved().isEmpty()){
+			boolean removed = this.cc.pipeCommand("cd " + dir + " && xargs -0 rm -rf --", new StreamSource() {
+				public void writeTo(OutputStream out) throws IOException {
+					diff.writeRemoved(out);
+				}
+			});
+			if(!removed)
+				return false;
+		}
+		
+		if(!diff.getChanged().isEmpty()){
+			return this.cc.pipeCommand("tar -xzf - -C " + dir, new StreamSource() {
+				public void writeTo(OutputStream out) throws IOException {
+					diff.writeChanged(archive, out);
+				}
+			});
+		}
+		
+		return true;
+	}
+	
+	/** Sets the manifest of the archive currently deployed on this instance
+	 * @param manifest Manifest of the deployed archive, null if unknown
+	 */
+	public void setManifest(ArchiveManifest manifest){
+		this.manifest = manifest;
+	}
+	
 	/** Sends a new file
 	 * @param file Absolute path of the file to be sent (starting from root /)
 	 * @param baseDir Base directory of the file in order to calculate the remote Path
@@ -188,11 +313,50 @@ public class BoltInstance {
 		String remotePath = this.remoteDir + baseDir.relativize(file).toString();
 		//Send the new file
 		System.out.println("[BoltInstance] Copying new file: " + file + " in " + remotePath);
-		this.cc.sendFile(file, remotePath);
-		
-		return true;
+		return this.cc.sendFile(file, remotePath);
+	}
+
+	/** Copies a file from the remote copy of this instance to another instance, over the SSH connection of this machine,
+	 *  which needs key based access to the other one. Nothing is copied unless the copy here has the expected md5.
+	 * @param file Absolute local path of the file (starting from root /)
+	 * @param baseDir Base directory of the file in order to calculate the remote Paths
+	 * @param md5 md5 of the local file, in hexadecimal
+	 * @param target Instance to copy the file to
+	 * @param timeout Milliseconds the copy is allowed to take
+	 * @return true if the file has been copied
+	 */
+	public boolean fileForwarded(Path file, Path baseDir, String md5, BoltInstance target, long timeout) {
+		String name = SshClient.quote(baseDir.relativize(file).toString());
+		String write = "cat > " + SshClient.quote(target.remoteDir + baseDir.relativize(file).toString());
+		String command = "cd " + SshClient.quote(this.remoteDir) + " && test \"$(md5sum < " + name + " | cut -c1-32)\" = " + md5
+				+ " && ssh -o BatchMode=yes -p " + target.port + " " + SshClient.quote(target.user + "@" + target.host) + " " + SshClient.quote(write) + " < " + name;
+		System.out.println("[BoltInstance] Forwarding " + file + " from " + this.host + " to " + target.getHost());
+		return this.cc.executeCommand(command, timeout);
 	}
 
+	/** Sends many new or changed files and directories at once, as a tar stream unpacked on the remote machine
+	 * @param files Absolute local Paths of the files and directories, in the order they have to be created
+	 * @param baseDir Base directory of the files in order to calculate the remote Paths
+	 * @return true if all the files have been written on the remote machine
+	 */
+	public boolean filesBundled(final List<Path> files, final Path baseDir) {
+		System.out.println("[BoltInstance] Sending " + files.size() + " files in one bundle to " + this.remoteDir);
+		return this.cc.pipeCommand("tar -xf - -C " + SshClient.quote(this.remoteDir), new StreamSource() {
+			public void writeTo(OutputStream out) throws IOException {
+				TarWriter writer = new TarWriter(new BufferedOutputStream(out, 64 * 1024));
+				for(Path file: files){
+					try {
+						writer.putFile(file, baseDir.relativize(file).toString());
+					} catch (NoSuchFileException e) {
+						//Deleted in the meantime, its own event will follow
+						System.out.println("[BoltInstance] " + file + " disappeared, not bundled.");
+					}
+				}
+				writer.finish();
+			}
+		});
+	}
+	
 	/** Creates a new empty directory (remotely)
 	 * @param file Absolute Path of the directory (starting from root /)
 	 * @param baseDir Base directory of the directory, necessary in order to calculate the remote Path
@@ -232,26 +396,47 @@ public class BoltInstance {
 		String remotePath = this.remoteDir + baseDir.relativize(file).toString();
 		//Cancel the remote file
 		System.out.println("[BoltInstance] Deleting directory: " + file);
-		this.cc.emptyDir(remotePath, true);
-		return true;
+		return this.cc.emptyDir(remotePath, true);
 	}
 	
-	/** Deletes old version of the file and copies the new version
+	/** Updates the remote copy of a file, only the changed blocks are sent when possible
 	 * @param fileName Absolute local Path of the new file
 	 * @param baseDir Base Directory of the file in order to calculate the remote Path
 	 * @return true if the file has been correctly updated
 	 */
 	public boolean fileChanged(Path fileName, Path baseDir) {
-		//Cancel previous File
 		String remotePath = this.remoteDir + baseDir.relativize(fileName).toString();
 		
-		System.out.println("[BoltInstance] Deleting file:" + remotePath);
-		this.cc.cancelFile(remotePath);
-		
-		//Copy new File
-		System.out.println("[BoltInstance] Copying file:" + fileName +" in " + remotePath);
-		this.cc.sendFile(fileName, remotePath);
-		return true;
+		System.out.println("[BoltInstance] Updating file:" + fileName +" in " + remotePath);
+		return this.cc.updateFile(fileName, remotePath);
+	}
+	
+	/** Sets the cache used to compress the files sent to this instance
+	 * @param compression Cache shared by the instances of the manager, null to send files as they are
+	 */
+	public void setCompressionCache(CompressionCache compression){
+		this.compression = compression;
+	}
+	
+	/** Sets the limiter of the data sent to this instance
+	 * @param limiter Limiter of this instance, null for no limit
+	 */
+	public void setBandwidthLimiter(BandwidthLimiter limiter){
+		this.limiter = limiter;
+	}
+	
+	/**
+	 * @return limiter of the data sent to this instance, null if there is no limit
+	 */
+	public BandwidthLimiter getBandwidthLimiter(){
+		return this.limiter;
+	}
+	
+	/** Chooses how the archive is deployed
+	 * @param streamDeploy true to stream the archive into tar, false to copy it on the remote machine before extracting it
+	 */
+	public void setStreamDeploy(boolean streamDeploy){
+		this.streamDeploy = streamDeploy;
 	}
 	
 	/**
@@ -282,7 +467,44 @@ public class BoltInstance {
 	public int getPort(){
 		return this.port;
 	}
+	
+	/**
+	 * @return user, host, port and remote directory, identifying this instance across restarts
+	 */
+	public String getId(){
+		return this.user + "@" + this.host + ":" + this.port + " " + this.remoteDir;
+	}
 
+	/**
+	 * @return client connected to the remote machine, null if the instance has not been initialized
+	 */
+	CommunicationClient getClient(){
+		return this.cc;
+	}
+	
+	/**
+	 * @return manifest of the archive deployed on this instance, null if unknown
+	 */
+	ArchiveManifest getManifest(){
+		return this.manifest;
+	}
+	
+	/**
+	 * @return number of times the connection to the machine has been established
+	 */
+	public int getConnectionCount(){
+		return this.cc == null ? 0 : this.cc.getConnectionCount();
+	}
+	
+	/**
+	 * @return one-line description of this instance and of its connection
+	 */
+	public String getStatus(){
+		if(this.cc == null)
+			return this.user + "@" + this.host + ":" + this.port + " " + this.remoteDir + " (not connected)";
+		return this.cc.getStatus() + " " + this.remoteDir;
+	}
+	
 	public boolean isRunning(){
 		return running;
 	}
@@ -0,0 +1,72 @@
+package dingo.server;
+
+/** Where a Bolt instance is installed: remote user, host, port and directory
+ * @author marco
+ *
+ */
+public class BoltLocation {
+	//Default SSH port is 22
+	public static final int DEFAULT_PORT = 22;
+
+	private String user;
+	private String host;
+	private int port;
+	private String remoteDir;
+
+	public BoltLocation(String user, String host, int port, String remoteDir){
+		this.user = user;
+		this.host = host;
+		this.port = port;
+		this.remoteDir = remoteDir;
+	}
+
+	/** Parses an address in the form username@host[:port]
+	 * @param address Address of the machine
+	 * @param remoteDir Remote directory where Bolt is installed
+	 * @return the location
+	 * @throws IllegalArgumentException if the address is not valid
+	 */
+	public static BoltLocation parse(String address, String remoteDir){
+		int at = address.indexOf('@');
+		if(at <= 0 || at == address.length() - 1)
+			throw new IllegalArgumentException("Invalid address: " + address);
+
+		String user = address.substring(0, at);
+		String host = address.substring(at + 1);
+		int port = DEFAULT_PORT;
+		int colon = host.indexOf(':');
+		if(colon >= 0){
+			try {
+				port = Integer.parseInt(host.substring(colon + 1));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid port in address: " + address);
+			}
+			host = host.substring(0, colon);
+		}
+		if(host.isEmpty())
+			throw new IllegalArgumentException("Invalid address: " + address);
+
+		return new BoltLocation(user, host, port, remoteDir);
+	}
+
+	public String getUser(){
+		return this.user;
+	}
+
+	public String getHost(){
+		return this.host;
+	}
+
+	public int getPort(){
+		return this.port;
+	}
+
+	public String getRemoteDir(){
+		return this.remoteDir;
+	}
+
+	@Override
+	public String toString(){
+		return this.user + "@" + this.host + ":" + this.port + " " + this.remoteDir;
+	}
+}
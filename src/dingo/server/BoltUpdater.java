@@ -1,86 +1,154 @@
 package dingo.server;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
-import dingo.CommandProtocol;
 import dingo.server.filesystem.UpdateEvent;
 
-/** Thread in charge of looking for updates on a Queue and propagate them to the cloud
+/** Thread in charge of looking for updates on a Queue and propagate them to the cloud. Every update is handed
+ *  to the {@link BoltWorker} of each Bolt instance, so all the machines are updated in parallel.
+ *  If a {@link ChangeJournal} is used, every update is appended to it first.
  * @author marco
  *
  */
 public class BoltUpdater implements Runnable{
 	private BlockingQueue<UpdateEvent> queue;
 	private BoltsManager manager;
-	
+	//Journal of the updates, can be null
+	private ChangeJournal journal;
+	//Maximum number of updates seen waiting in the queue
+	private volatile int highWater = 0;
+	private ConcurrentHashMap<BoltInstance, BoltWorker> workers = new ConcurrentHashMap<BoltInstance, BoltWorker>();
+
 	/** Creates a new BoltUpdater, associating it with a Manager and Queue
 	 * @param man BoltManager to associate the Updater with
 	 * @param q Queue to look for updates
 	 */
 	public BoltUpdater(BoltsManager man, BlockingQueue<UpdateEvent> q){
+		this(man, q, null);
+	}
+
+	/** Creates a new BoltUpdater that journals the updates before propagating them
+	 * @param man BoltManager to associate the Updater with
+	 * @param q Queue to look for updates
+	 * @param journal Journal of the updates, null if not used
+	 */
+	public BoltUpdater(BoltsManager man, BlockingQueue<UpdateEvent> q, ChangeJournal journal){
 		this.manager = man;
 		this.queue = q;
-		
+		this.journal = journal;
+
 		System.out.println("[Updater] Creating Updater... ");
 	}
-	
+
 	public void run() {
 		System.out.println("[Updater] Starting....");
 		this.waitForChanges();
 	}
-	
+
+	/** Starts propagating updates to a Bolt instance. An instance already known by the journal first gets
+	 *  the updates it missed since it last applied one.
+	 * @param instance Bolt instance just added to the cloud
+	 */
+	public synchronized void addInstance(BoltInstance instance){
+		BoltWorker worker = new BoltWorker(this.manager, instance, this.journal);
+		if(this.workers.putIfAbsent(instance, worker) != null)
+			return;
+
+		if(this.journal != null){
+			long offset = this.journal.getOffset(instance.getId());
+			long last = this.journal.getLastSequence();
+			if(offset < 0)
+				this.journal.acknowledge(instance.getId(), last);
+			else if(offset < last)
+				worker.replay(offset, last);
+		}
+		worker.start();
+	}
+
+	/** Stops propagating updates to a Bolt instance, pending updates are discarded
+	 * @param instance Bolt instance removed from the cloud
+	 */
+	public void removeInstance(BoltInstance instance){
+		//Not synchronized: the updater may be waiting for room in the queue of this very worker
+		BoltWorker worker = this.workers.remove(instance);
+		if(worker != null)
+			worker.shutdown();
+		if(this.journal != null)
+			this.journal.forget(instance.getId());
+	}
+
+	/** Queues a reconciliation of every instance, they are reconciled in parallel by their workers
+	 * @return number of instances that will be reconciled
+	 */
+	public int reconcileAll(){
+		for( BoltWorker worker: this.workers.values() ){
+			worker.reconcile();
+		}
+		return this.workers.size();
+	}
+
+	/** Queues a reconciliation of an instance
+	 * @param instance Bolt instance to reconcile
+	 */
+	public void reconcile(BoltInstance instance){
+		BoltWorker worker = this.workers.get(instance);
+		if(worker != null)
+			worker.reconcile();
+	}
+
+	/**
+	 * @return number of updates still to be propagated to the instance, -1 if the instance is unknown
+	 */
+	public int getPending(BoltInstance instance){
+		BoltWorker worker = this.workers.get(instance);
+		return worker == null ? -1 : worker.getPending();
+	}
+
+	/**
+	 * @return pending updates of the instance and their high-water mark, null if the instance is unknown
+	 */
+	public String getQueueStatus(BoltInstance instance){
+		BoltWorker worker = this.workers.get(instance);
+		return worker == null ? null : worker.getQueueStatus();
+	}
+
+	/**
+	 * @return updates waiting to be handed to the workers, and the maximum seen
+	 */
+	public String getQueueStatus(){
+		return this.queue.size() + " (max " + this.highWater + ")";
+	}
+
 	/** Wait for updates, blocks if no updates are available
-	 * 
+	 *
 	 */
 	private void waitForChanges(){
 		while(true){
 			try {
-				//Try to get an UpdateEvent, blocks if no updates are available 
+				//Try to get an UpdateEvent, blocks if no updates are available
 				UpdateEvent item = this.queue.take();
-				
+				int depth = this.queue.size() + 1;
+				if(depth > this.highWater)
+					this.highWater = depth;
+
+				//Instances added in the meantime get the update either from the journal or from here, never twice
 				synchronized(this){
-					for( BoltInstance cloudItem: this.manager.getCloud() ){
-						if(item.getType().equalsIgnoreCase(CommandProtocol.MESSAGE_DIRECTORY_ADDED)){
-							System.out.println("[Updater] Directory " + item.getFile() + " added, propagating change...");
-							cloudItem.directoryAdded(item.getFile(), this.manager.getLocalBaseDir() );
-						} else if(item.getType().equalsIgnoreCase(CommandProtocol.MESSAGE_FILE_ADDED)){
-							//I'm not considering files added in the archive directory
-							if( item.getFile().getParent().compareTo(this.manager.getLocalArchive().getParent()) != 0){
-								System.out.println("[Updater] File " + item.getFile() + " added, propagating change...");
-								cloudItem.fileAdded(item.getFile(), this.manager.getLocalBaseDir() );
-							}
-						}else if(item.getType().equalsIgnoreCase(CommandProtocol.MESSAGE_DIRECTORY_DELETED)){
-							System.out.println("[Updater] Directory " + item.getFile() + " deleted, propagating change...");
-							cloudItem.directoryDeleted(item.getFile(), this.manager.getLocalBaseDir() );
-						} else if(item.getType().equalsIgnoreCase(CommandProtocol.MESSAGE_FILE_DELETED)){
-							//Ignore deleting if it's the archive
-							if (item.getFile().compareTo(this.manager.getLocalArchive()) == 0){
-								System.out.println("[Updater] Archive " + item.getFile() + "deleted, but doing nothing!");
-							} else {
-								System.out.println("[Updater] File " + item.getFile() + " deleted, propagating change...");
-								cloudItem.fileDeleted(item.getFile(), this.manager.getLocalBaseDir() );
-							}
-						} else if(item.getType().equalsIgnoreCase(CommandProtocol.MESSAGE_DIRECTORY_CHANGED)){
-							//System.out.println("[Farmer] Directory " + item.getFile() + " modified, propagating change...");
-						} else if(item.getType().equalsIgnoreCase(CommandProtocol.MESSAGE_FILE_CHANGED)){
-							if (item.getFile().compareTo(this.manager.getLocalArchive()) == 0){
-								System.out.println("[Updater] Archive " + item.getFile() + "modified propagating change...");
-								cloudItem.archiveChanged(item.getFile());
-							} else {
-								System.out.println("[Updater] File " + item.getFile() + " modified, propagating change...");
-								cloudItem.fileChanged(item.getFile(), this.manager.getLocalBaseDir() );
-							}
-						}
+					if(this.journal != null)
+						item = this.journal.append(item);
+					//Every worker keeps its own order, a slow machine doesn't delay the others
+					for( BoltWorker worker: this.workers.values() ){
+						worker.submit(item);
 					}
-				} //End synchronized
-					
+				}
+
 			} catch (InterruptedException e) {
 				System.out.println("[Updater] Interrupted!");
 				e.printStackTrace();
 			}
-			
+
 		} //End while
-		
+
 	}
 
 }
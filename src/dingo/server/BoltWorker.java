@@ -0,0 +1,528 @@
+package dingo.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import dingo.Settings;
+import dingo.server.filesystem.UpdateEvent;
+import dingo.server.filesystem.UpdateEvent.Kind;
+
+/** Thread in charge of propagating updates to a single Bolt instance. Every instance has its own ordered queue,
+ *  so a slow or unreachable machine only delays itself. Big files are uploaded by a {@link BulkLane}, so they don't
+ *  hold back the updates queued after them. The queue is bounded: when it is full, depending on
+ *  OVERLOAD_POLICY, the pending updates are replaced by a single reconciliation or the updater waits.
+ *  When a {@link ChangeJournal} is used, the worker records the last change the instance applied, and replays
+ *  the changes that failed once the machine reconnects.
+ * @author marco
+ *
+ */
+public class BoltWorker implements Runnable{
+	private BlockingQueue<UpdateEvent> queue;
+	private BoltInstance instance;
+	private BoltsManager manager;
+	//Journal of the changes, can be null
+	private ChangeJournal journal;
+	private Thread thread;
+	private volatile boolean run;
+	//Connections of the instance already seen, a new one means the machine reconnected
+	private int connections;
+	//Sequence number of the last journaled change processed, applied or not
+	private long processed = -1;
+	//A change failed after the last one acknowledged in the journal
+	private volatile boolean missed = false;
+	//Uploads of big files
+	private BulkLane bulk;
+	private long bulkFileSize;
+
+	private int capacity;
+	//The updater waits when the queue is full, instead of collapsing it
+	private boolean blockWhenFull;
+	//Reconcile the instance when it reconnects and no journal tells the changes it missed
+	private boolean reconcileOnConnect;
+	private int highWater = 0;
+	private int overloads = 0;
+	//Reconciliation replacing the updates dropped when the queue was full, null if none is pending
+	private UpdateEvent overload;
+	//Last journaled update dropped, and whether deletions were dropped
+	private long overloadUpTo = -1;
+	private boolean overloadDeletes = false;
+
+	//Small files added or changed within this window are sent together in one bundle
+	private long batchWindow;
+	private long batchMaxFileSize;
+	private int batchMaxFiles;
+	private long batchMaxBytes;
+
+	/** Creates a new BoltWorker for a Bolt instance
+	 * @param man BoltsManager the instance belongs to
+	 * @param instance Bolt instance to keep updated
+	 */
+	public BoltWorker(BoltsManager man, BoltInstance instance){
+		this(man, instance, null);
+	}
+
+	/** Creates a new BoltWorker for a Bolt instance, recording in the journal the changes it applies
+	 * @param man BoltsManager the instance belongs to
+	 * @param instance Bolt instance to keep updated
+	 * @param journal Journal of the changes, null if not used
+	 */
+	public BoltWorker(BoltsManager man, BoltInstance instance, ChangeJournal journal){
+		this.manager = man;
+		this.instance = instance;
+		this.journal = journal;
+
+		Properties settings = man.getSettings();
+		this.batchWindow = Settings.getLong(settings, "BATCH_WINDOW", 200);
+		this.batchMaxFileSize = Settings.getLong(settings, "BATCH_MAX_FILE_SIZE", 64) * 1024;
+		this.batchMaxFiles = Settings.getInt(settings, "BATCH_MAX_FILES", 1000);
+		this.batchMaxBytes = 16 * 1024 * 1024;
+		this.bulkFileSize = Settings.getLong(settings, "BULK_FILE_SIZE", 1024) * 1024;
+		this.bulk = new BulkLane(this);
+
+		this.capacity = Math.max(16, Settings.getInt(settings, "HOST_QUEUE_SIZE", 10000));
+		this.blockWhenFull = "block".equalsIgnoreCase(settings.getProperty("OVERLOAD_POLICY", "reconcile").trim());
+		this.queue = new LinkedBlockingQueue<UpdateEvent>(this.capacity);
+		this.reconcileOnConnect = Boolean.parseBoolean(settings.getProperty("RECONCILE_ON_CONNECT", "true").trim());
+	}
+
+	/**
+	 * Starts the thread of this worker
+	 */
+	public void start(){
+		this.run = true;
+		this.connections = this.instance.getConnectionCount();
+		this.thread = new Thread(this, "BoltWorker " + this.instance.getUser() + "@" + this.instance.getHost());
+		this.thread.start();
+		if(this.bulkFileSize > 0)
+			this.bulk.start("BulkLane " + this.instance.getUser() + "@" + this.instance.getHost());
+	}
+
+	public void run() {
+		System.out.println("[Worker] Starting worker for " + this.instance.getHost() + "...");
+
+		while(this.run){
+			UpdateEvent item;
+			try {
+				//Blocks if no updates are available
+				item = this.queue.take();
+			} catch (InterruptedException e) {
+				if(this.run)
+					e.printStackTrace();
+				continue;
+			}
+
+			try {
+				//Big uploads of the same files go first
+				this.bulk.await(item);
+			} catch (InterruptedException e) {
+				continue;
+			}
+
+			if(this.isBatchable(item)){
+				//The event that closed the batch, if any, is applied after the batch
+				item = this.batch(item);
+				if(item == null){
+					this.checkReconnection();
+					continue;
+				}
+			}
+			this.done(item, this.apply(item));
+			this.checkReconnection();
+		}
+
+		System.out.println("[Worker] Worker for " + this.instance.getHost() + " stopped.");
+	}
+
+	/** Adds an update to the queue of this worker. If the queue is full, the caller waits or the pending updates
+	 *  are collapsed into a reconciliation, depending on the overload policy.
+	 * @param item UpdateEvent to propagate
+	 */
+	public void submit(UpdateEvent item){
+		if(this.blockWhenFull){
+			try {
+				this.queue.put(item);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized(this){
+				this.highWater = Math.max(this.highWater, this.queue.size());
+			}
+		} else {
+			this.offer(item);
+		}
+	}
+
+	/** Adds an update to the queue, collapsing the queue if it is full
+	 */
+	private synchronized void offer(UpdateEvent item){
+		//Covered by the reconciliation already pending
+		if(this.overload != null && this.collapse(item))
+			return;
+		if(this.queue.offer(item)){
+			this.highWater = Math.max(this.highWater, this.queue.size());
+			return;
+		}
+
+		System.out.println("[Worker] " + this.instance.getHost() + " is " + this.queue.size() + " updates behind, replacing them with a reconciliation...");
+		this.overloads++;
+		List<UpdateEvent> pending = new ArrayList<UpdateEvent>(this.queue.size() + 1);
+		this.queue.drainTo(pending);
+		pending.add(item);
+		this.overload = new UpdateEvent(this.manager.getLocalBaseDir(), Kind.RECONCILE_NEEDED);
+		this.queue.offer(this.overload);
+		for(UpdateEvent update: pending){
+			if(!this.collapse(update))
+				this.queue.offer(update);
+		}
+	}
+
+	/** Drops an update covered by the pending overload reconciliation
+	 * @return false if the update has to be applied anyway
+	 */
+	private boolean collapse(UpdateEvent item){
+		//Reconciliation doesn't deploy the archive
+		if(item.isArchive())
+			return false;
+		if(item.getKind().isDeleted())
+			this.overloadDeletes = true;
+		this.overloadUpTo = Math.max(this.overloadUpTo, item.getSequence());
+		return true;
+	}
+
+	/** Creates the Reconciler for a reconciliation request. The overload reconciliation replaces dropped updates,
+	 *  so it deletes extra remote files if deletions were dropped; updates arriving from now on are applied normally.
+	 */
+	private synchronized Reconciler reconciler(UpdateEvent item){
+		if(item != this.overload)
+			return new Reconciler(this.instance, this.manager);
+
+		this.overload = null;
+		boolean deletes = this.overloadDeletes;
+		if(this.journal != null && this.overloadUpTo > this.processed){
+			//Acknowledged when the reconciliation succeeds
+			this.processed = this.overloadUpTo;
+			this.missed = true;
+		}
+		this.overloadUpTo = -1;
+		this.overloadDeletes = false;
+		return new Reconciler(this.instance, this.manager, deletes);
+	}
+
+	/** Queues a reconciliation of the instance with the local base directory
+	 */
+	public void reconcile(){
+		this.submit(new UpdateEvent(this.manager.getLocalBaseDir(), Kind.RECONCILE_NEEDED));
+	}
+
+	/** Queues the journaled changes the instance didn't apply before it was added to this worker, e.g. before a restart
+	 * @param offset Sequence number of the last change the instance applied
+	 * @param last Sequence number of the last change already in the journal
+	 */
+	public void replay(long offset, long last){
+		List<UpdateEvent> changes = this.journal.read(offset, last, this.manager.getPathTable());
+		if(changes == null){
+			System.out.println("[Worker] Changes missed by " + this.instance.getHost() + " are not in the journal anymore, reconciling...");
+			//Acknowledged when the reconciliation succeeds
+			this.processed = last;
+			this.missed = true;
+			this.reconcile();
+			return;
+		}
+		if(!changes.isEmpty())
+			System.out.println("[Worker] Replaying " + changes.size() + " changes missed by " + this.instance.getHost() + "...");
+		//The worker is not running yet, waiting for room would never end
+		for(UpdateEvent change: changes){
+			this.offer(change);
+		}
+	}
+
+	/** Changes made while the machine was unreachable may have been lost, so they are replayed after every reconnection.
+	 *  Without a journal there is no way to know which changes are missing, and the instance is reconciled.
+	 */
+	private void checkReconnection(){
+		int count = this.instance.getConnectionCount();
+		if(count <= this.connections)
+			return;
+		this.connections = count;
+
+		if(this.journal == null){
+			if(!this.reconcileOnConnect)
+				return;
+			System.out.println("[Worker] " + this.instance.getHost() + " reconnected, reconciling...");
+			new Reconciler(this.instance, this.manager).run();
+			return;
+		}
+		if(!this.missed)
+			return;
+
+		List<UpdateEvent> changes = this.journal.read(this.journal.getOffset(this.instance.getId()), this.processed, this.manager.getPathTable());
+		if(changes == null){
+			System.out.println("[Worker] " + this.instance.getHost() + " reconnected, missed changes are not in the journal anymore, reconciling...");
+			this.missed = !new Reconciler(this.instance, this.manager).run();
+		} else {
+			System.out.println("[Worker] " + this.instance.getHost() + " reconnected, replaying " + changes.size() + " changes...");
+			this.missed = false;
+			for(UpdateEvent change: changes){
+				this.missed = !this.apply(change) || this.missed;
+			}
+		}
+		this.acknowledge();
+	}
+
+	/** Records in the journal that a change has been processed
+	 * @param item Change processed
+	 * @param applied true if the change has been applied
+	 */
+	private synchronized void done(UpdateEvent item, boolean applied){
+		if(item.getSequence() < 0 || this.journal == null)
+			return;
+
+		this.processed = item.getSequence();
+		if(!applied)
+			this.missed = true;
+		this.acknowledge();
+	}
+
+	/** Records in the journal that a big file has been uploaded
+	 * @param item Upload done
+	 * @param applied true if the file has been uploaded
+	 */
+	synchronized void bulkDone(UpdateEvent item, boolean applied){
+		if(!applied)
+			this.missed = true;
+		this.acknowledge();
+	}
+
+	/** Moves the offset of the instance in the journal as far as possible: it stops at the last change before the
+	 *  first failure, and before the first big upload not done yet
+	 */
+	private synchronized void acknowledge(){
+		if(this.journal == null || this.missed || this.processed < 0)
+			return;
+
+		long upTo = this.processed;
+		long uploading = this.bulk.getFirstPending();
+		if(uploading >= 0)
+			upTo = Math.min(upTo, uploading - 1);
+		this.journal.acknowledge(this.instance.getId(), upTo);
+	}
+
+	/** Collects the small file events following the first one, until the window expires, the batch is full or
+	 *  an event that can't be batched arrives, then sends the whole batch.
+	 * @param first First event of the batch
+	 * @return the event that closed the batch, to be applied next, or null
+	 */
+	private UpdateEvent batch(UpdateEvent first){
+		LinkedHashSet<Path> files = new LinkedHashSet<Path>();
+		files.add(first.getFile());
+		UpdateEvent last = first;
+		long bytes = this.sizeOf(first);
+		long deadline = System.currentTimeMillis() + this.batchWindow;
+
+		UpdateEvent next = null;
+		while(this.run && files.size() < this.batchMaxFiles && bytes < this.batchMaxBytes){
+			long wait = deadline - System.currentTimeMillis();
+			if(wait <= 0)
+				break;
+			try {
+				next = this.queue.poll(wait, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				next = null;
+				break;
+			}
+			if(next == null)
+				break;
+			try {
+				this.bulk.await(next);
+			} catch (InterruptedException e) {
+				break;
+			}
+			if(!this.isBatchable(next))
+				break;
+
+			files.add(next.getFile());
+			last = next;
+			bytes += this.sizeOf(next);
+			next = null;
+		}
+		if(!this.run)
+			return null;
+
+		boolean applied = true;
+		if(files.size() == 1){
+			applied = this.apply(first);
+		} else if(!this.instance.filesBundled(new ArrayList<Path>(files), this.manager.getLocalBaseDir())){
+			System.out.println("[Worker] Bundle failed, sending " + files.size() + " files one by one to " + this.instance.getHost() + "...");
+			for(Path file: files){
+				applied = this.apply(new UpdateEvent(file, Files.isDirectory(file) ? Kind.DIRECTORY_ADDED : Kind.FILE_ADDED)) && applied;
+			}
+		}
+		this.done(last, applied);
+		return next;
+	}
+
+	/**
+	 * @return true if the event is a new directory or a small file added or changed, that can be sent in a bundle
+	 */
+	private boolean isBatchable(UpdateEvent item){
+		if(this.batchWindow <= 0)
+			return false;
+
+		switch(item.getKind()){
+		case DIRECTORY_ADDED:
+			return true;
+		case FILE_ADDED:
+			//Files added in the archive directory are not propagated at all
+			if(item.isInArchiveDirectory())
+				return false;
+			break;
+		case FILE_CHANGED:
+			if(item.isArchive())
+				return false;
+			break;
+		default:
+			return false;
+		}
+
+		long size = this.sizeOf(item);
+		return size >= 0 && size <= this.batchMaxFileSize;
+	}
+
+	/**
+	 * @return size of the file of the event, 0 for directories, -1 if it can't be read
+	 */
+	private long sizeOf(UpdateEvent item){
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(item.getFile(), BasicFileAttributes.class);
+			return attributes.isDirectory() ? 0 : attributes.size();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/** Propagates a single update to the Bolt instance
+	 * @param item UpdateEvent to propagate
+	 * @return false if the update failed
+	 */
+	private boolean apply(UpdateEvent item){
+		switch(item.getKind()){
+		case DIRECTORY_ADDED:
+			System.out.println("[Worker] Directory " + item.getFile() + " added, propagating change to " + this.instance.getHost() + "...");
+			return this.instance.directoryAdded(item.getFile(), this.manager.getLocalBaseDir() );
+		case FILE_ADDED:
+			//I'm not considering files added in the archive directory
+			if(!item.isInArchiveDirectory()){
+				if(this.isBulk(item)){
+					this.bulk.add(item);
+					return true;
+				}
+				System.out.println("[Worker] File " + item.getFile() + " added, propagating change to " + this.instance.getHost() + "...");
+				return this.upload(item);
+			}
+			return true;
+		case DIRECTORY_DELETED:
+			System.out.println("[Worker] Directory " + item.getFile() + " deleted, propagating change to " + this.instance.getHost() + "...");
+			return this.instance.directoryDeleted(item.getFile(), this.manager.getLocalBaseDir() );
+		case FILE_DELETED:
+			//Ignore deleting if it's the archive
+			if (item.isArchive()){
+				System.out.println("[Worker] Archive " + item.getFile() + "deleted, but doing nothing!");
+				return true;
+			}
+			System.out.println("[Worker] File " + item.getFile() + " deleted, propagating change to " + this.instance.getHost() + "...");
+			return this.instance.fileDeleted(item.getFile(), this.manager.getLocalBaseDir() );
+		case DIRECTORY_CHANGED:
+			//System.out.println("[Worker] Directory " + item.getFile() + " modified, propagating change...");
+			return true;
+		case FILE_CHANGED:
+			if (item.isArchive()){
+				System.out.println("[Worker] Archive " + item.getFile() + "modified propagating change to " + this.instance.getHost() + "...");
+				return this.instance.archiveChanged(item.getFile(), this.manager.getArchiveManifest());
+			}
+			if(this.isBulk(item)){
+				this.bulk.add(item);
+				return true;
+			}
+			System.out.println("[Worker] File " + item.getFile() + " modified, propagating change to " + this.instance.getHost() + "...");
+			return this.upload(item);
+		case RECONCILE_NEEDED:
+			//After a successful reconciliation nothing is missing anymore
+			if(this.reconciler(item).run()){
+				this.missed = false;
+				this.acknowledge();
+			}
+			return true;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the event is a file big enough to be uploaded by the bulk lane
+	 */
+	private boolean isBulk(UpdateEvent item){
+		return this.bulkFileSize > 0 && this.sizeOf(item) > this.bulkFileSize;
+	}
+
+	/** Uploads a big file, called by the bulk lane
+	 * @param item File added or changed
+	 * @return false if the upload failed
+	 */
+	boolean applyBulk(UpdateEvent item){
+		if(item.getKind() == Kind.FILE_ADDED)
+			System.out.println("[Worker] Big file " + item.getFile() + " added, propagating change to " + this.instance.getHost() + "...");
+		else
+			System.out.println("[Worker] Big file " + item.getFile() + " modified, propagating change to " + this.instance.getHost() + "...");
+		return this.upload(item);
+	}
+
+	/** Uploads a file added or changed, from another instance if there is a relay tree
+	 * @return false if the upload failed
+	 */
+	private boolean upload(UpdateEvent item){
+		RelayTree relay = this.manager.getRelayTree();
+		if(relay != null)
+			return relay.upload(this.instance, item, this.manager.getLocalBaseDir());
+		if(item.getKind() == Kind.FILE_ADDED)
+			return this.instance.fileAdded(item.getFile(), this.manager.getLocalBaseDir());
+		return this.instance.fileChanged(item.getFile(), this.manager.getLocalBaseDir());
+	}
+
+	/**
+	 * @return number of updates waiting to be propagated
+	 */
+	public int getPending(){
+		return this.queue.size();
+	}
+
+	/**
+	 * @return pending updates, maximum number of updates that were pending at the same time, and how many times the queue was full
+	 */
+	public synchronized String getQueueStatus(){
+		return this.queue.size() + "/" + this.capacity + " (max " + this.highWater + ", " + this.overloads + " overloads), big uploads: " + this.bulk.size();
+	}
+
+	/**
+	 * @return Bolt instance served by this worker
+	 */
+	public BoltInstance getInstance(){
+		return this.instance;
+	}
+
+	//Method to stop the thread, pending updates are discarded
+	public void shutdown(){
+		this.run = false;
+		this.queue.clear();
+		this.bulk.shutdown();
+		if(this.thread != null)
+			this.thread.interrupt();
+	}
+}
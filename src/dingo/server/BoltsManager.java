@@ -1,15 +1,39 @@
 package dingo.server;
 
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import communication.BandwidthLimiter;
+import communication.CompressionCache;
 import communication.GAccessInfo;
+import dingo.Settings;
+import dingo.server.archive.ArchiveManifest;
+import dingo.server.filesystem.EventCoalescer;
+import dingo.server.filesystem.EventRing;
+import dingo.server.filesystem.FileIndex;
+import dingo.server.filesystem.IgnoreRules;
+import dingo.server.filesystem.PathTable;
 import dingo.server.filesystem.UpdateEvent;
 import dingo.server.filesystem.WatchDog;
+import dingo.server.filesystem.WatchHub;
 
 /** Responsible of keeping remote instances associated with a specific version of Bolt running and
  *  updated.
@@ -19,73 +43,252 @@ import dingo.server.filesystem.WatchDog;
  */
 public class BoltsManager {
 	private String versionNumber = "0.1";
+	private String name;
 	private Path localBaseDir;
 	private Path localArchive;
 	
+	private Properties settings;
+	
 	private WatchDog wd;
+	private EventRing events;
+	private EventCoalescer coalescer;
 	private BoltUpdater updater;
 	
+	//Content of the local archive, compared to the deployed one when the archive changes
+	private ArchiveManifest manifest;
+	//Compressed files, shared by all the instances
+	private CompressionCache compression;
+	//Rate of the data sent to all the instances together
+	private BandwidthLimiter bandwidth;
+	//Persistent index of the local files, null if not configured
+	private FileIndex files;
+	//Journal of the changes propagated, null if not configured
+	private ChangeJournal journal;
+	//Ids of the paths of the events
+	private PathTable paths;
+	//Paths of the base directory not replicated
+	private IgnoreRules ignore;
+	//Instances big files are copied from, null if the server sends them to every instance
+	private RelayTree relay;
+	
+	//Reports the progress of the machines being provisioned, shared by all the managers
+	private static final Timer PROGRESS = new Timer("Provisioning progress", true);
+	//Milliseconds between two progress reports of a machine
+	private static final long PROGRESS_INTERVAL = 1000;
+	
 	private HashSet<BoltInstance> cloud = new HashSet<BoltInstance>();
+	//WatchService shared with the other managers, null to use one of its own
+	private WatchHub watches;
+	//Threads provisioning machines, shared with the other managers, null to start them for every request
+	private ExecutorService pool;
 	
 	
 	/** Creates a new manager, given a specific local directory and archive file
 	 * @param baseDir local Path of the current Bolt Instance, has to be absolute (start from root)
 	 * @param archive  local Path of the current Bolt archive, has to be absolute
+	 * @param settings Dingo settings
 	 */
-	public BoltsManager(Path baseDir, Path archive){
-		System.out.println("[Manager] Initializing manager, local directory: " + baseDir + ", archive: " + archive );
+	public BoltsManager(Path baseDir, Path archive, Properties settings){
+		this("default", baseDir, archive, settings, null, null);
+	}
+	
+	/** Creates a new named manager, sharing the WatchService and the provisioning threads with the other managers
+	 * @param name Name of the manager
+	 * @param baseDir local Path of the current Bolt Instance, has to be absolute (start from root)
+	 * @param archive  local Path of the current Bolt archive, has to be absolute
+	 * @param settings Settings of this manager
+	 * @param watches Shared WatchService, null to use one of its own
+	 * @param pool Shared provisioning threads, null to start them for every request
+	 */
+	public BoltsManager(String name, Path baseDir, Path archive, Properties settings, WatchHub watches, ExecutorService pool){
+		System.out.println("[Manager] Initializing manager " + name + ", local directory: " + baseDir + ", archive: " + archive );
+		this.name = name;
+		this.watches = watches;
+		this.pool = pool;
 		this.localBaseDir = baseDir;
 		this.localArchive = archive;
+		this.settings = settings;
+		this.paths = new PathTable(archive);
+		this.ignore = this.loadIgnoreRules();
+		
+		long cacheSize = Settings.getLong(settings, "COMPRESSION_CACHE_SIZE", 64) * 1024 * 1024;
+		if(cacheSize > 0)
+			this.compression = new CompressionCache(cacheSize);
+		
+		this.bandwidth = new BandwidthLimiter(Settings.getLong(settings, "BANDWIDTH_LIMIT", 0) * 1024, this.getBulkThreshold(), null);
+		if(Settings.getInt(settings, "RELAY_FANOUT", 0) > 0)
+			this.relay = new RelayTree(this);
 	}
 	
-	/** Adds a computer to the cloud, takes care of copying and decompressing the archive into the remote directory, 
-	 *  cancel the archive, compile and see if everything works fine, adding the computer to the cloud and keeping it 
-	 *  updated with this version.
-	 * @param user to access the computer with
-	 * @param host ip address of the computer
-	 * @param port used for communication
-	 * @param path Remote Path where to install Bolt
-	 * @param in *testing*
-	 * @param out *testing*
-	 * @return true if the computer has been successfully initialized and added to the cloud. 
+	/** Adds many computers to the cloud, installing Bolt on up to PROVISIONING_PARALLELISM machines at the same time
+	 * @param locations Machines to add
+	 * @param listener Notified of the progress of every machine and of its result as soon as it is known
+	 * @return true if all the machines have been successfully added to the cloud, false if some failed or the
+	 *  provisioning has been interrupted: the machines already provisioned stay in the cloud
 	 */
-	public synchronized boolean addComputer(String user, String host, int port, String path, InputStream in, OutputStream out){
+	public boolean addComputers(List<BoltLocation> locations, final ProvisioningListener listener){
+		if(locations.isEmpty())
+			return true;
 		
-		GAccessInfo gui = new GAccessInfo();
+		ExecutorService pool = this.pool;
+		if(pool == null){
+			int parallelism = Math.max(1, Math.min(locations.size(), Settings.getInt(this.settings, "PROVISIONING_PARALLELISM", 8)));
+			System.out.println("[Manager] Provisioning " + locations.size() + " machines, " + parallelism + " at a time...");
+			pool = Executors.newFixedThreadPool(parallelism);
+		} else {
+			System.out.println("[Manager] Provisioning " + locations.size() + " machines on the shared threads...");
+		}
 		
-		BoltInstance item = new BoltInstance(user, host, port, gui, path, in, out);
+		ExecutorCompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(pool);
+		HashMap<Future<Boolean>, BoltLocation> tasks = new HashMap<Future<Boolean>, BoltLocation>();
+		for(final BoltLocation location: locations){
+			Future<Boolean> task = completion.submit(new Callable<Boolean>() {
+				public Boolean call() {
+					BoltInstance item = provision(location, listener);
+					return item != null && register(item);
+				}
+			});
+			tasks.put(task, location);
+		}
+		if(pool != this.pool)
+			pool.shutdown();
 		
-		if( item.initialize(this.localArchive) ){
-			System.out.println("[Manager] Bolt instance initialized successfully!");
-			this.cloud.add(item);
+		boolean allAdded = true;
+		for(int i=0; i<locations.size(); i++){
+			Future<Boolean> task;
+			boolean added;
+			try {
+				task = completion.take();
+			} catch (InterruptedException e) {
+				System.out.println("[Manager] Interrupted while provisioning!");
+				for(Future<Boolean> pending: tasks.keySet()){
+					pending.cancel(true);
+				}
+				return false;
+			}
+			try {
+				added = task.get();
+			} catch (InterruptedException | ExecutionException e) {
+				e.printStackTrace();
+				added = false;
+			}
 			
-			// If it's the first computer, initialize WatchDog
-			if(this.cloud.size() == 1) {
-				//Create the Queue
-				BlockingQueue<UpdateEvent> q = new LinkedBlockingQueue<UpdateEvent>();
-				
-				//Starting updater Thread
-				System.out.println("[Manager] Starting Updater...");
-				this.updater = new BoltUpdater(this, q);
-				new Thread(this.updater).start();
+			allAdded = allAdded && added;
+			listener.provisioned(tasks.get(task), added);
+		}
+		
+		return allAdded;
+	}
+	
+	/** Installs Bolt on a computer, copying and decompressing the archive into the remote directory. 
+	 *  The computer is not part of the cloud yet.
+	 * @param location Machine to install Bolt on
+	 * @param listener Notified of the progress of the installation, null if not needed
+	 * @return the initialized instance, null if the installation failed or has been interrupted
+	 */
+	private BoltInstance provision(final BoltLocation location, final ProvisioningListener listener){
+		
+		GAccessInfo gui = new GAccessInfo();
+		
+		final BoltInstance item = new BoltInstance(location.getUser(), location.getHost(), location.getPort(), gui, location.getRemoteDir(), null, null);
+		item.setCompressionCache(this.compression);
+		//Every instance has its own limit, within the global one
+		item.setBandwidthLimiter(new BandwidthLimiter(Settings.getLong(this.settings, "HOST_BANDWIDTH_LIMIT", 0) * 1024, this.getBulkThreshold(), this.bandwidth));
+		item.setStreamDeploy(!"staged".equalsIgnoreCase(this.settings.getProperty("DEPLOY_MODE", "stream").trim()));
+		
+		ArchiveManifest manifest = this.getArchiveManifest();
+		
+		//Reports the phase and the bytes sent when they change
+		TimerTask progress = null;
+		if(listener != null){
+			progress = new TimerTask() {
+				private String phase;
+				private long sent = -1;
 				
-				//Starting WatchDog Thread
-				try {
-					this.wd = new WatchDog(q, this.localBaseDir, this.localArchive);
-					System.out.println("[Manager] Starting Directory WatchDog...");
-					new Thread(this.wd).start();
-				} catch (InstantiationException e) {
-					System.out.println("[Manager] Error instantiating WatchDog!");
-					e.printStackTrace();
-					}
+				public synchronized void run() {
+					String phase = item.getPhase();
+					long sent = item.getBandwidthLimiter().getTransferred();
+					if(phase == null || (phase.equals(this.phase) && sent == this.sent))
+						return;
+					this.phase = phase;
+					this.sent = sent;
+					listener.progress(location, phase, sent);
+				}
+			};
+			PROGRESS.schedule(progress, 0, PROGRESS_INTERVAL);
+		}
+		boolean initialized;
+		try {
+			initialized = item.initialize(this.localArchive);
+		} finally {
+			if(progress != null){
+				progress.cancel();
+				progress.run();
 			}
-			
-			System.out.println("[Manager] Returning true to the terminal....	");
-			return true;
+		}
+		
+		if( initialized && !Thread.currentThread().isInterrupted() ){
+			System.out.println("[Manager] Bolt instance " + location + " initialized successfully!");
+			item.setManifest(manifest);
+			return item;
 		} else {
-			System.out.println("[Manager] Failed to initialize Bolt instance.");
+			System.out.println("[Manager] Failed to initialize Bolt instance " + location + ".");
+			item.close();
+			return null;
+		}
+	}
+	
+	/** Adds an initialized instance to the cloud and starts keeping it updated
+	 * @param item Initialized Bolt instance
+	 * @return false if the provisioning has been interrupted meanwhile, the instance is not added
+	 */
+	private synchronized boolean register(BoltInstance item){
+		//The job may have been cancelled after the instance was initialized
+		if(Thread.currentThread().isInterrupted()){
+			System.out.println("[Manager] Provisioning interrupted, Bolt instance " + item.getHost() + " not added.");
+			item.close();
 			return false;
 		}
+		this.cloud.add(item);
+		
+		// If it's the first computer, initialize WatchDog
+		if(this.updater == null) {
+			//Create the Queues: raw events from the WatchDog, merged events for the updater
+			//Both are bounded, a full queue makes the stages before it wait
+			EventRing rawQ = new EventRing(Math.max(1024, Settings.getInt(this.settings, "EVENT_RING_SIZE", 65536)));
+			BlockingQueue<UpdateEvent> q = new LinkedBlockingQueue<UpdateEvent>(Math.max(16, Settings.getInt(this.settings, "UPDATE_QUEUE_SIZE", 10000)));
+			this.events = rawQ;
+			
+			//Starting updater Thread
+			System.out.println("[Manager] Starting Updater...");
+			this.updater = new BoltUpdater(this, q, this.openJournal());
+			new Thread(this.updater).start();
+			
+			//Starting coalescer Thread
+			System.out.println("[Manager] Starting event coalescer...");
+			this.coalescer = new EventCoalescer(rawQ, this.paths, q, Settings.getLong(this.settings, "EVENT_QUIET_WINDOW", 300));
+			new Thread(this.coalescer).start();
+			
+			//Starting WatchDog Thread
+			try {
+				this.wd = new WatchDog(rawQ, this.paths, this.localBaseDir, this.localArchive, this.openFileIndex(), this.ignore, this.watches);
+				System.out.println("[Manager] Starting Directory WatchDog...");
+				new Thread(this.wd).start();
+			} catch (InstantiationException e) {
+				System.out.println("[Manager] Error instantiating WatchDog!");
+				e.printStackTrace();
+				}
+		}
+		
+		//Every instance is updated by its own worker
+		if(this.relay != null)
+			this.relay.add(item);
+		this.updater.addInstance(item);
+		
+		//Files of the base directory changed before the instance was added are not reported by the WatchDog
+		if(Boolean.parseBoolean(this.settings.getProperty("RECONCILE_ON_CONNECT", "true").trim()))
+			this.updater.reconcile(item);
+		return true;
 	}
 	
 	/** Removes a computer from the cloud. Takes care of stopping the execution 
@@ -98,6 +301,10 @@ public class BoltsManager {
 		for(BoltInstance item: this.cloud){
 			//Check if there is an instance to cancel
 			if(item.getUser().compareTo(user)==0 && item.getHost().compareTo(host)==0 && item.getPort()==port){
+				//Stop propagating updates before cancelling files
+				this.updater.removeInstance(item);
+				if(this.relay != null)
+					this.relay.remove(item);
 				if(item.destroy()==true){
 					System.out.println("[Dingo] Bolt instance removed successfully!");
 					this.cloud.remove(item);
@@ -118,19 +325,179 @@ public class BoltsManager {
 	/** Shuts down the entire manager, removing all the computers from the cloud
 	 * @return true if the manager has been correctly shutted down
 	 */
-	public boolean shutdown(){
-		for(BoltInstance item: this.cloud){
+	public synchronized boolean shutdown(){
+		boolean removed = true;
+		Iterator<BoltInstance> items = this.cloud.iterator();
+		while(items.hasNext()){
+			BoltInstance item = items.next();
+			if(this.updater != null)
+				this.updater.removeInstance(item);
+			if(this.relay != null)
+				this.relay.remove(item);
 			if(item.destroy()==true){
 				System.out.println("[Dingo] Bolt instance removed successfully!");
-				return true;
+				items.remove();
 			} else {
 				System.out.println("[Dingo] Wasn't able to remove the instance!");
-				return false;
+				removed = false;
 			}
 		}
 		
-		System.out.println("[Dingo] All Bolt instances successfully removed!");
-		return true;
+		if(removed)
+			System.out.println("[Dingo] All Bolt instances successfully removed!");
+		return removed;
+	}
+	
+	/**
+	 * @return Status of every Bolt instance of this manager
+	 */
+	public synchronized Vector<String> getStatus(){
+		Vector<String> result = new Vector<String>();
+		for(BoltInstance item: this.cloud){
+			String status = item.getStatus() + ", pending updates: " + this.updater.getQueueStatus(item) + ", bandwidth: " + item.getBandwidthLimiter();
+			if(this.relay != null)
+				status = status + ", big files from: " + this.relay.describe(item);
+			result.add(status);
+		}
+		return result;
+	}
+	
+	/** Reconciles every instance with the local base directory, in background
+	 * @return number of instances that will be reconciled
+	 */
+	public synchronized int reconcile(){
+		if(this.updater == null)
+			return 0;
+		return this.updater.reconcileAll();
+	}
+	
+	/** Opens the persistent index of the local files, if configured
+	 * @return the index, null if it is not configured or can't be opened
+	 */
+	private FileIndex openFileIndex(){
+		String path = this.settings.getProperty("FILE_INDEX", "").trim();
+		if(path.isEmpty())
+			return null;
+		
+		try {
+			this.files = FileIndex.open(FileSystems.getDefault().getPath(path));
+		} catch (IOException e) {
+			System.out.println("[Manager] Unable to open the file index " + path + ", going on without it.");
+			e.printStackTrace();
+		}
+		return this.files;
+	}
+	
+	/** Reads the rules of the paths not to replicate, from IGNORE_FILE
+	 * @return the rules, empty if the file doesn't exist or can't be read
+	 */
+	private IgnoreRules loadIgnoreRules(){
+		Path file = this.localBaseDir.resolve(this.settings.getProperty("IGNORE_FILE", ".dingoignore").trim());
+		try {
+			IgnoreRules rules = IgnoreRules.load(this.localBaseDir, file);
+			if(!rules.isEmpty())
+				System.out.println("[Manager] " + rules.size() + " ignore rules read from " + file);
+			return rules;
+		} catch (IOException e) {
+			System.out.println("[Manager] Unable to read the ignore rules " + file + ", nothing will be ignored.");
+			e.printStackTrace();
+			return new IgnoreRules(this.localBaseDir, new ArrayList<String>());
+		}
+	}
+	
+	/** Opens the journal of the changes, if configured
+	 * @return the journal, null if it is not configured or can't be opened
+	 */
+	private ChangeJournal openJournal(){
+		String path = this.settings.getProperty("CHANGE_JOURNAL", "").trim();
+		if(path.isEmpty())
+			return null;
+		
+		long size = Math.max(1, Settings.getLong(this.settings, "CHANGE_JOURNAL_SIZE", 16)) * 1024 * 1024;
+		try {
+			this.journal = ChangeJournal.open(FileSystems.getDefault().getPath(path), size);
+		} catch (IOException e) {
+			System.out.println("[Manager] Unable to open the change journal " + path + ", going on without it.");
+			e.printStackTrace();
+		}
+		return this.journal;
+	}
+	
+	/**
+	 * @return ids of the paths of the events
+	 */
+	protected PathTable getPathTable(){
+		return this.paths;
+	}
+	
+	/**
+	 * @return journal of the changes, null if not used
+	 */
+	protected ChangeJournal getJournal(){
+		return this.journal;
+	}
+	
+	/**
+	 * @return persistent index of the local files, null if not used
+	 */
+	protected FileIndex getFileIndex(){
+		return this.files;
+	}
+	
+	/**
+	 * @return tree big files are relayed through, null if not used
+	 */
+	protected RelayTree getRelayTree(){
+		return this.relay;
+	}
+	
+	/**
+	 * @return paths of the base directory not replicated
+	 */
+	protected IgnoreRules getIgnoreRules(){
+		return this.ignore;
+	}
+	
+	/**
+	 * @return depth and high-water mark of the queues shared by all the instances
+	 */
+	public synchronized String getQueueStatus(){
+		if(this.updater == null)
+			return "idle";
+		return "raw events " + this.events.size() + "/" + this.events.capacity() + " (max " + this.events.getHighWater() + "), updates " + this.updater.getQueueStatus();
+	}
+	
+	/**
+	 * @return bytes after which a transfer gives way to the others
+	 */
+	private long getBulkThreshold(){
+		long bulkFileSize = Settings.getLong(this.settings, "BULK_FILE_SIZE", 1024) * 1024;
+		return bulkFileSize > 0 ? bulkFileSize : Long.MAX_VALUE;
+	}
+	
+	/**
+	 * @return one-line description of the bandwidth used by this manager
+	 */
+	public String getBandwidthStatus(){
+		return this.bandwidth.toString();
+	}
+	
+	/**
+	 * @return one-line description of the relay tree of this manager
+	 */
+	public String getRelayStatus(){
+		if(this.relay == null)
+			return "disabled";
+		return this.relay.toString();
+	}
+	
+	/**
+	 * @return one-line description of the compression cache of this manager
+	 */
+	public String getCompressionStatus(){
+		if(this.compression == null)
+			return "disabled";
+		return this.compression.toString();
 	}
 	
 	/**
@@ -140,6 +507,13 @@ public class BoltsManager {
 		return this.cloud;
 	}
 	
+	/**
+	 * @return Dingo settings
+	 */
+	protected Properties getSettings() {
+		return this.settings;
+	}
+	
 	/**
 	 * @return current version number of this manager
 	 */
@@ -147,6 +521,13 @@ public class BoltsManager {
 		return this.versionNumber;
 	}
 
+	/**
+	 * @return name of this manager
+	 */
+	public String getName() {
+		return this.name;
+	}
+	
 	/**
 	 * @return current local directory of this manager
 	 */
@@ -154,6 +535,23 @@ public class BoltsManager {
 		return this.localBaseDir;
 	}
 	
+	/** Reads the manifest of the local archive, the manifest is read again only if the archive changed
+	 * @return manifest of the current local archive, null if it can't be read
+	 */
+	protected synchronized ArchiveManifest getArchiveManifest(){
+		if(this.manifest == null || !this.manifest.isCurrent()){
+			try {
+				System.out.println("[Manager] Reading manifest of " + this.localArchive + "...");
+				this.manifest = ArchiveManifest.read(this.localArchive);
+			} catch (IOException e) {
+				System.out.println("[Manager] Unable to read the archive manifest.");
+				e.printStackTrace();
+				this.manifest = null;
+			}
+		}
+		return this.manifest;
+	}
+	
 	/**
 	 * @return current local archive of this manager
 	 */
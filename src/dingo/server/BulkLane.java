@@ -0,0 +1,135 @@
+package dingo.server;
+
+import java.nio.file.Path;
+import java.util.LinkedList;
+
+import dingo.server.filesystem.UpdateEvent;
+import dingo.server.filesystem.UpdateEvent.Kind;
+
+/** Second lane of a {@link BoltWorker}: uploads big files in order, on their own thread, while the worker goes on with
+ *  deletions, directories and small files. The worker waits for the lane only when an update touches a file the
+ *  lane is still uploading.
+ * @author marco
+ *
+ */
+public class BulkLane implements Runnable{
+	private BoltWorker worker;
+	private LinkedList<UpdateEvent> pending = new LinkedList<UpdateEvent>();
+	//Upload in progress, null if none
+	private UpdateEvent running;
+	private Thread thread;
+	private volatile boolean run;
+
+	/**
+	 * @param worker Worker the uploads are applied by
+	 */
+	public BulkLane(BoltWorker worker){
+		this.worker = worker;
+	}
+
+	/**
+	 * Starts the thread of this lane
+	 * @param name Name of the thread
+	 */
+	public void start(String name){
+		this.run = true;
+		this.thread = new Thread(this, name);
+		this.thread.start();
+	}
+
+	public void run() {
+		while(this.run){
+			UpdateEvent item;
+			synchronized(this){
+				try {
+					while(this.run && this.pending.isEmpty()){
+						this.wait();
+					}
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if(!this.run)
+					break;
+				item = this.pending.removeFirst();
+				this.running = item;
+			}
+
+			boolean applied = this.worker.applyBulk(item);
+			synchronized(this){
+				this.running = null;
+				this.notifyAll();
+			}
+			this.worker.bulkDone(item, applied);
+		}
+	}
+
+	/** Queues the upload of a big file
+	 * @param item File added or changed
+	 */
+	public synchronized void add(UpdateEvent item){
+		this.pending.add(item);
+		this.notifyAll();
+	}
+
+	/** Waits until no upload conflicts with an update: uploads of the same file, or of files in a deleted directory.
+	 *  A reconciliation waits for all the uploads.
+	 * @param item Update about to be applied
+	 * @throws InterruptedException
+	 */
+	public synchronized void await(UpdateEvent item) throws InterruptedException{
+		while(this.run && this.conflicts(item)){
+			this.wait();
+		}
+	}
+
+	private boolean conflicts(UpdateEvent item){
+		if(this.running == null && this.pending.isEmpty())
+			return false;
+		if(item.getKind() == Kind.RECONCILE_NEEDED)
+			return true;
+
+		Path file = item.getFile();
+		boolean tree = item.getKind() == Kind.DIRECTORY_DELETED || item.getKind() == Kind.DIRECTORY_ADDED;
+		if(this.running != null && this.touches(this.running.getFile(), file, tree))
+			return true;
+		for(UpdateEvent upload: this.pending){
+			if(this.touches(upload.getFile(), file, tree))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean touches(Path upload, Path file, boolean tree){
+		return tree ? upload.startsWith(file) : upload.equals(file);
+	}
+
+	/**
+	 * @return sequence number of the oldest journaled upload not done yet, -1 if none
+	 */
+	public synchronized long getFirstPending(){
+		long first = this.running == null ? -1 : this.running.getSequence();
+		for(UpdateEvent upload: this.pending){
+			if(upload.getSequence() >= 0 && (first < 0 || upload.getSequence() < first))
+				first = upload.getSequence();
+		}
+		return first;
+	}
+
+	/**
+	 * @return number of uploads not done yet
+	 */
+	public synchronized int size(){
+		return this.pending.size() + (this.running == null ? 0 : 1);
+	}
+
+	//Method to stop the thread, pending uploads are discarded
+	public void shutdown(){
+		synchronized(this){
+			this.run = false;
+			this.pending.clear();
+			this.notifyAll();
+		}
+		if(this.thread != null)
+			this.thread.interrupt();
+	}
+}
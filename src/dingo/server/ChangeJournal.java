@@ -0,0 +1,357 @@
+package dingo.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import dingo.server.filesystem.PathTable;
+import dingo.server.filesystem.UpdateEvent;
+
+/** Append-only journal of the changes propagated to the Bolt instances, in a memory-mapped file. Every change gets
+ *  a sequence number and every instance has the sequence number of the last change it applied (its offset), so an
+ *  instance that comes back after a restart or a failure replays only the changes it missed. Changes applied by
+ *  every instance are dropped when the journal is full; if it is still full the oldest ones are dropped anyway,
+ *  and the instances that didn't apply them have to be reconciled.
+ *  Offsets are saved at most once a second: after a crash a few changes may be applied twice, never skipped.
+ * @author marco
+ *
+ */
+public class ChangeJournal {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] MAGIC = "DINGOJNL".getBytes(UTF8);
+	private static final int VERSION = 1;
+	//Magic, version, bytes of records, sequence number of the first record
+	private static final int HEADER_SIZE = 8 + 4 + 8 + 8;
+	//Minimum time (ms) between two saves of the offsets
+	private static final long OFFSETS_SAVE_INTERVAL = 1000;
+
+	private Path file;
+	private Path offsetsFile;
+	private long maxSize;
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private long used;
+	private long firstSeq;
+	private long nextSeq;
+
+	//Instance -> sequence number of the last change it applied
+	private HashMap<String, Long> offsets = new HashMap<String, Long>();
+	private boolean offsetsChanged = false;
+	private long offsetsSaved = 0;
+
+	private ChangeJournal(Path file, long maxSize){
+		this.file = file;
+		this.offsetsFile = file.resolveSibling(file.getFileName() + ".offsets");
+		this.maxSize = maxSize;
+	}
+
+	/** Opens a journal, creating it if it doesn't exist
+	 * @param file Path of the journal file
+	 * @param maxSize Maximum bytes of changes kept
+	 * @return the journal
+	 * @throws IOException if the file can't be created or mapped
+	 */
+	public static ChangeJournal open(Path file, long maxSize) throws IOException{
+		ChangeJournal journal = new ChangeJournal(file, maxSize);
+		journal.load();
+		journal.loadOffsets();
+		System.out.println("[Journal] " + (journal.nextSeq - journal.firstSeq) + " changes and " + journal.offsets.size() + " instances loaded from " + file);
+		return journal;
+	}
+
+	private void load() throws IOException{
+		this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = this.channel.size();
+		this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, HEADER_SIZE + this.maxSize));
+
+		byte[] magic = new byte[MAGIC.length];
+		this.map.get(magic);
+		if(size < HEADER_SIZE || !Arrays.equals(magic, MAGIC) || this.map.getInt(8) != VERSION){
+			if(size > 0)
+				System.out.println("[Journal] " + this.file + " is not a valid journal, starting from scratch.");
+			this.map.clear();
+			this.map.put(MAGIC);
+			this.map.putInt(VERSION);
+			this.map.putLong(20, 1);
+			this.setUsed(0);
+			this.firstSeq = 1;
+			this.nextSeq = 1;
+			return;
+		}
+
+		long recorded = this.map.getLong(12);
+		this.firstSeq = this.map.getLong(20);
+		this.nextSeq = this.firstSeq;
+		int position = HEADER_SIZE;
+		//Records after a torn write are ignored
+		while(position + 4 <= HEADER_SIZE + recorded){
+			int length = this.map.getInt(position);
+			if(length <= 0 || position + 4 + length > HEADER_SIZE + recorded)
+				break;
+			this.nextSeq = this.map.getLong(position + 4) + 1;
+			position += 4 + length;
+		}
+		this.used = position - HEADER_SIZE;
+	}
+
+	private void loadOffsets() throws IOException{
+		Properties saved = new Properties();
+		try(InputStream in = Files.newInputStream(this.offsetsFile)){
+			saved.load(in);
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		for(String instance: saved.stringPropertyNames()){
+			try {
+				this.offsets.put(instance, Long.parseLong(saved.getProperty(instance).trim()));
+			} catch (NumberFormatException e) {
+				System.out.println("[Journal] Wrong offset for " + instance + ", ignoring it.");
+			}
+		}
+	}
+
+	/** Appends a change to the journal
+	 * @param item Change to append
+	 * @return the same change with its sequence number
+	 */
+	public synchronized UpdateEvent append(UpdateEvent item){
+		byte[] type = item.getType().getBytes(UTF8);
+		byte[] path = item.getFile().toString().getBytes(UTF8);
+		int length = 8 + 4 + type.length + 4 + path.length;
+		if(HEADER_SIZE + this.used + 4 + length > this.map.capacity())
+			this.compact(4 + length);
+
+		long seq = this.nextSeq++;
+		if(HEADER_SIZE + this.used + 4 + length > this.map.capacity()){
+			//Bigger than the whole journal, nobody will be able to replay it
+			System.out.println("[Journal] Change too big for the journal: " + item.getFile());
+			this.drop(seq);
+			return item.withSequence(seq);
+		}
+
+		int position = (int) (HEADER_SIZE + this.used);
+		this.map.position(position);
+		this.map.putInt(length);
+		this.map.putLong(seq);
+		this.map.putInt(type.length);
+		this.map.put(type);
+		this.map.putInt(path.length);
+		this.map.put(path);
+		//The record is valid only once the header includes it
+		this.setUsed(this.used + 4 + length);
+		return item.withSequence(seq);
+	}
+
+	/** Reads the changes after a given one
+	 * @param after Sequence number of the last change already applied
+	 * @param upTo Sequence number of the last change to read
+	 * @param paths Table classifying the paths of the changes
+	 * @return the changes, in order, null if some of them have already been dropped
+	 */
+	public synchronized List<UpdateEvent> read(long after, long upTo, PathTable paths){
+		if(after + 1 < this.firstSeq)
+			return null;
+
+		List<UpdateEvent> changes = new ArrayList<UpdateEvent>();
+		ByteBuffer record = this.map.duplicate();
+		int position = HEADER_SIZE;
+		while(position < HEADER_SIZE + this.used){
+			int length = this.map.getInt(position);
+			long seq = this.map.getLong(position + 4);
+			if(seq > upTo)
+				break;
+			if(seq > after){
+				record.limit(position + 4 + length);
+				record.position(position + 4 + 8);
+				UpdateEvent.Kind kind = UpdateEvent.Kind.of(readString(record));
+				Path path = FileSystems.getDefault().getPath(readString(record));
+				if(kind != null)
+					changes.add(paths.event(path, kind, seq));
+			}
+			position += 4 + length;
+		}
+		return changes;
+	}
+
+	/**
+	 * @return sequence number of the last change appended, 0 if none
+	 */
+	public synchronized long getLastSequence(){
+		return this.nextSeq - 1;
+	}
+
+	/**
+	 * @param instance Id of a Bolt instance
+	 * @return sequence number of the last change applied by the instance, -1 if the instance is unknown
+	 */
+	public synchronized long getOffset(String instance){
+		Long offset = this.offsets.get(instance);
+		return offset == null ? -1 : offset;
+	}
+
+	/** Records that an instance applied all the changes up to a given one
+	 * @param instance Id of a Bolt instance
+	 * @param seq Sequence number of the last change applied
+	 */
+	public synchronized void acknowledge(String instance, long seq){
+		Long offset = this.offsets.get(instance);
+		if(offset != null && offset >= seq)
+			return;
+		this.offsets.put(instance, seq);
+		this.offsetsChanged = true;
+		if(System.currentTimeMillis() - this.offsetsSaved >= OFFSETS_SAVE_INTERVAL)
+			this.saveOffsets();
+	}
+
+	/** Forgets an instance, the changes it didn't apply are not kept for it anymore
+	 * @param instance Id of a Bolt instance
+	 */
+	public synchronized void forget(String instance){
+		if(this.offsets.remove(instance) != null){
+			this.offsetsChanged = true;
+			this.saveOffsets();
+		}
+	}
+
+	/** Writes offsets and changes to disk and releases the file
+	 */
+	public synchronized void close(){
+		this.saveOffsets();
+		try {
+			this.map.force();
+			this.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "change journal [changes=" + (this.nextSeq - this.firstSeq) + ", last=" + (this.nextSeq - 1) + ", size=" + this.used / 1024 + "/"
+				+ this.maxSize / 1024 + " KB, instances=" + this.offsets.size() + "]";
+	}
+
+	/** Makes room for a record: drops the changes applied by every instance and, if it is not enough, the oldest ones
+	 * @param needed Bytes of the record to append
+	 */
+	private void compact(int needed){
+		long applied = this.nextSeq - 1;
+		for(long offset: this.offsets.values()){
+			applied = Math.min(applied, offset);
+		}
+
+		//Keep at most half of the journal, so compaction doesn't happen at every change
+		long keep = this.maxSize / 2;
+		long end = HEADER_SIZE + this.used;
+		int position = HEADER_SIZE;
+		//Sequence number of the first record kept
+		long seq = this.firstSeq;
+		while(position < end){
+			long recordSeq = this.map.getLong(position + 4);
+			if(recordSeq > applied && end - position + needed <= keep)
+				break;
+			position += 4 + this.map.getInt(position);
+			seq = recordSeq + 1;
+		}
+		if(seq - 1 > applied)
+			System.out.println("[Journal] Journal full, dropping changes not applied yet: instances behind " + (seq - 1) + " will be reconciled.");
+		this.drop(position, seq);
+	}
+
+	/** Drops every change
+	 * @param seq Sequence number of the next change
+	 */
+	private void drop(long seq){
+		this.drop((int) (HEADER_SIZE + this.used), seq + 1);
+	}
+
+	/** Rewrites the journal starting from a record
+	 * @param position Position of the first record to keep
+	 * @param seq Sequence number of that record
+	 */
+	private void drop(int position, long seq){
+		Path compacted = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.put(MAGIC);
+			header.putInt(VERSION);
+			header.putLong(HEADER_SIZE + this.used - position);
+			header.putLong(seq);
+			header.flip();
+			ByteBuffer records = this.map.duplicate();
+			records.limit((int) (HEADER_SIZE + this.used));
+			records.position(position);
+
+			try(OutputStream out = Files.newOutputStream(compacted)){
+				out.write(header.array());
+				byte[] buffer = new byte[64 * 1024];
+				while(records.hasRemaining()){
+					int count = Math.min(buffer.length, records.remaining());
+					records.get(buffer, 0, count);
+					out.write(buffer, 0, count);
+				}
+			}
+
+			this.saveOffsets();
+			this.map.force();
+			this.channel.close();
+			Files.move(compacted, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			this.channel = FileChannel.open(this.file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(this.channel.size(), HEADER_SIZE + this.maxSize));
+			this.used -= position - HEADER_SIZE;
+			this.firstSeq = seq;
+		} catch (IOException e) {
+			System.out.println("[Journal] Unable to compact " + this.file + ".");
+			e.printStackTrace();
+		}
+	}
+
+	private void saveOffsets(){
+		if(!this.offsetsChanged)
+			return;
+
+		Properties saved = new Properties();
+		for(Map.Entry<String, Long> offset: this.offsets.entrySet()){
+			saved.setProperty(offset.getKey(), offset.getValue().toString());
+		}
+		Path tmp = this.offsetsFile.resolveSibling(this.offsetsFile.getFileName() + ".tmp");
+		try {
+			try(OutputStream out = Files.newOutputStream(tmp)){
+				saved.store(out, "Last change applied by every Bolt instance");
+			}
+			Files.move(tmp, this.offsetsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			this.offsetsChanged = false;
+			this.offsetsSaved = System.currentTimeMillis();
+		} catch (IOException e) {
+			System.out.println("[Journal] Unable to save the offsets in " + this.offsetsFile + ".");
+			e.printStackTrace();
+		}
+	}
+
+	private void setUsed(long used){
+		this.used = used;
+		this.map.putLong(12, used);
+	}
+
+	private static String readString(ByteBuffer buffer){
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
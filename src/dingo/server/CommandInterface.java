@@ -1,10 +1,20 @@
 package dingo.server;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.net.Socket;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.SftpException;
@@ -17,184 +27,681 @@ import dingo.server.DingoServer;
  * Handles a single connection with a specific terminal/Dingo.
  * This server is started by {@link CommandInterfaceWrapper}  when he receives 
  * a new connection request from a terminal/Dingo.
+ * The wrapper reads the connection and hands the bytes to {@link #read(ByteBuffer)}, complete lines are queued and
+ * executed by {@link #run()} on a command thread. The answers are queued too, and written by the wrapper when the
+ * connection can take them.
+ * <p>A terminal sending "FRAME id length" followed by a request of length bytes switches the connection to the
+ * framed mode: every request is executed on its own, as soon as it is received, and its answer is sent back in
+ * frames "FRAME id length MORE|OK|KO", the last one with the result. A terminal can so keep many requests in
+ * flight, and get the answers in the order they are ready. A USE applies to the requests received after it, each
+ * request keeps the manager chosen when it was received.
  * @author Leonardo
  *
  */
 public class CommandInterface implements Runnable
 {
+	//Largest request accepted in the framed mode
+	private static final int MAX_FRAME = 1024 * 1024;
+	private static final String UTF8 = "UTF-8";
+	
 	private DingoServer hs;
-	private Socket clientSocket;
+	private SocketChannel clientChannel;
+	private SelectionKey key;
 	private CommandInterfaceWrapper ciw;
-	private boolean connected;
+	private volatile boolean connected;
+	//Manager the commands of this terminal are sent to
+	private volatile String manager = DingoServer.DEFAULT_MANAGER;
 	
+	//Answers of the legacy mode, a line at a time
 	private PrintStream output;
-	private BufferedReader input; 
+	//Bytes of the line being received
+	private ByteArrayOutputStream line = new ByteArrayOutputStream();
+	//True from the first frame received
+	private boolean framed;
+	//Request being received in the framed mode, with the number of its bytes still to come
+	private int frameId;
+	private int frameLeft = 0;
+	private ByteArrayOutputStream frame = new ByteArrayOutputStream();
+	//Framed requests being executed
+	private int requests;
+	//Commands received and not executed yet
+	private LinkedList<String> commands = new LinkedList<String>();
+	//True while a command thread executes the commands of this interface
+	private boolean busy;
+	//Job the terminal is waiting for, the next commands are executed when it is over
+	private volatile Job waiting;
+	//True if no command thread is left to go on after the job waited for
+	private boolean suspended;
+	//Jobs followed by WAIT, forgotten when the connection is over
+	private HashMap<JobListener, Job> waits = new HashMap<JobListener, Job>();
+	//Answers not written yet
+	private LinkedList<ByteBuffer> answers = new LinkedList<ByteBuffer>();
+	//True while the wrapper has been told about this interface and hasn't looked at it yet
+	private AtomicBoolean signalled = new AtomicBoolean();
 	
-	public CommandInterface(DingoServer cm, Socket clientSocket, CommandInterfaceWrapper ciw) throws Exception
+	public CommandInterface(DingoServer cm, SocketChannel clientChannel, CommandInterfaceWrapper ciw)
 	{
-		this.clientSocket = clientSocket;
+		this.clientChannel = clientChannel;
 		this.hs = cm;
 		this.ciw = ciw;
 		
-		this.output = new PrintStream(clientSocket.getOutputStream());
-		this.input = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+		this.output = new PrintStream(new AnswerStream(), true);
 		this.output.println(CommandProtocol.MESSAGE_HI);
 		
 		this.connected = true;
 	}
 	
-	public void run()
+	/** Reads what the terminal sent, and starts executing the commands completed
+	 * @param buffer Buffer to read into
+	 * @return false if the terminal closed the connection
+	 * @throws IOException
+	 */
+	protected boolean read(ByteBuffer buffer) throws IOException
 	{
-		try
+		buffer.clear();
+		int count = this.clientChannel.read(buffer);
+		if (count < 0)
+			return false;
+		buffer.flip();
+
+		boolean start = false;
+		List<Reply> replies = new ArrayList<Reply>();
+		synchronized (this)
 		{
-			while(this.connected)
+			//Nothing is executed once the connection is over
+			while(buffer.hasRemaining() && this.connected)
 			{
-				String commandString = "";
-				do{commandString = this.input.readLine();} while(commandString.equals(""));
-				String[] tokens = commandString.split(" ");
-				boolean recognizedCommand = false;
-				
-				if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_BYE))
-				{
-					recognizedCommand = true;
-					this.handleCommandBye();
-				}
-				if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_SERVER_SHUTDOWN))
+				if (this.frameLeft > 0)
 				{
-					recognizedCommand = true;
-					this.handleCommandShutdown();
-				}
-				if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_SERVER_STATUS))
-				{
-					recognizedCommand = true;
-					this.handleCommandServerStatus();
+					byte[] chunk = new byte[Math.min(this.frameLeft, buffer.remaining())];
+					buffer.get(chunk);
+					this.frame.write(chunk);
+					this.frameLeft -= chunk.length;
+					if (this.frameLeft == 0)
+						this.request(this.frameId, this.frame.toString(UTF8), replies);
+					continue;
 				}
 				
-				if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_ADD_BOLT)){
-					recognizedCommand = true;
-					/** Get user, host and port
-			           */
-			          String user = tokens[1].substring(0, tokens[1].indexOf('@'));
-
-			          String host = null;
-			          
-			          //Default SSH port is 22
-			          int port = 22;
-
-			          if (tokens[1].contains(":")) {
-			            host = tokens[1].substring(tokens[1].indexOf('@') + 1, tokens[1].indexOf(":"));
-			            port = Integer.parseInt(tokens[1].substring(tokens[1].indexOf(':') + 1));
-			          } else {
-			            host = tokens[1].substring(tokens[1].indexOf('@') + 1);
-			          }
-			          
-			          System.out.println("[CI] user:" + user + " host:" + host + " port:" + port);
-			          
-			          String path = tokens[2];
-			          
-			    	  this.handleCommandAddBolt(user, host, port, path);
+				byte b = buffer.get();
+				if (b != '\n')
+				{
+					this.line.write(b);
+					continue;
 				}
-				if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_REMOVE_BOLT))
+				String commandString = this.line.toString().trim();
+				this.line.reset();
+				if (commandString.startsWith(CommandProtocol.MESSAGE_FRAME + " "))
+					this.frameHeader(commandString, replies);
+				else if (this.framed && !commandString.equals(""))
+					this.send(0, "[CI] Expected a frame, received: " + commandString, CommandProtocol.MESSAGE_KO);
+				else if (!commandString.equals(""))
+					this.commands.add(commandString);
+			}
+			if (!this.busy && !this.commands.isEmpty())
+			{
+				this.busy = true;
+				start = true;
+			}
+		}
+		if (start)
+			this.ciw.execute(this);
+		for (Reply reply : replies)
+		{
+			this.ciw.execute(reply);
+		}
+		return true;
+	}
+
+	/** Starts receiving a request in the framed mode
+	 * @param header FRAME id length
+	 * @param replies Requests complete, to execute
+	 */
+	private void frameHeader(String header, List<Reply> replies)
+	{
+		this.framed = true;
+		String[] tokens = header.split(" ");
+		int id = 0;
+		int length = -1;
+		try
+		{
+			id = Integer.parseInt(tokens[1]);
+			length = Integer.parseInt(tokens[2]);
+		}
+		catch(RuntimeException e) {}
+		if (tokens.length != 3 || length < 0 || length > MAX_FRAME)
+		{
+			//The next request can't be found, the connection is over
+			this.send(id, "[CI] Invalid frame: " + header, CommandProtocol.MESSAGE_KO);
+			this.connected = false;
+			return;
+		}
+		
+		this.frameId = id;
+		this.frameLeft = length;
+		this.frame.reset();
+		if (length == 0)
+			this.request(id, "", replies);
+	}
+
+	/** Queues a request received in the framed mode
+	 * @param id Id of the request
+	 * @param commandString Request
+	 * @param replies Requests complete, to execute
+	 */
+	private void request(int id, String commandString, List<Reply> replies)
+	{
+		commandString = commandString.trim();
+		if (!this.connected)
+			return;
+		if (commandString.equals(""))
+		{
+			this.send(id, "[CI] Empty request.", CommandProtocol.MESSAGE_KO);
+			return;
+		}
+		//The requests after a USE go to its manager, in the order they have been sent
+		String[] tokens = commandString.split(" ");
+		if (tokens.length == 2 && tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_USE))
+			this.manager = tokens[1];
+		this.requests++;
+		replies.add(new Reply(id, commandString, this.manager));
+	}
+
+	/** Queues a frame of the answer to a request
+	 * @param id Id of the request
+	 * @param text Answer, without the result
+	 * @param status MORE if the answer goes on, else the result
+	 */
+	private void send(int id, String text, String status)
+	{
+		byte[] payload;
+		byte[] header;
+		try
+		{
+			payload = text.getBytes(UTF8);
+			header = (CommandProtocol.MESSAGE_FRAME + " " + id + " " + payload.length + " " + status + "\n").getBytes(UTF8);
+		}
+		catch(UnsupportedEncodingException e) {throw new IllegalStateException(e);}
+		ByteBuffer frame = ByteBuffer.allocate(header.length + payload.length);
+		frame.put(header).put(payload).flip();
+		synchronized (this)
+		{
+			this.answers.add(frame);
+		}
+		this.ciw.changed(this);
+	}
+
+	/** Writes as many answers as the connection takes
+	 * @throws IOException
+	 */
+	protected synchronized void write() throws IOException
+	{
+		while(!this.answers.isEmpty())
+		{
+			ByteBuffer answer = this.answers.getFirst();
+			this.clientChannel.write(answer);
+			if (answer.hasRemaining())
+				return;
+			this.answers.removeFirst();
+		}
+	}
+
+	protected synchronized boolean hasOutput()
+	{
+		return !this.answers.isEmpty();
+	}
+
+	/**
+	 * @return true if the connection is over and the terminal has received all the answers
+	 */
+	protected synchronized boolean isClosable()
+	{
+		return !this.connected && !this.busy && this.requests == 0 && this.answers.isEmpty();
+	}
+
+	/**
+	 * @return true if a command of this terminal is being executed
+	 */
+	protected synchronized boolean isBusy()
+	{
+		return this.busy || this.requests > 0;
+	}
+
+	/**
+	 * @return false if the wrapper has already been told about this interface
+	 */
+	protected boolean signal()
+	{
+		return this.signalled.compareAndSet(false, true);
+	}
+
+	protected void signalled()
+	{
+		this.signalled.set(false);
+	}
+
+	protected SelectionKey getKey()
+	{
+		return this.key;
+	}
+
+	protected void setKey(SelectionKey key)
+	{
+		this.key = key;
+	}
+
+	/**
+	 * Executes the commands received, in order, until none is left
+	 */
+	public void run()
+	{
+		while(true)
+		{
+			String commandString;
+			synchronized (this)
+			{
+				//Resumed when the job is over
+				if (this.waiting != null)
 				{
-					recognizedCommand = true;
-					/** Get user, host and port
-			           */
-			          String user = tokens[1].substring(0, tokens[1].indexOf('@'));
-
-			          String host = null;
-			          			          
-			        //Default SSH port is 22
-			          int port = 22;
-
-			          if (tokens[1].contains(":")) {
-			            host = tokens[1].substring(tokens[1].indexOf('@') + 1, tokens[1].indexOf(":"));
-			            port = Integer.parseInt(tokens[1].substring(tokens[1].indexOf(':') + 1));
-			          } else {
-			            host = tokens[1].substring(tokens[1].indexOf('@') + 1);
-			          }
-			          
-			          System.out.println("[CI] user:" + user + " host:" + host + " port:" + port);
-			          
-			    	  this.handleCommandRemoveBolt(user, host, port);
+					this.suspended = true;
+					return;
 				}
-				if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_REMOVE_ALL_BOLTS))
+				commandString = this.connected ? this.commands.poll() : null;
+				if (commandString == null)
 				{
-					recognizedCommand = true;
-					this.handleCommandRemoveAllBolts();
+					this.commands.clear();
+					this.busy = false;
+					break;
 				}
-				if (!recognizedCommand) System.out.println("[CI] Command not recognized, received: " + commandString);
+			}
+			if (!this.execute(commandString, this.manager, this.output))
+			{
+				this.output.println("[CI] Command not recognized or failed: " + commandString);
+				this.output.println(CommandProtocol.MESSAGE_KO);
+			}
+		}
+		//The connection may be done
+		this.ciw.changed(this);
+	}
+
+	/** Executes a command
+	 * @param commandString Command and its arguments
+	 * @param manager Manager the command is sent to
+	 * @param output Where the answer is printed
+	 * @return false if the command is unknown or failed without answering
+	 */
+	private boolean execute(String commandString, String manager, PrintStream output)
+	{
+		try
+		{
+			String[] tokens = commandString.split(" ");
+			boolean recognizedCommand = false;
+			
+			if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_BYE))
+			{
+				recognizedCommand = true;
+				this.handleCommandBye(output);
+			}
+			if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_SERVER_SHUTDOWN))
+			{
+				recognizedCommand = true;
+				this.handleCommandShutdown(output);
+			}
+			if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_SERVER_STATUS))
+			{
+				recognizedCommand = true;
+				this.handleCommandServerStatus(output);
 			}
 			
-			this.output.close();
-			this.input.close();
-			this.clientSocket.close();
-			System.out.println("Socket closed");
+			if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_ADD_BOLT)){
+				recognizedCommand = true;
+				/** Get user, host and port
+		           */
+		          String user = tokens[1].substring(0, tokens[1].indexOf('@'));
+
+		          String host = null;
+		          
+		          //Default SSH port is 22
+		          int port = 22;
+
+		          if (tokens[1].contains(":")) {
+		            host = tokens[1].substring(tokens[1].indexOf('@') + 1, tokens[1].indexOf(":"));
+		            port = Integer.parseInt(tokens[1].substring(tokens[1].indexOf(':') + 1));
+		          } else {
+		            host = tokens[1].substring(tokens[1].indexOf('@') + 1);
+		          }
+		          
+		          System.out.println("[CI] user:" + user + " host:" + host + " port:" + port);
+		          
+		          String path = tokens[2];
+		          
+		    	  this.handleCommandAddBolt(output, manager, user, host, port, path);
+			}
+			if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_ADD_BOLTS))
+			{
+				recognizedCommand = true;
+				this.handleCommandAddBolts(output, manager, tokens);
+			}
+			if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_REMOVE_BOLT))
+			{
+				recognizedCommand = true;
+				/** Get user, host and port
+		           */
+		          String user = tokens[1].substring(0, tokens[1].indexOf('@'));
+
+		          String host = null;
+		          			          
+		        //Default SSH port is 22
+		          int port = 22;
+
+		          if (tokens[1].contains(":")) {
+		            host = tokens[1].substring(tokens[1].indexOf('@') + 1, tokens[1].indexOf(":"));
+		            port = Integer.parseInt(tokens[1].substring(tokens[1].indexOf(':') + 1));
+		          } else {
+		            host = tokens[1].substring(tokens[1].indexOf('@') + 1);
+		          }
+		          
+		          System.out.println("[CI] user:" + user + " host:" + host + " port:" + port);
+		          
+		    	  this.handleCommandRemoveBolt(output, manager, user, host, port);
+			}
+			if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_REMOVE_ALL_BOLTS))
+			{
+				recognizedCommand = true;
+				this.handleCommandRemoveAllBolts(output, manager);
+			}
+			if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_RECONCILE))
+			{
+				recognizedCommand = true;
+				this.handleCommandReconcile(output, manager);
+			}
+			if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_USE))
+			{
+				recognizedCommand = true;
+				this.handleCommandUse(output, tokens);
+			}
+			if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_ADD_MANAGER))
+			{
+				recognizedCommand = true;
+				this.handleCommandAddManager(output, tokens);
+			}
+			if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_JOBS))
+			{
+				recognizedCommand = true;
+				this.handleCommandJobs(output);
+			}
+			if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_JOB))
+			{
+				recognizedCommand = true;
+				this.handleCommandJob(output, tokens);
+			}
+			if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_WAIT))
+			{
+				recognizedCommand = true;
+				this.handleCommandWait(output, tokens);
+			}
+			if (tokens[0].equalsIgnoreCase(CommandProtocol.MESSAGE_CANCEL))
+			{
+				recognizedCommand = true;
+				this.handleCommandCancel(output, tokens);
+			}
+			if (!recognizedCommand) System.out.println("[CI] Command not recognized, received: " + commandString);
+			return recognizedCommand;
 		}
 		catch(IOException e) {e.printStackTrace();} catch (JSchException e) {e.printStackTrace();} 
 		catch (SftpException e) {e.printStackTrace();}
+		catch (RuntimeException e) {e.printStackTrace();}
+		return false;
 	}
 
 	protected void shutdown()
 	{
-		this.connected = false;
+		List<Map.Entry<JobListener, Job>> waits;
+		synchronized (this)
+		{
+			this.connected = false;
+			//Nobody is left to wait for the jobs
+			waits = new ArrayList<Map.Entry<JobListener, Job>>(this.waits.entrySet());
+			this.waits.clear();
+			this.waiting = null;
+			if (this.suspended)
+			{
+				this.suspended = false;
+				this.busy = false;
+			}
+		}
+		for (Map.Entry<JobListener, Job> wait : waits)
+		{
+			wait.getValue().removeListener(wait.getKey());
+		}
 	}
 	
-	private void handleCommandServerStatus()
+	private void handleCommandServerStatus(PrintStream output)
 	{
-		this.output.println(this.hs.getStatus());
-		this.output.println(CommandProtocol.MESSAGE_OK);
+		output.println(this.hs.getStatus());
+		output.println(CommandProtocol.MESSAGE_OK);
 	}
 	
-	private void handleCommandBye()
+	private void handleCommandBye(PrintStream output)
 	{
 		this.connected = false;
-		this.output.println(CommandProtocol.MESSAGE_OK);
+		output.println(CommandProtocol.MESSAGE_OK);
 		this.ciw.removeInterface ( this );
 	}
 	
-	private void handleCommandShutdown()
+	private void handleCommandShutdown(PrintStream output)
 	{
 		synchronized (this.hs)
 		{
 			this.hs.notify();
 			this.hs.shutdown();	
 		}
-		this.handleCommandBye();
+		this.handleCommandBye(output);
 	}
 	
-	private void handleCommandAddBolt(String user, String host, int port, String path) throws IOException, JSchException, SftpException{
-		this.output.println("[CI] I am about to call method addBolt of the Server");
+	private void handleCommandAddBolt(PrintStream output, final String manager, String user, String host, int port, String path) throws IOException, JSchException, SftpException{
+		final List<BoltLocation> locations = Collections.singletonList(new BoltLocation(user, host, port, path));
+		this.startJob(output, manager, CommandProtocol.COMMAND_ADD_BOLT + " " + locations.get(0), new JobTask() {
+			public boolean run(Job job) {
+				return hs.addBolts(manager, locations, job);
+			}
+		});
+	}
+	
+	/** Inventory is a list of pairs: username@host[:port] remote_directory
+	 */
+	private void handleCommandAddBolts(PrintStream output, final String manager, String[] tokens) {
+		ArrayList<BoltLocation> locations = new ArrayList<BoltLocation>();
 		try {
-			if(!this.hs.addBolt(user, host, port, path, this.clientSocket.getInputStream(), this.clientSocket.getOutputStream()))
-				{
-				System.out.println("[CI] Something went wrong!");
-				this.output.println(CommandProtocol.MESSAGE_KO);
-				}
-		} catch (InstantiationException e) {e.printStackTrace();}
-		this.output.println(CommandProtocol.MESSAGE_OK);
+			for(int i=1; i+1<tokens.length; i+=2){
+				locations.add(BoltLocation.parse(tokens[i], tokens[i+1]));
+			}
+		} catch (IllegalArgumentException e) {
+			output.println("[CI] " + e.getMessage());
+			output.println(CommandProtocol.MESSAGE_KO);
+			return;
+		}
+		if(locations.isEmpty() || tokens.length % 2 == 0) {
+			output.println("[CI] Invalid inventory.");
+			output.println(CommandProtocol.MESSAGE_KO);
+			return;
+		}
+		
+		final List<BoltLocation> inventory = locations;
+		this.startJob(output, manager, CommandProtocol.COMMAND_ADD_BOLTS + " " + locations.size() + " machines", new JobTask() {
+			public boolean run(Job job) {
+				return hs.addBolts(manager, inventory, job);
+			}
+		});
+	}
+	
+	private void handleCommandRemoveBolt(PrintStream output, final String manager, final String user, final String host, final int port) throws IOException, JSchException, SftpException{
+		this.startJob(output, manager, CommandProtocol.COMMAND_REMOVE_BOLT + " " + user + "@" + host + ":" + port, new JobTask() {
+			public boolean run(Job job) {
+				boolean removed = hs.removeBolt(manager, user, host, port);
+				job.event(user + "@" + host + ":" + port + ": " + (removed ? "removed" : "not removed"));
+				return removed;
+			}
+		});
+	}
+	
+	private void handleCommandRemoveAllBolts(PrintStream output, final String manager) {
+		this.startJob(output, manager, CommandProtocol.COMMAND_REMOVE_ALL_BOLTS, new JobTask() {
+			public boolean run(Job job) {
+				return hs.removeAllBolts(manager);
+			}
+		});
+	}
+	
+	/** Starts a job in the background and answers with its id, the terminal follows it with WAIT
+	 * @param manager Manager the job works on
+	 * @param description What the job does
+	 * @param work Work of the job
+	 */
+	private void startJob(PrintStream output, String manager, String description, JobTask work) {
+		Job job = this.hs.getJobs().submit(manager + ": " + description, work);
+		output.println("[CI] Job " + job.getId() + " started.");
+		output.println(CommandProtocol.MESSAGE_JOB + " " + job.getId());
+		output.println(CommandProtocol.MESSAGE_OK);
+	}
+	
+	/**
+	 * @return the job with the id given as first argument, null if the answer has already been sent
+	 */
+	private Job findJob(PrintStream output, String[] tokens) {
+		Job job = null;
+		try {
+			if (tokens.length == 2)
+				job = this.hs.getJobs().get(Integer.parseInt(tokens[1]));
+		} catch (NumberFormatException e) {}
+		if (job == null) {
+			output.println("[CI] Unknown job.");
+			output.println(CommandProtocol.MESSAGE_KO);
+		}
+		return job;
+	}
+	
+	private void handleCommandJobs(PrintStream output) {
+		for (Job job : this.hs.getJobs().getJobs()) {
+			output.println(job);
+		}
+		output.println(CommandProtocol.MESSAGE_OK);
+	}
+	
+	/** Prints the state and the events of a job
+	 */
+	private void handleCommandJob(PrintStream output, String[] tokens) {
+		Job job = this.findJob(output, tokens);
+		if (job == null)
+			return;
+		output.println(job);
+		for (String event : job.getEvents()) {
+			output.println("[Job " + job.getId() + "] " + event);
+		}
+		output.println(CommandProtocol.MESSAGE_OK);
+	}
+	
+	/** Sends the events of a job as they happen, then OK if it succeeded or KO. In the legacy mode the next commands
+	 *  of this terminal are executed when the job is over, but no command thread waits for it.
+	 */
+	private void handleCommandWait(final PrintStream output, String[] tokens) {
+		Job job = this.findJob(output, tokens);
+		if (job == null)
+			return;
+		final boolean legacy = output == this.output;
+		JobListener listener = new JobListener() {
+			public void event(Job job, String event) {
+				output.println("[Job " + job.getId() + "] " + event);
+			}
+			
+			public void done(Job job) {
+				output.println(job);
+				output.println(job.getState() == Job.State.SUCCEEDED ? CommandProtocol.MESSAGE_OK : CommandProtocol.MESSAGE_KO);
+				waited(this, legacy);
+			}
+		};
+		synchronized (this) {
+			if (!this.connected)
+				return;
+			this.waits.put(listener, job);
+			if (legacy)
+				this.waiting = job;
+		}
+		job.addListener(listener);
+	}
+	
+	private void handleCommandCancel(PrintStream output, String[] tokens) {
+		Job job = this.findJob(output, tokens);
+		if (job == null)
+			return;
+		if (job.cancel()) {
+			output.println("[CI] Job " + job.getId() + " cancelled.");
+			output.println(CommandProtocol.MESSAGE_OK);
+		} else {
+			output.println("[CI] Job " + job.getId() + " is already over.");
+			output.println(CommandProtocol.MESSAGE_KO);
+		}
+	}
+	
+	/** Called when a job waited for is over
+	 * @param listener Listener of the job, not needed anymore
+	 * @param legacy true if the next commands are waiting for the job
+	 */
+	private void waited(JobListener listener, boolean legacy) {
+		boolean resume = false;
+		synchronized (this) {
+			this.waits.remove(listener);
+			if (legacy) {
+				this.waiting = null;
+				resume = this.suspended;
+				this.suspended = false;
+			}
+		}
+		//Goes on with the commands received meanwhile
+		if (resume)
+			this.ciw.execute(this);
+	}
+
+	private void handleCommandReconcile(PrintStream output, String manager) {
+		int count = this.hs.reconcileBolts(manager);
+		if(count < 0) {
+			output.println("[CI] Manager " + manager + " not found.");
+			output.println(CommandProtocol.MESSAGE_KO);
+			return;
+		}
+		output.println("[CI] Reconciliation of " + count + " Bolt instances started.");
+		output.println(CommandProtocol.MESSAGE_OK);
 	}
 	
-	private void handleCommandRemoveBolt(String user, String host, int port) throws IOException, JSchException, SftpException{
-		this.output.println("[CI] I am about to call method removeBolt of the Server");
-		if(!this.hs.removeBolt(user, host, port)) {
-			System.out.println("[CI] Something went wrong!");
-			this.output.println(CommandProtocol.MESSAGE_KO);
+	/** Chooses the manager the next commands are sent to. In the framed mode the requests run at the same time, so
+	 *  the manager has already been chosen when the request was received, and here it is only checked.
+	 */
+	private void handleCommandUse(PrintStream output, String[] tokens) {
+		if(tokens.length != 2 || !this.hs.isManager(tokens[1])) {
+			output.println("[CI] Unknown manager.");
+			output.println(CommandProtocol.MESSAGE_KO);
+			return;
 		}
-		this.output.println(CommandProtocol.MESSAGE_OK);
+		if(!this.framed)
+			this.manager = tokens[1];
+		output.println("[CI] Using manager " + tokens[1] + ".");
+		output.println(CommandProtocol.MESSAGE_OK);
 	}
 	
-	private void handleCommandRemoveAllBolts() {
-		this.output.println("[CI] I am about to call method removeAllBolts of the Server");
-		if(!this.hs.removeAllBolts()) {
-			System.out.println("[CI] Something went wrong!");
-			this.output.println(CommandProtocol.MESSAGE_KO);
+	/** Creates a manager: name base_directory archive
+	 */
+	private void handleCommandAddManager(PrintStream output, String[] tokens) {
+		if(tokens.length != 4 || !this.hs.addManager(tokens[1], tokens[2], tokens[3])) {
+			output.println("[CI] Unable to create the manager.");
+			output.println(CommandProtocol.MESSAGE_KO);
+			return;
 		}
-		this.output.println(CommandProtocol.MESSAGE_OK);
+		output.println("[CI] Manager " + tokens[1] + " created.");
+		output.println(CommandProtocol.MESSAGE_OK);
 	}
 
 	private String getRemoteAddress ()
 	{
-		return this.clientSocket.getRemoteSocketAddress().toString();
+		return this.clientChannel.socket().getRemoteSocketAddress().toString();
 	}
 	
 	protected String getRemoteIP ()
@@ -207,4 +714,125 @@ public class CommandInterface implements Runnable
 		return Integer.parseInt(this.getRemoteAddress().substring(this.getRemoteAddress().indexOf(':') + 1, this.getRemoteAddress().length()));
 	}
 	
-}
\ No newline at end of file
+	/**
+	 * Queues what the commands print, the wrapper is told when a line is complete
+	 */
+	private class AnswerStream extends OutputStream
+	{
+		@Override
+		public void write(int b)
+		{
+			this.write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			byte[] copy = new byte[len];
+			System.arraycopy(b, off, copy, 0, len);
+			synchronized (CommandInterface.this)
+			{
+				CommandInterface.this.answers.add(ByteBuffer.wrap(copy));
+			}
+		}
+
+		@Override
+		public void flush()
+		{
+			CommandInterface.this.ciw.changed(CommandInterface.this);
+		}
+	}
+
+	/**
+	 * Request received in the framed mode: executes it and sends its answer in frames. The answer is sent at once
+	 * when the result is printed, what is printed after the command returned, e.g. the events of a job, as it comes.
+	 */
+	private class Reply extends OutputStream implements Runnable
+	{
+		private int id;
+		private String commandString;
+		//Manager chosen when the request was received
+		private String manager;
+		private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+		private boolean detached = false;
+		private boolean over = false;
+
+		Reply(int id, String commandString, String manager)
+		{
+			this.id = id;
+			this.commandString = commandString;
+			this.manager = manager;
+		}
+
+		public void run()
+		{
+			PrintStream output;
+			try
+			{
+				output = new PrintStream(this, true, UTF8);
+			}
+			catch(UnsupportedEncodingException e) {throw new IllegalStateException(e);}
+			
+			if (!CommandInterface.this.execute(this.commandString, this.manager, output))
+			{
+				output.println("[CI] Command not recognized or failed: " + this.commandString);
+				output.println(CommandProtocol.MESSAGE_KO);
+			}
+			
+			synchronized (this)
+			{
+				this.detached = true;
+			}
+			this.flush();
+			synchronized (CommandInterface.this)
+			{
+				CommandInterface.this.requests--;
+			}
+			//The connection may be done
+			CommandInterface.this.ciw.changed(CommandInterface.this);
+		}
+
+		@Override
+		public synchronized void write(int b)
+		{
+			if (!this.over)
+				this.pending.write(b);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len)
+		{
+			if (!this.over)
+				this.pending.write(b, off, len);
+		}
+
+		@Override
+		public synchronized void flush()
+		{
+			if (this.over || this.pending.size() == 0)
+				return;
+			String text;
+			try
+			{
+				text = this.pending.toString(UTF8);
+			}
+			catch(UnsupportedEncodingException e) {throw new IllegalStateException(e);}
+			
+			//The last line printed may be the result
+			String body = text.endsWith("\n") ? text.substring(0, text.length() - 1) : text;
+			int start = body.lastIndexOf('\n') + 1;
+			String last = body.substring(start).trim();
+			if (last.equals(CommandProtocol.MESSAGE_OK) || last.equals(CommandProtocol.MESSAGE_KO))
+			{
+				CommandInterface.this.send(this.id, body.substring(0, start), last);
+				this.over = true;
+			}
+			else if (this.detached)
+				CommandInterface.this.send(this.id, text, CommandProtocol.MESSAGE_MORE);
+			else
+				return;
+			this.pending.reset();
+		}
+	}
+
+}
@@ -3,11 +3,19 @@ package dingo.server;
 
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import dingo.Settings;
 import dingo.server.DingoServer;
@@ -16,24 +24,33 @@ import dingo.server.DingoServer;
 /**
  * This component is the main server for an interface of type {@link CommandInterface}
  * The server remains listening for new connections on the port defined in the settings file.
- * Every time he receives a new requesst, it instantiates a new thread for a new {@link CommandInterface}
- * that will work as a new server dedicated to that specific connection.
- * Once the thread is created, it starts listening for new connections.
+ * All the connections are served by a single thread with a {@link Selector}: it accepts them, reads the
+ * commands and writes the answers without ever blocking. Every new connection gets its own {@link CommandInterface},
+ * whose commands are executed, one at a time and in order, by a pool of COMMAND_THREADS threads shared by all
+ * the connections.
  * @author Leonardo
  *
  */
 public class CommandInterfaceWrapper implements Runnable
 {
+	//Time given to the terminals to receive the last answers on shutdown
+	private static final long SHUTDOWN_WAIT = 5000;
+
 	private DingoServer hs;
 	private Properties settings;
-	private ServerSocket serverSocket;
-	private Socket clientSocket;
+	private ServerSocketChannel serverChannel;
+	private Selector selector;
 	private int serverPort;
-	private boolean listen = true;
-	
+	private volatile boolean listen = true;
+
+	private ExecutorService commands;
+	//Interfaces with new output or that may be closed, handled by the selector thread
+	private ConcurrentLinkedQueue<CommandInterface> changed = new ConcurrentLinkedQueue<CommandInterface>();
+	private ByteBuffer readBuffer = ByteBuffer.allocateDirect(8192);
+
 	private Vector<CommandInterface> ciList;
-	
-	
+
+
 	public CommandInterfaceWrapper(DingoServer cm) throws InstantiationException
 	{
 		this.settings = new Properties();
@@ -41,54 +58,192 @@ public class CommandInterfaceWrapper implements Runnable
 		{
 			this.settings.load(new FileInputStream(Settings.DINGO_PROPERTIES));
 		}
-		catch(IOException e) {throw new InstantiationException("Unable to read properties file.");}		
+		catch(IOException e) {throw new InstantiationException("Unable to read properties file.");}
 		try
-		{	
+		{
 			this.serverPort = Integer.parseInt(this.settings.getProperty("COMMAND_INTERFACE_PORT"));
 		}
 		catch(NumberFormatException e) {throw new InstantiationException("Unable to read server port from properties file.");}
 		try
 		{
-			this.serverSocket = new ServerSocket(this.serverPort);
+			this.selector = Selector.open();
+			this.serverChannel = ServerSocketChannel.open();
+			this.serverChannel.socket().setReuseAddress(true);
+			this.serverChannel.bind(new InetSocketAddress(this.serverPort), 1024);
+			this.serverChannel.configureBlocking(false);
+			this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
 		}
 		catch(IOException e) {throw new InstantiationException("Unable to listen on port " + this.serverPort);}
-		
+
 		this.hs = cm;
 		this.ciList = new Vector<CommandInterface>();
+		this.commands = Executors.newFixedThreadPool(Math.max(1, Settings.getInt(this.settings, "COMMAND_THREADS", 4)));
 	}
-	
+
 	public void run()
 	{
+		long deadline = Long.MAX_VALUE;
 		try
 		{
-			while(this.listen)
+			// a connection is open as long as its key is registered, also after BYE
+			while(this.listen || !this.selector.keys().isEmpty())
 			{
-				boolean timedOut = false;
-				try
+				if (!this.listen && this.serverChannel.isOpen())
 				{
-					this.serverSocket.setSoTimeout(10000);
-					this.clientSocket = this.serverSocket.accept();
+					// no new connections, the open ones get their last answers
+					this.serverChannel.close();
+					deadline = System.currentTimeMillis() + SHUTDOWN_WAIT;
 				}
-				catch(SocketTimeoutException e) {timedOut = true;} 
-				
-				if (!timedOut)
+				if (System.currentTimeMillis() >= deadline)
 				{
-					// connection successful
-					synchronized ( this.ciList )
+					if (!this.isBusy())
+						break;
+					// the wait starts again when the command is over, e.g. SERVER_SHUTDOWN removing the machines
+					deadline = System.currentTimeMillis() + SHUTDOWN_WAIT;
+				}
+
+				this.selector.select(1000);
+
+				CommandInterface ci;
+				while((ci = this.changed.poll()) != null)
+				{
+					ci.signalled();
+					this.update(ci);
+				}
+
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while(keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+
+					if (key.isAcceptable())
 					{
-						CommandInterface ci = new CommandInterface(hs, clientSocket, this);
-						Thread t = new Thread(ci);
-						t.start();
-						ciList.add(ci);	
+						this.accept();
+						continue;
+					}
+
+					ci = (CommandInterface) key.attachment();
+					try
+					{
+						if (key.isReadable() && !ci.read(this.readBuffer))
+						{
+							// the terminal closed the connection
+							ci.shutdown();
+						}
+						if (key.isValid() && key.isWritable())
+							ci.write();
+						this.update(ci);
+					}
+					catch(IOException e)
+					{
+						System.out.println("[CI] Connection lost: " + e.getMessage());
+						this.close(ci);
 					}
 				}
 			}
 		}
 		catch(Exception e) {e.printStackTrace();}
+
+		// the ones that did not take their last answers are closed anyway
+		for (SelectionKey key : new ArrayList<SelectionKey>(this.selector.keys()))
+		{
+			if (key.attachment() != null)
+				this.close((CommandInterface) key.attachment());
+		}
+		this.commands.shutdown();
+		try
+		{
+			this.serverChannel.close();
+			this.selector.close();
+		}
+		catch(IOException e) {e.printStackTrace();}
+	}
+
+	/**
+	 * @return true if a command of some terminal is still being executed
+	 */
+	private boolean isBusy()
+	{
+		for (SelectionKey key : this.selector.keys())
+		{
+			CommandInterface ci = (CommandInterface) key.attachment();
+			if (ci != null && key.isValid() && ci.isBusy())
+				return true;
+		}
+		return false;
 	}
-	
-	
-	
+
+	private void accept() throws IOException
+	{
+		SocketChannel channel;
+		while((channel = this.serverChannel.accept()) != null)
+		{
+			// connection successful
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			CommandInterface ci = new CommandInterface(hs, channel, this);
+			ci.setKey(channel.register(this.selector, SelectionKey.OP_READ, ci));
+			synchronized ( this.ciList )
+			{
+				ciList.add(ci);
+			}
+			this.update(ci);
+		}
+	}
+
+	/**
+	 * Closes the connection of an interface if it is done, else waits for its output to be writable
+	 */
+	private void update(CommandInterface ci)
+	{
+		SelectionKey key = ci.getKey();
+		if (!key.isValid())
+			return;
+		if (ci.isClosable())
+		{
+			this.close(ci);
+			return;
+		}
+		key.interestOps(ci.hasOutput() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	private void close(CommandInterface ci)
+	{
+		// also stops waiting for its jobs
+		ci.shutdown();
+		this.removeInterface(ci);
+		ci.getKey().cancel();
+		try
+		{
+			ci.getKey().channel().close();
+			System.out.println("Socket closed");
+		}
+		catch(IOException e) {e.printStackTrace();}
+	}
+
+	/** Runs the commands received by an interface on the command threads
+	 * @param commands Commands to run, of one interface
+	 */
+	protected void execute(Runnable commands)
+	{
+		this.commands.execute(commands);
+	}
+
+	/** Tells the selector thread that an interface has new output or is done
+	 * @param ci Interface changed
+	 */
+	protected void changed(CommandInterface ci)
+	{
+		// once is enough until the selector thread looks at it
+		if (!ci.signal())
+			return;
+		this.changed.add(ci);
+		this.selector.wakeup();
+	}
+
 	public void shutdown()
 	{
 		this.listen = false;
@@ -98,12 +253,14 @@ public class CommandInterfaceWrapper implements Runnable
 			for ( CommandInterface ci : ciList )
 	    	{
 				ci.shutdown();
+				if (ci.signal())
+					this.changed.add(ci);
 	    	}
-			ciList.clear();	
 		}
+		this.selector.wakeup();
 	}
-	
-	
+
+
 	protected void removeInterface ( CommandInterface ci )
 	{
 		synchronized ( this.ciList )
@@ -111,17 +268,17 @@ public class CommandInterfaceWrapper implements Runnable
 			this.ciList.remove( ci );
 		}
 	}
-	
+
 	public int getServerPort ()
 	{
 		return this.serverPort;
 	}
-	
-	
+
+
 	public Vector<String> getStatus()
 	{
 		Vector<String> result = new Vector<String>();
-		
+
 		synchronized ( this.ciList )
 		{
 			for ( CommandInterface ci : this.ciList )
@@ -129,8 +286,8 @@ public class CommandInterfaceWrapper implements Runnable
 				result.add(ci.getRemoteIP() + ":" + ci.getRemotePort());
 			}
 		}
-		
+
 		return result;
 	}
-	
-}
\ No newline at end of file
+
+}
@@ -3,19 +3,22 @@ package dingo.server;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import com.jcraft.jsch.JSchException;
-import com.jcraft.jsch.SftpException;
 
 import commons.FunnyThings;
 
 import dingo.Settings;
+import dingo.server.filesystem.WatchHub;
 
 
 /** Server, responsible of processing commands and call other components
@@ -28,7 +31,16 @@ public class DingoServer{
   
     private CommandInterfaceWrapper ci;
 
-	private ArrayList<BoltsManager> cloudMan = new ArrayList<BoltsManager>();	
+	/** Manager of BASE_DIR and BOLT_ARCHIVE, used when no other one is chosen */
+	public static final String DEFAULT_MANAGER = "default";
+	
+	//Managers by name, every one with its own base directory and archive
+	private LinkedHashMap<String, BoltsManager> cloudMan = new LinkedHashMap<String, BoltsManager>();
+	//Shared by all the managers
+	private WatchHub watches;
+	private ExecutorService pool;
+	//Long operations started by the terminals
+	private JobManager jobs;
 	
 	/**
 	 * This is the main server
@@ -50,7 +62,16 @@ public class DingoServer{
 			e.printStackTrace();
 		}
 
-				//Initializing main components
+		//Initializing main components
+		try {
+			this.watches = new WatchHub();
+		} catch (IOException e) {
+			System.out.println("[Dingo] Unable to create the shared watcher, every manager will use its own.");
+			e.printStackTrace();
+		}
+		this.pool = Executors.newFixedThreadPool(Math.max(1, Settings.getInt(this.settings, "PROVISIONING_PARALLELISM", 8)));
+		this.jobs = new JobManager(Settings.getInt(this.settings, "JOB_THREADS", 4));
+		
 		this.ci = new CommandInterfaceWrapper(this);
 		new Thread(this.ci).start();
 
@@ -66,8 +87,17 @@ public class DingoServer{
 	public boolean shutdown()
 	{		
 		this.ci.shutdown();
+		this.jobs.shutdown();
 
-		if(!this.removeAllBolts()) {
+		boolean removed = true;
+		for ( BoltsManager man : this.getManagers() )
+		{
+			removed = man.shutdown() && removed;
+		}
+		this.pool.shutdown();
+		if(this.watches != null)
+			this.watches.shutdown();
+		if(!removed) {
 			System.out.println("[Dingo] Removing of some machine failed, returning false.");
 			return false;
 		}
@@ -95,48 +125,143 @@ public class DingoServer{
 		temp.clear();
 		status = status + "\n";
 		
+		status = status + "- Jobs: " + this.jobs + "\n";
+		status = status + "\n";
+		
+		// Bolts part
+		if ( this.watches != null )
+			status = status + "- Directories watched: " + this.watches.size() + "\n";
+		for ( BoltsManager man : this.getManagers() )
+		{
+			temp = man.getStatus();
+			status = status + "- Manager " + man.getName() + ": " + man.getLocalBaseDir() + ", archive " + man.getLocalArchive() + "\n";
+			status = status + "- Bolts Status [n. = " + temp.size() + "]\n";
+			for ( String s : temp )
+			{
+				status = status + "\t- " + s + "\n";
+			}
+			status = status + "- Transfer compression: " + man.getCompressionStatus() + "\n";
+			status = status + "- Queues: " + man.getQueueStatus() + "\n";
+			status = status + "- Bandwidth: " + man.getBandwidthStatus() + "\n";
+			status = status + "- Relay: " + man.getRelayStatus() + "\n";
+			if ( man.getFileIndex() != null )
+				status = status + "- Local files: " + man.getFileIndex() + "\n";
+			if ( man.getJournal() != null )
+				status = status + "- Changes: " + man.getJournal() + "\n";
+		}
+		status = status + "\n";
+		
 		return status;
 	}
 	
 	protected Properties getSettings() {return this.settings;}
 	
-	//Extends the cloud
-	public boolean addBolt(String user, String host, int port, String remotePath, InputStream in, OutputStream out) throws JSchException, SftpException, IOException, InstantiationException{
+	protected JobManager getJobs() {return this.jobs;}
+	
+	/** Finds a manager by name, creating it the first time it is used: the default one from BASE_DIR and
+	 *  BOLT_ARCHIVE, the others from NAME.BASE_DIR and NAME.BOLT_ARCHIVE
+	 * @param name Name of the manager
+	 * @return the manager, null if it doesn't exist and isn't configured
+	 */
+	private synchronized BoltsManager getManager(String name){
+		BoltsManager man = this.cloudMan.get(name);
+		if(man != null)
+			return man;
 		
-		if( this.cloudMan.isEmpty() ){
-			BoltsManager item = new BoltsManager(FileSystems.getDefault().getPath(this.settings.getProperty("BASE_DIR")), FileSystems.getDefault().getPath(this.settings.getProperty("Bolt_ARCHIVE")) );
-			this.cloudMan.add(item);
-			return item.addComputer(user, host, port, remotePath, in, out);
-		} else {
-			//TODO insert code to get the correct Manager
-			return this.cloudMan.get(0).addComputer(user, host, port, remotePath, in, out);
+		String prefix = name.equals(DEFAULT_MANAGER) ? "" : name + ".";
+		String baseDir = this.settings.getProperty(prefix + "BASE_DIR");
+		String archive = this.settings.getProperty(prefix + "BOLT_ARCHIVE");
+		if(baseDir == null || archive == null){
+			System.out.println("[Dingo] Manager " + name + " not found!");
+			return null;
 		}
-		
+		return this.createManager(name, FileSystems.getDefault().getPath(baseDir.trim()), FileSystems.getDefault().getPath(archive.trim()));
+	}
+	
+	private BoltsManager createManager(String name, Path baseDir, Path archive){
+		Properties settings = name.equals(DEFAULT_MANAGER) ? this.settings : Settings.forManager(this.settings, name);
+		BoltsManager man = new BoltsManager(name, baseDir, archive, settings, this.watches, this.pool);
+		this.cloudMan.put(name, man);
+		return man;
+	}
+	
+	private synchronized List<BoltsManager> getManagers(){
+		return new ArrayList<BoltsManager>(this.cloudMan.values());
+	}
+	
+	/**
+	 * @param name Name of a manager
+	 * @return true if the manager exists or is configured
+	 */
+	public synchronized boolean isManager(String name){
+		if(this.cloudMan.containsKey(name) || name.equals(DEFAULT_MANAGER))
+			return true;
+		return this.settings.getProperty(name + ".BASE_DIR") != null && this.settings.getProperty(name + ".BOLT_ARCHIVE") != null;
+	}
+	
+	/** Creates a new manager, with its own base directory and archive
+	 * @param name Name of the manager, letters, digits, - and _
+	 * @param baseDir Absolute path of the base directory
+	 * @param archive Absolute path of the archive
+	 * @return true if the manager has been created
+	 */
+	public synchronized boolean addManager(String name, String baseDir, String archive){
+		if(!name.matches("[A-Za-z0-9_-]+") || this.isManager(name)){
+			System.out.println("[Dingo] Invalid or existing manager name: " + name);
+			return false;
+		}
+		Path dir = FileSystems.getDefault().getPath(baseDir);
+		if(!dir.isAbsolute() || !Files.isDirectory(dir) || !archive.startsWith("/")){
+			System.out.println("[Dingo] Invalid base directory or archive for manager " + name);
+			return false;
+		}
+		this.createManager(name, dir, FileSystems.getDefault().getPath(archive));
+		return true;
+	}
+	
+	//Extends the cloud with many machines at once
+	public boolean addBolts(String manager, List<BoltLocation> locations, ProvisioningListener listener){
+		BoltsManager item = this.getManager(manager);
+		if(item == null)
+			return false;
+		return item.addComputers(locations, listener);
 	}
 	
 	//Restrict the cloud
-	public boolean removeBolt(String user, String host, int port){
-		
-		if( this.cloudMan.isEmpty() ){
+	public boolean removeBolt(String manager, String user, String host, int port){
+		BoltsManager item;
+		synchronized(this){
+			item = this.cloudMan.get(manager);
+		}
+		if( item == null ){
 			System.out.println("[Dingo] No Bolt instances left!");
 			return false;
-		} else {
-			//TODO insert code to get the correct Manager
-			return this.cloudMan.get(0).removeComputer(user, host, port);
 		}
-		
+		return item.removeComputer(user, host, port);
 	}
 	
-	//Removes all remote machines
-	public boolean removeAllBolts(){
-		
-		if( this.cloudMan.isEmpty() ){
+	//Brings the remote machines of a manager in line with its base directory, returns the number of machines, -1 if the manager doesn't exist
+	public int reconcileBolts(String manager){
+		BoltsManager item;
+		synchronized(this){
+			item = this.cloudMan.get(manager);
+		}
+		if( item == null )
+			return this.isManager(manager) ? 0 : -1;
+		return item.reconcile();
+	}
+	
+	//Removes all remote machines of a manager
+	public boolean removeAllBolts(String manager){
+		BoltsManager item;
+		synchronized(this){
+			item = this.cloudMan.get(manager);
+		}
+		if( item == null ){
 			System.out.println("[Dingo] No Bolt instances left!");
 			return true;
-		} else {
-			//TODO insert code to get the correct Manager
-			return this.cloudMan.get(0).shutdown();
-		}	
+		}
+		return item.shutdown();
 	}
 		
 	public static void main(String[] args) throws Exception 
@@ -0,0 +1,186 @@
+package dingo.server;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/** Long operation started by a terminal, e.g. adding machines, executed in the background by the {@link JobManager}.
+ *  The terminal gets the id of the job at once, and can then look at its events, follow it until it is over or
+ *  cancel it. Events are kept with the job and replayed to every new {@link JobListener}.
+ * @author marco
+ *
+ */
+public class Job implements ProvisioningListener {
+	public enum State {QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED}
+
+	//Events kept per job, the oldest are forgotten first
+	private static final int MAX_EVENTS = 1000;
+
+	private int id;
+	private String description;
+	private State state = State.QUEUED;
+	private boolean cancelling = false;
+	private LinkedList<String> events = new LinkedList<String>();
+	private int forgotten = 0;
+	private ArrayList<JobListener> listeners = new ArrayList<JobListener>();
+	private Future<?> task;
+	private long created;
+	private long started;
+	private long ended;
+
+	/**
+	 * @param id Id of the job, unique in the server
+	 * @param description What the job does, e.g. the command that started it
+	 */
+	Job(int id, String description){
+		this.id = id;
+		this.description = description;
+		this.created = System.currentTimeMillis();
+	}
+
+	/** Executes the work of the job on the current thread, unless it has been cancelled while queued
+	 * @param work Work of the job
+	 */
+	void run(JobTask work){
+		synchronized(this){
+			if(this.state != State.QUEUED)
+				return;
+			this.state = State.RUNNING;
+			this.started = System.currentTimeMillis();
+		}
+
+		boolean success = false;
+		try {
+			success = work.run(this);
+		} catch (Exception e) {
+			e.printStackTrace();
+			this.event("Error: " + e);
+		}
+
+		synchronized(this){
+			this.finish(this.cancelling ? State.CANCELLED : success ? State.SUCCEEDED : State.FAILED);
+		}
+	}
+
+	/**
+	 * @param task Execution of the job, interrupted to cancel it
+	 */
+	synchronized void setTask(Future<?> task){
+		this.task = task;
+		if(this.cancelling)
+			task.cancel(true);
+	}
+
+	/** Stops the job: a queued job never runs, a running one is interrupted and ends as soon as its work notices.
+	 *  Machines already added by the job stay in the cloud.
+	 * @return false if the job is already over
+	 */
+	public synchronized boolean cancel(){
+		if(this.isDone())
+			return false;
+		if(this.state == State.QUEUED){
+			this.finish(State.CANCELLED);
+			return true;
+		}
+		if(!this.cancelling){
+			this.cancelling = true;
+			this.event("Cancelling...");
+			if(this.task != null)
+				this.task.cancel(true);
+		}
+		return true;
+	}
+
+	private void finish(State state){
+		this.state = state;
+		this.ended = System.currentTimeMillis();
+		for(JobListener listener: this.listeners){
+			listener.done(this);
+		}
+		this.listeners.clear();
+		this.notifyAll();
+	}
+
+	/** Adds an event to the job, it is sent at once to the listeners
+	 * @param event Description of the event
+	 */
+	public synchronized void event(String event){
+		this.events.add(event);
+		if(this.events.size() > MAX_EVENTS){
+			this.events.removeFirst();
+			this.forgotten++;
+		}
+		for(JobListener listener: this.listeners){
+			listener.event(this, event);
+		}
+	}
+
+	public void provisioned(BoltLocation location, boolean success) {
+		this.event(location + ": " + (success ? "added" : "failed"));
+	}
+
+	public void progress(BoltLocation location, String phase, long sent) {
+		this.event(location + ": " + phase + ", " + sent / 1024 + " KB sent");
+	}
+
+	/** Follows the job: the listener gets the events so far, then the new ones and the end of the job
+	 * @param listener Listener to add
+	 */
+	public synchronized void addListener(JobListener listener){
+		if(this.forgotten > 0)
+			listener.event(this, "(" + this.forgotten + " older events forgotten)");
+		for(String event: this.events){
+			listener.event(this, event);
+		}
+		if(this.isDone())
+			listener.done(this);
+		else
+			this.listeners.add(listener);
+	}
+
+	/**
+	 * @param listener Listener not interested anymore
+	 */
+	public synchronized void removeListener(JobListener listener){
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * @return events kept, the oldest first
+	 */
+	public synchronized List<String> getEvents(){
+		return new ArrayList<String>(this.events);
+	}
+
+	public int getId(){
+		return this.id;
+	}
+
+	public String getDescription(){
+		return this.description;
+	}
+
+	public synchronized State getState(){
+		return this.state;
+	}
+
+	/**
+	 * @return true if the job is over, whatever its result
+	 */
+	public synchronized boolean isDone(){
+		return this.state != State.QUEUED && this.state != State.RUNNING;
+	}
+
+	@Override
+	public synchronized String toString(){
+		String state = this.cancelling && !this.isDone() ? "cancelling" : this.state.toString().toLowerCase();
+		long elapsed;
+		if(this.state == State.QUEUED)
+			elapsed = System.currentTimeMillis() - this.created;
+		else
+			elapsed = (this.isDone() ? this.ended : System.currentTimeMillis()) - (this.started > 0 ? this.started : this.created);
+		return "Job " + this.id + " [" + this.description + "]: " + state + " for " + elapsed / 1000 + " s, "
+				+ (this.events.size() + this.forgotten) + " events";
+	}
+}
@@ -0,0 +1,21 @@
+package dingo.server;
+
+/** Follows a {@link Job} while it runs. Methods are called with the job locked, in the order the events happen, so
+ *  they should return quickly and never call back the job.
+ * @author marco
+ *
+ */
+public interface JobListener {
+
+	/** Called for every event of the job, also for the ones before the listener was added
+	 * @param job Job followed
+	 * @param event Description of the event, e.g. the progress of a machine
+	 */
+	public void event(Job job, String event);
+
+	/** Called once, when the job is over
+	 * @param job Job followed, its state tells how it ended
+	 */
+	public void done(Job job);
+
+}
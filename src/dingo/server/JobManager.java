@@ -0,0 +1,102 @@
+package dingo.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Executes the {@link Job}s started by the terminals on a fixed number of threads, the others wait in a queue.
+ *  Jobs are remembered until MAX_FINISHED newer jobs are over.
+ * @author marco
+ *
+ */
+public class JobManager {
+	//Finished jobs remembered, the oldest are forgotten first
+	private static final int MAX_FINISHED = 100;
+
+	private ExecutorService executor;
+	private LinkedHashMap<Integer, Job> jobs = new LinkedHashMap<Integer, Job>();
+	private int lastId = 0;
+
+	/**
+	 * @param threads Number of jobs running at the same time
+	 */
+	public JobManager(int threads){
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+	}
+
+	/** Queues a new job
+	 * @param description What the job does
+	 * @param work Work of the job
+	 * @return the job, already queued
+	 */
+	public Job submit(String description, final JobTask work){
+		final Job job;
+		synchronized(this){
+			job = new Job(++this.lastId, description);
+			this.jobs.put(job.getId(), job);
+			this.forget();
+		}
+		System.out.println("[Jobs] Job " + job.getId() + " queued: " + description);
+		job.setTask(this.executor.submit(new Runnable() {
+			public void run() {
+				job.run(work);
+				System.out.println("[Jobs] " + job);
+			}
+		}));
+		return job;
+	}
+
+	//Forgets the oldest finished jobs
+	private void forget(){
+		int finished = 0;
+		for(Job job: this.jobs.values()){
+			if(job.isDone())
+				finished++;
+		}
+		Iterator<Job> jobs = this.jobs.values().iterator();
+		while(finished > MAX_FINISHED && jobs.hasNext()){
+			if(jobs.next().isDone()){
+				jobs.remove();
+				finished--;
+			}
+		}
+	}
+
+	/**
+	 * @param id Id of a job
+	 * @return the job, null if it doesn't exist or has been forgotten
+	 */
+	public synchronized Job get(int id){
+		return this.jobs.get(id);
+	}
+
+	/**
+	 * @return jobs remembered, the oldest first
+	 */
+	public synchronized List<Job> getJobs(){
+		return new ArrayList<Job>(this.jobs.values());
+	}
+
+	//Cancels all the jobs not over yet and stops the threads
+	public void shutdown(){
+		for(Job job: this.getJobs()){
+			job.cancel();
+		}
+		this.executor.shutdownNow();
+	}
+
+	@Override
+	public synchronized String toString(){
+		int running = 0, queued = 0;
+		for(Job job: this.jobs.values()){
+			if(job.getState() == Job.State.RUNNING)
+				running++;
+			else if(job.getState() == Job.State.QUEUED)
+				queued++;
+		}
+		return running + " running, " + queued + " queued, " + (this.jobs.size() - running - queued) + " finished";
+	}
+}
@@ -0,0 +1,16 @@
+package dingo.server;
+
+/** Work of a {@link Job}, executed by the threads of the {@link JobManager}
+ * @author marco
+ *
+ */
+public interface JobTask {
+
+	/** Does the work, reporting its progress as events of the job. The thread is interrupted if the job is cancelled.
+	 * @param job Job the work belongs to
+	 * @return true if the work succeeded
+	 * @throws Exception if the work failed
+	 */
+	public boolean run(Job job) throws Exception;
+
+}
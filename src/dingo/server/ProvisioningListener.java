@@ -0,0 +1,23 @@
+package dingo.server;
+
+/** Receives the progress and the result of every machine provisioned by a bulk add, as soon as they are known
+ * @author marco
+ *
+ */
+public interface ProvisioningListener {
+
+	/** Called once for every machine, in the order the machines finish, from the thread that started the bulk add
+	 * @param location Machine that has been provisioned
+	 * @param success true if Bolt has been installed and the machine added to the cloud
+	 */
+	public void provisioned(BoltLocation location, boolean success);
+
+	/** Called about once a second while Bolt is installed on a machine, when its phase or the bytes sent change,
+	 *  from a timer thread shared by all the machines; the last time, from the thread provisioning the machine
+	 * @param location Machine being provisioned
+	 * @param phase What the installation is doing, e.g. copying archive
+	 * @param sent Bytes sent to the machine so far
+	 */
+	public void progress(BoltLocation location, String phase, long sent);
+
+}
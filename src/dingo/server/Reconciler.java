@@ -0,0 +1,394 @@
+package dingo.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import communication.CommunicationClient;
+import communication.SshClient;
+import communication.StreamSource;
+import dingo.Settings;
+import dingo.server.archive.ArchiveManifest;
+import dingo.server.filesystem.FileIndex;
+import dingo.server.filesystem.IgnoreRules;
+
+/** Brings the remote copy of a Bolt instance back in line with the local base directory: the remote tree is listed
+ *  with a single command, compared with the local one, and only missing, stale and (optionally) extra entries are
+ *  transferred or deleted. Every step can be repeated, so an interrupted pass is simply run again.
+ * @author marco
+ *
+ */
+public class Reconciler {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	//Remote copies older than the local file by more than this are considered stale
+	private static final long MTIME_TOLERANCE = 1000;
+
+	private BoltInstance instance;
+	//Local hashes are read from here when possible
+	private FileIndex files;
+	//Ignored paths are neither sent nor deleted
+	private IgnoreRules ignore;
+	private Path baseDir;
+	private Path archive;
+	private boolean deleteExtra;
+	private boolean checksum;
+	private long bundleMaxFileSize;
+	private int bundleMaxFiles;
+
+	/** Creates a reconciliation pass for an instance
+	 * @param instance Bolt instance to bring up to date
+	 * @param manager Manager of the instance, gives local directory, archive and settings
+	 */
+	public Reconciler(BoltInstance instance, BoltsManager manager){
+		this(instance, manager, false);
+	}
+
+	/** Creates a reconciliation pass for an instance
+	 * @param instance Bolt instance to bring up to date
+	 * @param manager Manager of the instance, gives local directory, archive and settings
+	 * @param deleteExtra true to delete extra remote entries even if RECONCILE_DELETE is not set
+	 */
+	public Reconciler(BoltInstance instance, BoltsManager manager, boolean deleteExtra){
+		this.instance = instance;
+		this.baseDir = manager.getLocalBaseDir();
+		this.archive = manager.getLocalArchive();
+		this.files = manager.getFileIndex();
+		this.ignore = manager.getIgnoreRules();
+
+		Properties settings = manager.getSettings();
+		this.deleteExtra = deleteExtra || Boolean.parseBoolean(settings.getProperty("RECONCILE_DELETE", "false").trim());
+		this.checksum = Boolean.parseBoolean(settings.getProperty("RECONCILE_CHECKSUM", "false").trim());
+		this.bundleMaxFileSize = Settings.getLong(settings, "BATCH_MAX_FILE_SIZE", 64) * 1024;
+		this.bundleMaxFiles = Math.max(1, Settings.getInt(settings, "BATCH_MAX_FILES", 1000));
+	}
+
+	/** Runs the reconciliation
+	 * @return true if the remote copy is now equal to the local base directory
+	 */
+	public boolean run(){
+		CommunicationClient cc = this.instance.getClient();
+		if(cc == null)
+			return false;
+		String host = this.instance.getHost();
+		System.out.println("[Reconciler] Reconciling " + host + " with " + this.baseDir + "...");
+
+		LinkedHashMap<String, Entry> local;
+		Map<String, Entry> remote;
+		try {
+			local = this.listLocal();
+			remote = this.listRemote(cc);
+		} catch (IOException e) {
+			System.out.println("[Reconciler] Unable to list the files of " + host + ": " + e.getMessage());
+			return false;
+		}
+		if(remote == null)
+			return false;
+
+		//Compare the two trees
+		List<String> send = new ArrayList<String>();
+		List<String> delete = new ArrayList<String>();
+		List<String> sameSize = new ArrayList<String>();
+		int missing = 0, stale = 0, extra = 0;
+		for(Map.Entry<String, Entry> item: local.entrySet()){
+			Entry mine = item.getValue();
+			Entry theirs = remote.get(item.getKey());
+			if(theirs == null){
+				missing++;
+				send.add(item.getKey());
+			} else if(theirs.directory != mine.directory){
+				//Replaced by something of another type
+				stale++;
+				delete.add(item.getKey());
+				send.add(item.getKey());
+			} else if(!mine.directory){
+				if(theirs.size != mine.size || (!this.checksum && mine.modified > theirs.modified + MTIME_TOLERANCE)){
+					stale++;
+					send.add(item.getKey());
+				} else if(this.checksum){
+					sameSize.add(item.getKey());
+				}
+			}
+		}
+		if(!sameSize.isEmpty()){
+			List<String> changed = this.compareChecksums(cc, sameSize);
+			if(changed == null)
+				return false;
+			stale += changed.size();
+			send.addAll(changed);
+		}
+		if(this.deleteExtra){
+			ArchiveManifest manifest = this.instance.getManifest();
+			if(manifest == null){
+				System.out.println("[Reconciler] Content of the archive on " + host + " unknown, extra files are not deleted.");
+			} else {
+				String skipped = null;
+				//Remote listing is in pre-order, a deleted or ignored directory is followed by its content
+				for(Map.Entry<String, Entry> item: remote.entrySet()){
+					String name = item.getKey();
+					if(skipped != null && name.startsWith(skipped + "/"))
+						continue;
+					if(this.ignore.isIgnored(name, item.getValue().directory)){
+						skipped = name;
+						continue;
+					}
+					if(!local.containsKey(name) && !manifest.contains(name) && !name.equals(this.relativeArchive())){
+						extra++;
+						delete.add(name);
+						skipped = name;
+					}
+				}
+			}
+		}
+
+		System.out.println("[Reconciler] " + host + ": " + missing + " missing, " + stale + " stale, " + extra + " extra, " + local.size() + " local entries.");
+		if(!this.delete(cc, delete))
+			return false;
+		return this.send(send, local);
+	}
+
+	/** Lists the local base directory, in pre-order
+	 */
+	private LinkedHashMap<String, Entry> listLocal() throws IOException{
+		final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+		Files.walkFileTree(this.baseDir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				if(ignore.isIgnored(dir, true))
+					return FileVisitResult.SKIP_SUBTREE;
+				if(!dir.equals(baseDir))
+					entries.put(name(dir), new Entry(true, 0, attrs.lastModifiedTime().toMillis()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if(attrs.isRegularFile() && !file.equals(archive) && !ignore.isIgnored(file, false))
+					entries.put(name(file), new Entry(false, attrs.size(), attrs.lastModifiedTime().toMillis()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				System.out.println("[Reconciler] Unable to read " + file + ", skipping it.");
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return entries;
+	}
+
+	/** Lists the remote directory with a single find, in pre-order
+	 * @return the remote entries, null if the listing failed
+	 */
+	private Map<String, Entry> listRemote(CommunicationClient cc) throws IOException{
+		ByteArrayOutputStream listing = new ByteArrayOutputStream();
+		String command = "cd " + SshClient.quote(this.instance.getBaseDir()) + " && find . -mindepth 1 -printf '%y %s %T@ %P\\0'";
+		if(cc.runCommand(command, listing, 0) != 0){
+			System.out.println("[Reconciler] Unable to list the remote directory " + this.instance.getBaseDir());
+			return null;
+		}
+
+		LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+		for(String record: listing.toString("UTF-8").split("\0")){
+			//Type, size, modification time in seconds with fraction, relative path
+			String[] fields = record.split(" ", 4);
+			if(fields.length < 4)
+				continue;
+			char type = fields[0].charAt(0);
+			if(type != 'f' && type != 'd')
+				continue;
+			long modified = (long) (Double.parseDouble(fields[2]) * 1000);
+			entries.put(fields[3], new Entry(type == 'd', Long.parseLong(fields[1]), modified));
+		}
+		return entries;
+	}
+
+	/** Compares the md5 of local and remote files
+	 * @return names of the files that differ, null if the remote checksums couldn't be computed
+	 */
+	private List<String> compareChecksums(CommunicationClient cc, final List<String> names){
+		ByteArrayOutputStream sums = new ByteArrayOutputStream();
+		final String dir = SshClient.quote(this.instance.getBaseDir());
+		boolean computed = cc.pipeCommand("cd " + dir + " && xargs -0 md5sum --", new StreamSource() {
+			public void writeTo(OutputStream out) throws IOException {
+				for(String name: names){
+					out.write(name.getBytes(UTF8));
+					out.write(0);
+				}
+			}
+		}, sums);
+		if(!computed){
+			System.out.println("[Reconciler] Unable to compute the remote checksums.");
+			return null;
+		}
+
+		HashMap<String, String> remote = new HashMap<String, String>();
+		try {
+			for(String line: sums.toString("UTF-8").split("\n")){
+				//md5sum escapes names containing backslashes, newlines or carriage returns and marks the line with a leading backslash
+				boolean escaped = line.startsWith("\\");
+				if(escaped)
+					line = line.substring(1);
+				if(line.length() < 34)
+					continue;
+				String name = line.substring(34);
+				if(escaped)
+					name = unescape(name);
+				remote.put(name, line.substring(0, 32));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+
+		List<String> changed = new ArrayList<String>();
+		for(String name: names){
+			try {
+				if(!md5(this.baseDir.resolve(name), this.files).equals(remote.get(name)))
+					changed.add(name);
+			} catch (IOException e) {
+				//It will be reported by the WatchDog if it changed
+				System.out.println("[Reconciler] Unable to read " + name + ", skipping it.");
+			}
+		}
+		return changed;
+	}
+
+	/** Deletes remote entries, with a single command
+	 */
+	private boolean delete(CommunicationClient cc, final List<String> names){
+		if(names.isEmpty())
+			return true;
+
+		return cc.pipeCommand("cd " + SshClient.quote(this.instance.getBaseDir()) + " && xargs -0 rm -rf --", new StreamSource() {
+			public void writeTo(OutputStream out) throws IOException {
+				for(String name: names){
+					out.write(name.getBytes(UTF8));
+					out.write(0);
+				}
+			}
+		});
+	}
+
+	/** Sends directories and small files in bundles, big files one by one after their directories exist
+	 */
+	private boolean send(List<String> names, Map<String, Entry> local){
+		boolean result = true;
+		List<Path> bundle = new ArrayList<Path>();
+		List<Path> big = new ArrayList<Path>();
+		for(String name: names){
+			Entry entry = local.get(name);
+			Path file = this.baseDir.resolve(name);
+			if(entry.directory || entry.size <= this.bundleMaxFileSize)
+				bundle.add(file);
+			else
+				big.add(file);
+
+			if(bundle.size() >= this.bundleMaxFiles){
+				result = this.instance.filesBundled(bundle, this.baseDir) && result;
+				bundle = new ArrayList<Path>();
+			}
+		}
+		if(!bundle.isEmpty())
+			result = this.instance.filesBundled(bundle, this.baseDir) && result;
+		for(Path file: big){
+			result = this.instance.fileChanged(file, this.baseDir) && result;
+		}
+
+		System.out.println("[Reconciler] " + this.instance.getHost() + (result ? " reconciled." : " not completely reconciled, run it again."));
+		return result;
+	}
+
+	private String name(Path file){
+		return this.baseDir.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+	}
+
+	/**
+	 * @return name of the local archive relative to the base directory, if it is inside it
+	 */
+	private String relativeArchive(){
+		return this.archive.startsWith(this.baseDir) ? this.name(this.archive) : null;
+	}
+
+	/** md5 of a local file, files that didn't change since they were last hashed are not read again
+	 * @param file Absolute local Path of the file
+	 * @param files Index of the local files, null to read the file anyway
+	 * @return md5 of the file, in hexadecimal
+	 */
+	static String md5(Path file, FileIndex files) throws IOException{
+		byte[] digest;
+		if(files != null){
+			digest = files.hash(file);
+		} else {
+			MessageDigest md5;
+			try {
+				md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+			byte[] buffer = new byte[64 * 1024];
+			try(InputStream in = Files.newInputStream(file)){
+				int count;
+				while((count = in.read(buffer)) >= 0){
+					md5.update(buffer, 0, count);
+				}
+			}
+			digest = md5.digest();
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for(byte b: digest){
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/** Undoes the escaping of md5sum, in a single pass so that an escaped backslash followed by n stays as it is
+	 * @param name Name escaped by md5sum
+	 * @return the real name
+	 */
+	private static String unescape(String name){
+		StringBuilder result = new StringBuilder(name.length());
+		for(int i=0; i<name.length(); i++){
+			char c = name.charAt(i);
+			if(c == '\\' && i + 1 < name.length()){
+				c = name.charAt(++i);
+				if(c == 'n')
+					c = '\n';
+				else if(c == 'r')
+					c = '\r';
+			}
+			result.append(c);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * File or directory of one of the two trees
+	 */
+	private static class Entry {
+		boolean directory;
+		long size;
+		long modified;
+
+		Entry(boolean directory, long size, long modified){
+			this.directory = directory;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package dingo.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import dingo.Settings;
+import dingo.server.filesystem.UpdateEvent;
+import dingo.server.filesystem.UpdateEvent.Kind;
+
+/** Distribution tree of the big files. The server uploads a file only to the first RELAY_FANOUT instances, the
+ *  seeds; every other instance gets it from its parent in the tree, over the SSH connection of the parent, and each
+ *  instance has at most RELAY_FANOUT children. The uplink of the server carries a file RELAY_FANOUT times, however
+ *  many instances there are.
+ *  <p>An instance waits for its parent to have the same version of the file. If the parent is late, has different
+ *  content or the copy fails, the server sends the file directly.
+ * @author marco
+ *
+ */
+public class RelayTree {
+	//Files remembered per instance, the oldest are forgotten first
+	private static final int MAX_DELIVERIES = 10000;
+
+	private BoltsManager manager;
+	private int fanout;
+	private long minFileSize;
+	private long wait;
+
+	//Instances in the order they joined: the parent of the i-th is the (i / fanout - 1)-th
+	private ArrayList<BoltInstance> instances = new ArrayList<BoltInstance>();
+	//Last version of every file uploaded to every instance
+	private HashMap<BoltInstance, Map<Path, Delivery>> deliveries = new HashMap<BoltInstance, Map<Path, Delivery>>();
+	private long relayed = 0;
+	private long fallbacks = 0;
+
+	/**
+	 * @param manager Manager of the instances, gives settings and local file index
+	 */
+	public RelayTree(BoltsManager manager){
+		this.manager = manager;
+		Properties settings = manager.getSettings();
+		this.fanout = Math.max(1, Settings.getInt(settings, "RELAY_FANOUT", 0));
+		this.minFileSize = Settings.getLong(settings, "RELAY_MIN_FILE_SIZE", 1024) * 1024;
+		this.wait = Settings.getLong(settings, "RELAY_WAIT", 60000);
+	}
+
+	/** Adds an instance at the bottom of the tree
+	 * @param instance Bolt instance just added to the cloud
+	 */
+	public synchronized void add(BoltInstance instance){
+		if(this.deliveries.containsKey(instance))
+			return;
+		this.instances.add(instance);
+		this.deliveries.put(instance, new LinkedHashMap<Path, Delivery>(){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Path, Delivery> eldest){
+				return this.size() > MAX_DELIVERIES;
+			}
+		});
+	}
+
+	/** Removes an instance, the instances after it move up in the tree
+	 * @param instance Bolt instance removed from the cloud
+	 */
+	public synchronized void remove(BoltInstance instance){
+		this.instances.remove(instance);
+		this.deliveries.remove(instance);
+		//Children waiting for it go on their own
+		this.notifyAll();
+	}
+
+	/**
+	 * @param instance Bolt instance of the tree
+	 * @return the instance it gets big files from, null if it gets them from the server
+	 */
+	public synchronized BoltInstance getParent(BoltInstance instance){
+		int index = this.instances.indexOf(instance);
+		if(index < this.fanout)
+			return null;
+		return this.instances.get(index / this.fanout - 1);
+	}
+
+	/** Uploads a file added or changed to an instance, copying it from its parent when possible
+	 * @param instance Bolt instance to update
+	 * @param item File added or changed
+	 * @param baseDir Local base directory
+	 * @return true if the file has been uploaded
+	 */
+	public boolean upload(BoltInstance instance, UpdateEvent item, Path baseDir){
+		Path file = item.getFile();
+		Delivery version = Delivery.of(file);
+		BoltInstance parent = this.getParent(instance);
+
+		boolean uploaded = false;
+		if(parent != null && version != null && version.size >= this.minFileSize && this.await(parent, file, version)){
+			uploaded = this.forward(parent, instance, file, baseDir, version.size);
+			synchronized(this){
+				if(uploaded)
+					this.relayed++;
+				else
+					this.fallbacks++;
+			}
+		}
+		if(!uploaded){
+			if(item.getKind() == Kind.FILE_ADDED)
+				uploaded = instance.fileAdded(file, baseDir);
+			else
+				uploaded = instance.fileChanged(file, baseDir);
+		}
+
+		if(version != null)
+			this.delivered(instance, file, version.result(uploaded));
+		return uploaded;
+	}
+
+	/** Waits until the parent has uploaded the same version of a file
+	 * @return true if the parent has it, false if it failed or the time expired
+	 */
+	private synchronized boolean await(BoltInstance parent, Path file, Delivery version){
+		long deadline = System.currentTimeMillis() + this.wait;
+		try {
+			while(true){
+				Map<Path, Delivery> done = this.deliveries.get(parent);
+				if(done == null)
+					return false;
+				Delivery delivery = done.get(file);
+				if(delivery != null && delivery.same(version))
+					return delivery.uploaded;
+
+				long left = deadline - System.currentTimeMillis();
+				if(left <= 0){
+					System.out.println("[Relay] " + parent.getHost() + " doesn't have " + file + " yet, sending it from here.");
+					return false;
+				}
+				this.wait(left);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/** Copies a file from the parent, checking first that its copy is the local one
+	 */
+	private boolean forward(BoltInstance parent, BoltInstance instance, Path file, Path baseDir, long size){
+		String md5;
+		try {
+			md5 = Reconciler.md5(file, this.manager.getFileIndex());
+		} catch (IOException e) {
+			return false;
+		}
+		//At least 1 MB/s, plus a minute to connect
+		long timeout = 60000 + size / 1024;
+		return parent.fileForwarded(file, baseDir, md5, instance, timeout);
+	}
+
+	private synchronized void delivered(BoltInstance instance, Path file, Delivery delivery){
+		Map<Path, Delivery> done = this.deliveries.get(instance);
+		if(done == null)
+			return;
+		done.put(file, delivery);
+		this.notifyAll();
+	}
+
+	/**
+	 * @param instance Bolt instance of the tree
+	 * @return where the instance gets big files from
+	 */
+	public String describe(BoltInstance instance){
+		BoltInstance parent = this.getParent(instance);
+		return parent == null ? "server" : parent.getUser() + "@" + parent.getHost();
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "fan-out " + this.fanout + ", " + this.instances.size() + " instances, " + this.relayed + " files relayed, "
+				+ this.fallbacks + " sent by the server after a relay failed";
+	}
+
+	/**
+	 * Version of a file uploaded to an instance, and whether the upload succeeded
+	 */
+	private static class Delivery {
+		long size;
+		long modified;
+		boolean uploaded;
+
+		Delivery(long size, long modified, boolean uploaded){
+			this.size = size;
+			this.modified = modified;
+			this.uploaded = uploaded;
+		}
+
+		/**
+		 * @return the current version of a local file, null if it can't be read
+		 */
+		static Delivery of(Path file){
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+				return new Delivery(attributes.size(), attributes.lastModifiedTime().toMillis(), false);
+			} catch (IOException e) {
+				return null;
+			}
+		}
+
+		Delivery result(boolean uploaded){
+			return new Delivery(this.size, this.modified, uploaded);
+		}
+
+		boolean same(Delivery other){
+			return this.size == other.size && this.modified == other.modified;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package dingo.server.archive;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** Differences between two versions of an archive: entries added or changed, entries removed
+ * @author marco
+ *
+ */
+public class ArchiveDiff {
+	private List<String> changed;
+	private List<String> removed;
+
+	ArchiveDiff(List<String> changed, List<String> removed){
+		this.changed = changed;
+		this.removed = removed;
+	}
+
+	/**
+	 * @return true if the two versions have the same content
+	 */
+	public boolean isEmpty(){
+		return this.changed.isEmpty() && this.removed.isEmpty();
+	}
+
+	/**
+	 * @return names of the entries added or changed, in archive order
+	 */
+	public List<String> getChanged(){
+		return this.changed;
+	}
+
+	/**
+	 * @return names of the entries that are not in the new version anymore, or changed type
+	 */
+	public List<String> getRemoved(){
+		return this.removed;
+	}
+
+	/** Writes a .tar.gz containing only the added and changed entries of the new archive
+	 * @param newArchive Absolute Path of the new version of the archive
+	 * @param out Stream to write to, not closed
+	 * @throws IOException
+	 */
+	public void writeChanged(Path newArchive, OutputStream out) throws IOException{
+		HashSet<String> wanted = new HashSet<String>(this.changed);
+
+		try(InputStream in = new GZIPInputStream(new BufferedInputStream(Files.newInputStream(newArchive)))){
+			GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024);
+			TarReader reader = new TarReader(in);
+			TarWriter writer = new TarWriter(gzip);
+			byte[] buffer = new byte[64 * 1024];
+			TarEntry entry;
+			while((entry = reader.next()) != null){
+				if(!wanted.contains(entry.getName()))
+					continue;
+
+				writer.putEntry(entry);
+				int count;
+				while((count = reader.read(buffer, 0, buffer.length)) >= 0){
+					writer.write(buffer, 0, count);
+				}
+			}
+			writer.finish();
+			gzip.finish();
+		}
+	}
+
+	/** Writes the names of the removed entries, NUL separated, as expected by "xargs -0"
+	 * @param out Stream to write to, not closed
+	 * @throws IOException
+	 */
+	public void writeRemoved(OutputStream out) throws IOException{
+		for(String name: this.removed){
+			out.write(name.getBytes(TarReader.UTF8));
+			out.write(0);
+		}
+		out.flush();
+	}
+
+	@Override
+	public String toString(){
+		return this.changed.size() + " entries added or changed, " + this.removed.size() + " removed";
+	}
+}
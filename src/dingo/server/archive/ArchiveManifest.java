@@ -0,0 +1,167 @@
+package dingo.server.archive;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/** Content of a .tar.gz archive: name, type, size, permissions and md5 of every entry.
+ *  Two manifests can be compared to find what changed between two versions of the archive.
+ * @author marco
+ *
+ */
+public class ArchiveManifest {
+	private Path archive;
+	private long archiveSize;
+	private long archiveModified;
+	private LinkedHashMap<String, Item> items = new LinkedHashMap<String, Item>();
+	private boolean safe = true;
+	//Parent directories of the entries, built the first time they are needed
+	private HashSet<String> directories;
+
+	private ArchiveManifest(Path archive){
+		this.archive = archive;
+	}
+
+	/** Reads the whole archive and builds its manifest
+	 * @param archive Absolute Path of the .tar.gz archive
+	 * @return the manifest of the archive
+	 * @throws IOException if the archive can't be read or is not valid
+	 */
+	public static ArchiveManifest read(Path archive) throws IOException{
+		ArchiveManifest manifest = new ArchiveManifest(archive);
+		manifest.archiveSize = Files.size(archive);
+		manifest.archiveModified = Files.getLastModifiedTime(archive).toMillis();
+
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		try(InputStream in = new GZIPInputStream(new BufferedInputStream(Files.newInputStream(archive)))){
+			TarReader reader = new TarReader(in);
+			byte[] buffer = new byte[64 * 1024];
+			TarEntry entry;
+			while((entry = reader.next()) != null){
+				if(entry.getName().isEmpty() || entry.getName().equals("."))
+					continue;
+				if(!entry.isSafe())
+					manifest.safe = false;
+
+				md5.reset();
+				int count;
+				while((count = reader.read(buffer, 0, buffer.length)) >= 0){
+					md5.update(buffer, 0, count);
+				}
+				manifest.items.put(entry.getName(), new Item(entry, md5.digest()));
+			}
+		}
+
+		return manifest;
+	}
+
+	/**
+	 * @return true if the manifest still describes the archive file on disk
+	 */
+	public boolean isCurrent(){
+		try {
+			return Files.size(this.archive) == this.archiveSize && Files.getLastModifiedTime(this.archive).toMillis() == this.archiveModified;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return false if some entry would be extracted outside the destination directory
+	 */
+	public boolean isSafe(){
+		return this.safe;
+	}
+
+	/**
+	 * @return number of entries of the archive
+	 */
+	public int size(){
+		return this.items.size();
+	}
+
+	/** Tells if a path belongs to the archive, as an entry or as a directory containing entries
+	 * @param name Relative path, with "/" separators
+	 * @return true if the path is extracted from the archive
+	 */
+	public synchronized boolean contains(String name){
+		name = TarEntry.normalize(name);
+		if(this.items.containsKey(name))
+			return true;
+
+		if(this.directories == null){
+			this.directories = new HashSet<String>();
+			for(String entry: this.items.keySet()){
+				for(int slash = entry.indexOf('/'); slash > 0; slash = entry.indexOf('/', slash + 1)){
+					this.directories.add(entry.substring(0, slash));
+				}
+			}
+		}
+		return this.directories.contains(name);
+	}
+
+	/** Compares this (old) manifest with a newer one
+	 * @param newer Manifest of the new version of the archive
+	 * @return entries to extract from the new archive and entries to remove
+	 */
+	public ArchiveDiff diff(ArchiveManifest newer){
+		List<String> changed = new ArrayList<String>();
+		List<String> removed = new ArrayList<String>();
+
+		for(Item item: this.items.values()){
+			Item other = newer.items.get(item.name);
+			//Entries replaced by something of another type have to be removed before extracting
+			if(other == null || other.type != item.type)
+				removed.add(item.name);
+		}
+		for(Item item: newer.items.values()){
+			Item old = this.items.get(item.name);
+			if(old == null || !old.sameAs(item))
+				changed.add(item.name);
+		}
+
+		return new ArchiveDiff(changed, removed);
+	}
+
+	/**
+	 * Entry of the manifest
+	 */
+	private static class Item{
+		String name;
+		char type;
+		long size;
+		int mode;
+		String link;
+		byte[] md5;
+
+		Item(TarEntry entry, byte[] md5){
+			this.name = entry.getName();
+			this.type = entry.getType();
+			this.size = entry.getSize();
+			this.mode = entry.getMode();
+			this.link = entry.getLinkName();
+			this.md5 = md5;
+		}
+
+		boolean sameAs(Item other){
+			return this.type == other.type && this.size == other.size && this.mode == other.mode
+					&& this.link.equals(other.link) && Arrays.equals(this.md5, other.md5);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package dingo.server.archive;
+
+/** Header of an entry of a tar archive
+ * @author marco
+ *
+ */
+public class TarEntry {
+	public static final char TYPE_FILE = '0';
+	public static final char TYPE_HARD_LINK = '1';
+	public static final char TYPE_SYMLINK = '2';
+	public static final char TYPE_DIRECTORY = '5';
+
+	private String name;
+	private long size;
+	private int mode;
+	private long modTime;
+	private char type;
+	private String linkName = "";
+
+	/** Creates a new entry
+	 * @param name Path of the entry inside the archive, relative, without trailing slash
+	 * @param type One of the TYPE constants
+	 * @param size Size of the data, 0 for anything but files
+	 * @param mode Unix permissions
+	 * @param modTime Last modification time, in seconds
+	 */
+	public TarEntry(String name, char type, long size, int mode, long modTime){
+		this.name = normalize(name);
+		this.type = type;
+		this.size = size;
+		this.mode = mode;
+		this.modTime = modTime;
+	}
+
+	/** Normalizes an entry name: no leading "./", no trailing slash
+	 */
+	static String normalize(String name){
+		while(name.startsWith("./"))
+			name = name.substring(2);
+		while(name.endsWith("/") && name.length() > 1)
+			name = name.substring(0, name.length() - 1);
+		return name;
+	}
+
+	/**
+	 * @return true if the name stays inside the directory the archive is extracted to
+	 */
+	public boolean isSafe(){
+		if(this.name.isEmpty() || this.name.startsWith("/"))
+			return false;
+		for(String segment: this.name.split("/")){
+			if(segment.equals(".."))
+				return false;
+		}
+		return true;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	public long getModTime() {
+		return modTime;
+	}
+
+	public char getType() {
+		return type;
+	}
+
+	public boolean isFile(){
+		return type == TYPE_FILE;
+	}
+
+	public boolean isDirectory(){
+		return type == TYPE_DIRECTORY;
+	}
+
+	public String getLinkName() {
+		return linkName;
+	}
+
+	public void setLinkName(String linkName) {
+		this.linkName = linkName == null ? "" : linkName;
+	}
+}
@@ -0,0 +1,220 @@
+package dingo.server.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/** Sequential reader of a tar archive (ustar, with GNU long names and pax path headers).
+ *  Call next() to move to the following entry, then read() its data.
+ * @author marco
+ *
+ */
+public class TarReader {
+	static final int BLOCK = 512;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private InputStream in;
+	private byte[] header = new byte[BLOCK];
+	//Data of the current entry still to be read, and padding after it
+	private long remaining = 0;
+	private long padding = 0;
+
+	/** Creates a reader on an uncompressed tar stream
+	 * @param in Tar stream, wrap it with a GZIPInputStream for .tar.gz archives
+	 */
+	public TarReader(InputStream in){
+		this.in = in;
+	}
+
+	/** Moves to the next entry, skipping what is left of the current one
+	 * @return the next entry, null at the end of the archive
+	 * @throws IOException if the archive is not valid
+	 */
+	public TarEntry next() throws IOException{
+		this.skip(this.remaining + this.padding);
+		this.remaining = 0;
+		this.padding = 0;
+
+		String longName = null;
+		String longLink = null;
+		while(true){
+			if(!this.readBlock(this.header))
+				return null;
+			if(isZero(this.header))
+				return null;
+			if(!checksumOk(this.header))
+				throw new IOException("Invalid tar header checksum");
+
+			char type = (char) this.header[156];
+			long size = parseOctal(this.header, 124, 12);
+
+			if(type == 'L' || type == 'K'){
+				//GNU long name or long link name of the next entry
+				String value = trimNul(new String(this.readData(size), UTF8));
+				if(type == 'L')
+					longName = value;
+				else
+					longLink = value;
+				continue;
+			}
+			if(type == 'x'){
+				//Pax extended header of the next entry
+				String paxPath = paxValue(new String(this.readData(size), UTF8), "path");
+				if(paxPath != null)
+					longName = paxPath;
+				continue;
+			}
+			if(type == 'g'){
+				this.readData(size);
+				continue;
+			}
+
+			String name = longName;
+			if(name == null){
+				name = cString(this.header, 0, 100);
+				String prefix = isUstar(this.header) ? cString(this.header, 345, 155) : "";
+				if(!prefix.isEmpty())
+					name = prefix + "/" + name;
+			}
+			if(type == '\0' || type == '7')
+				type = TarEntry.TYPE_FILE;
+			if(type == TarEntry.TYPE_FILE && name.endsWith("/"))
+				type = TarEntry.TYPE_DIRECTORY;
+
+			boolean hasData = type == TarEntry.TYPE_FILE;
+			TarEntry entry = new TarEntry(name, type, hasData ? size : 0, (int) parseOctal(this.header, 100, 8), parseOctal(this.header, 136, 12));
+			entry.setLinkName(longLink != null ? longLink : cString(this.header, 157, 100));
+
+			this.remaining = size;
+			this.padding = (BLOCK - size % BLOCK) % BLOCK;
+			return entry;
+		}
+	}
+
+	/** Reads data of the current entry
+	 * @return number of bytes read, -1 at the end of the entry
+	 * @throws IOException
+	 */
+	public int read(byte[] buffer, int offset, int length) throws IOException{
+		if(this.remaining <= 0)
+			return -1;
+		int count = this.in.read(buffer, offset, (int) Math.min(length, this.remaining));
+		if(count < 0)
+			throw new EOFException("Truncated tar archive");
+		this.remaining -= count;
+		return count;
+	}
+
+	private byte[] readData(long size) throws IOException{
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BLOCK];
+		long padded = size + (BLOCK - size % BLOCK) % BLOCK;
+		for(long read = 0; read < padded; read += BLOCK){
+			if(!this.readBlock(buffer))
+				throw new EOFException("Truncated tar archive");
+			data.write(buffer, 0, (int) Math.min(BLOCK, Math.max(0, size - read)));
+		}
+		return data.toByteArray();
+	}
+
+	private boolean readBlock(byte[] block) throws IOException{
+		int read = 0;
+		while(read < BLOCK){
+			int count = this.in.read(block, read, BLOCK - read);
+			if(count < 0){
+				if(read == 0)
+					return false;
+				throw new EOFException("Truncated tar archive");
+			}
+			read += count;
+		}
+		return true;
+	}
+
+	private void skip(long bytes) throws IOException{
+		byte[] buffer = new byte[8 * BLOCK];
+		while(bytes > 0){
+			int count = this.in.read(buffer, 0, (int) Math.min(buffer.length, bytes));
+			if(count < 0)
+				throw new EOFException("Truncated tar archive");
+			bytes -= count;
+		}
+	}
+
+	private static boolean isZero(byte[] block){
+		for(byte b: block){
+			if(b != 0)
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isUstar(byte[] header){
+		//POSIX magic is "ustar\0", GNU archives use "ustar " and have no prefix field
+		return header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r' && header[262] == 0;
+	}
+
+	static boolean checksumOk(byte[] header){
+		return parseOctal(header, 148, 8) == checksum(header);
+	}
+
+	/**
+	 * @return checksum of a header, computed with the checksum field filled with spaces
+	 */
+	static long checksum(byte[] header){
+		long sum = 0;
+		for(int i = 0; i < BLOCK; i++){
+			sum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xFF);
+		}
+		return sum;
+	}
+
+	static long parseOctal(byte[] header, int offset, int length){
+		//Base-256 encoding used by GNU tar for big numbers
+		if((header[offset] & 0x80) != 0){
+			long value = 0;
+			for(int i = offset + 1; i < offset + length; i++)
+				value = (value << 8) | (header[i] & 0xFF);
+			return value;
+		}
+
+		long value = 0;
+		for(int i = offset; i < offset + length; i++){
+			byte b = header[i];
+			if(b == 0)
+				break;
+			if(b == ' ')
+				continue;
+			value = (value << 3) + (b - '0');
+		}
+		return value;
+	}
+
+	private static String cString(byte[] header, int offset, int length){
+		int end = offset;
+		while(end < offset + length && header[end] != 0)
+			end++;
+		return new String(header, offset, end - offset, UTF8);
+	}
+
+	private static String trimNul(String value){
+		int end = value.indexOf('\0');
+		return end < 0 ? value : value.substring(0, end);
+	}
+
+	/**
+	 * @return value of a key in pax records ("length key=value\n"), null if missing
+	 */
+	private static String paxValue(String records, String key){
+		String value = null;
+		for(String record: records.split("\n")){
+			int space = record.indexOf(' ');
+			int equals = record.indexOf('=');
+			if(space >= 0 && equals > space && record.substring(space + 1, equals).equals(key))
+				value = record.substring(equals + 1);
+		}
+		return value;
+	}
+}
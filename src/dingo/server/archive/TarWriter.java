@@ -0,0 +1,172 @@
+package dingo.server.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/** Sequential writer of a tar archive (ustar, with GNU long names). Call putEntry(), write the data of files,
+ *  then finish() at the end of the archive.
+ * @author marco
+ *
+ */
+public class TarWriter {
+	private static final int BLOCK = TarReader.BLOCK;
+
+	private OutputStream out;
+	//Data of the current entry still to be written
+	private long remaining = 0;
+	private long padding = 0;
+
+	/** Creates a writer producing an uncompressed tar stream
+	 * @param out Stream to write to, wrap it with a GZIPOutputStream for .tar.gz archives
+	 */
+	public TarWriter(OutputStream out){
+		this.out = out;
+	}
+
+	/** Starts a new entry, the previous one has to be completely written
+	 * @param entry Header of the entry, for files exactly getSize() bytes have to be written next
+	 * @throws IOException
+	 */
+	public void putEntry(TarEntry entry) throws IOException{
+		this.closeEntry();
+
+		String name = entry.isDirectory() ? entry.getName() + "/" : entry.getName();
+		byte[] nameBytes = name.getBytes(TarReader.UTF8);
+		byte[] linkBytes = entry.getLinkName().getBytes(TarReader.UTF8);
+		if(linkBytes.length > 100)
+			this.writeLongName('K', linkBytes);
+		if(nameBytes.length > 100)
+			this.writeLongName('L', nameBytes);
+
+		byte[] header = header(nameBytes, entry.getType(), entry.getSize(), entry.getMode(), entry.getModTime(), linkBytes);
+		this.out.write(header);
+
+		this.remaining = entry.isFile() ? entry.getSize() : 0;
+		this.padding = (BLOCK - this.remaining % BLOCK) % BLOCK;
+	}
+
+	/** Adds a local file or directory to the archive, with its current content and permissions.
+	 *  If the file shrinks while it is read the missing data is written as zeros.
+	 * @param file Absolute Path of the file
+	 * @param name Name of the entry inside the archive
+	 * @return false if the file is neither a regular file nor a directory, nothing is written
+	 * @throws IOException if the file can't be read, for example because it doesn't exist anymore
+	 */
+	public boolean putFile(Path file, String name) throws IOException{
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		long modTime = attributes.lastModifiedTime().to(TimeUnit.SECONDS);
+		if(attributes.isDirectory()){
+			this.putEntry(new TarEntry(name, TarEntry.TYPE_DIRECTORY, 0, mode(file, 0755), modTime));
+			return true;
+		}
+		if(!attributes.isRegularFile())
+			return false;
+
+		try(InputStream in = Files.newInputStream(file)){
+			long size = attributes.size();
+			this.putEntry(new TarEntry(name, TarEntry.TYPE_FILE, size, mode(file, 0644), modTime));
+			byte[] buffer = new byte[(int) Math.min(64 * 1024, Math.max(size, 1))];
+			int count;
+			while(this.remaining > 0 && (count = in.read(buffer, 0, (int) Math.min(buffer.length, this.remaining))) >= 0){
+				this.write(buffer, 0, count);
+			}
+			while(this.remaining > 0){
+				Arrays.fill(buffer, (byte) 0);
+				this.write(buffer, 0, (int) Math.min(buffer.length, this.remaining));
+			}
+		}
+		return true;
+	}
+
+	/** Unix permissions of a file, or a default if the file system doesn't have them
+	 */
+	private static int mode(Path file, int defaultMode) throws IOException{
+		Set<PosixFilePermission> permissions;
+		try {
+			permissions = Files.getPosixFilePermissions(file, LinkOption.NOFOLLOW_LINKS);
+		} catch (UnsupportedOperationException e) {
+			return defaultMode;
+		}
+
+		int mode = 0;
+		for(PosixFilePermission permission: permissions){
+			//Enum order is owner read, write, execute, then group, then others
+			mode |= 0400 >> permission.ordinal();
+		}
+		return mode;
+	}
+
+	/** Writes data of the current entry
+	 * @throws IOException if more data than declared is written
+	 */
+	public void write(byte[] buffer, int offset, int length) throws IOException{
+		if(length > this.remaining)
+			throw new IOException("Too much data for the tar entry");
+		this.out.write(buffer, offset, length);
+		this.remaining -= length;
+	}
+
+	/** Ends the archive, the underlying stream is not closed
+	 * @throws IOException
+	 */
+	public void finish() throws IOException{
+		this.closeEntry();
+		this.out.write(new byte[2 * BLOCK]);
+		this.out.flush();
+	}
+
+	private void closeEntry() throws IOException{
+		if(this.remaining > 0)
+			throw new IOException("Tar entry not completely written, missing " + this.remaining + " bytes");
+		if(this.padding > 0)
+			this.out.write(new byte[(int) this.padding]);
+		this.padding = 0;
+	}
+
+	private void writeLongName(char type, byte[] value) throws IOException{
+		byte[] data = new byte[value.length + 1];
+		System.arraycopy(value, 0, data, 0, value.length);
+		this.out.write(header("././@LongLink".getBytes(TarReader.UTF8), type, data.length, 0644, 0, new byte[0]));
+		this.out.write(data);
+		this.out.write(new byte[(BLOCK - data.length % BLOCK) % BLOCK]);
+	}
+
+	private static byte[] header(byte[] name, char type, long size, int mode, long modTime, byte[] link){
+		byte[] header = new byte[BLOCK];
+		System.arraycopy(name, 0, header, 0, Math.min(100, name.length));
+		octal(header, 100, 8, mode & 07777);
+		octal(header, 108, 8, 0);
+		octal(header, 116, 8, 0);
+		octal(header, 124, 12, size);
+		octal(header, 136, 12, modTime);
+		header[156] = (byte) type;
+		System.arraycopy(link, 0, header, 157, Math.min(100, link.length));
+		System.arraycopy("ustar  \0".getBytes(TarReader.UTF8), 0, header, 257, 8);
+
+		//Checksum: 6 octal digits, NUL, space
+		long checksum = TarReader.checksum(header);
+		octal(header, 148, 7, checksum);
+		header[155] = ' ';
+		return header;
+	}
+
+	/** Writes a zero padded octal number terminated by NUL
+	 */
+	private static void octal(byte[] header, int offset, int length, long value){
+		String digits = Long.toOctalString(value);
+		int pad = length - 1 - digits.length();
+		for(int i = 0; i < length - 1; i++){
+			header[offset + i] = (byte) (i < pad ? '0' : digits.charAt(i - pad));
+		}
+		header[offset + length - 1] = 0;
+	}
+}
@@ -0,0 +1,184 @@
+package dingo.server.filesystem;
+
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/** Watched directories, stored as a tree keyed by path segment: lookups cost as much as the depth of the path,
+ *  and a deleted directory is dropped with all its sub-directories at once. Every watched directory keeps a snapshot
+ *  of its content. Nodes that are not watched and have no watched descendants are removed, so memory follows the
+ *  directories actually watched.
+ * @author marco
+ *
+ */
+public class DirectoryIndex {
+	private Node root = new Node(null, null);
+	private int size = 0;
+
+	/** Adds a watched directory
+	 * @param dir Absolute Path of the directory
+	 * @param key WatchKey of the directory
+	 * @return the WatchKey previously associated with the directory, null if it was not watched
+	 */
+	public WatchKey put(Path dir, WatchKey key){
+		Node node = this.root;
+		for(Path segment: dir){
+			Node child = node.child(segment);
+			if(child == null)
+				child = node.addChild(segment);
+			node = child;
+		}
+
+		WatchKey previous = node.key;
+		node.key = key;
+		if(previous == null)
+			this.size++;
+		return previous;
+	}
+
+	/**
+	 * @param dir Absolute Path
+	 * @return true if the directory is watched
+	 */
+	public boolean contains(Path dir){
+		Node node = this.find(dir);
+		return node != null && node.key != null;
+	}
+
+	/**
+	 * @param dir Absolute Path
+	 * @return the WatchKey of the directory, null if it is not watched
+	 */
+	public WatchKey get(Path dir){
+		Node node = this.find(dir);
+		return node == null ? null : node.key;
+	}
+
+	/** Associates the last known content of a watched directory
+	 * @param dir Absolute Path of a watched directory
+	 * @param snapshot Content of the directory
+	 */
+	public void setSnapshot(Path dir, DirectorySnapshot snapshot){
+		Node node = this.find(dir);
+		if(node != null && node.key != null)
+			node.snapshot = snapshot;
+	}
+
+	/**
+	 * @param dir Absolute Path
+	 * @return the last known content of the directory, null if it is not watched
+	 */
+	public DirectorySnapshot getSnapshot(Path dir){
+		Node node = this.find(dir);
+		return node == null ? null : node.snapshot;
+	}
+
+	/** Removes a directory and all the watched directories below it
+	 * @param dir Absolute Path of the directory
+	 * @return the WatchKeys of the removed directories, empty if none was watched
+	 */
+	public List<WatchKey> removeTree(Path dir){
+		List<WatchKey> removed = new ArrayList<WatchKey>();
+		Node node = this.find(dir);
+		if(node == null)
+			return removed;
+
+		this.collect(node, removed);
+		this.size -= removed.size();
+		node.parent.removeChild(node.name);
+		this.prune(node.parent);
+		return removed;
+	}
+
+	/** Removes a single directory, the directories below it stay watched
+	 * @param dir Absolute Path of the directory
+	 * @return the WatchKey of the directory, null if it was not watched
+	 */
+	public WatchKey remove(Path dir){
+		Node node = this.find(dir);
+		if(node == null || node.key == null)
+			return null;
+
+		WatchKey key = node.key;
+		node.key = null;
+		node.snapshot = null;
+		this.size--;
+		this.prune(node);
+		return key;
+	}
+
+	/**
+	 * @return number of watched directories
+	 */
+	public int size(){
+		return this.size;
+	}
+
+	private Node find(Path dir){
+		Node node = this.root;
+		for(Path segment: dir){
+			node = node.child(segment);
+			if(node == null)
+				return null;
+		}
+		return node;
+	}
+
+	private void collect(Node node, List<WatchKey> keys){
+		if(node.key != null)
+			keys.add(node.key);
+		if(node.children != null){
+			for(Node child: node.children.values()){
+				this.collect(child, keys);
+			}
+		}
+	}
+
+	/** Removes the nodes that are not watched and have no children, going up to the root
+	 */
+	private void prune(Node node){
+		while(node != this.root && node.key == null && (node.children == null || node.children.isEmpty())){
+			node.parent.removeChild(node.name);
+			node = node.parent;
+		}
+	}
+
+	/**
+	 * Segment of a path, watched if it has a key
+	 */
+	private static class Node {
+		Path name;
+		Node parent;
+		WatchKey key;
+		DirectorySnapshot snapshot;
+		//Created only for directories that have sub-directories
+		HashMap<Path, Node> children;
+
+		Node(Node parent, Path name){
+			this.parent = parent;
+			this.name = name;
+		}
+
+		Node child(Path name){
+			return this.children == null ? null : this.children.get(name);
+		}
+
+		Node addChild(Path name){
+			if(this.children == null)
+				this.children = new HashMap<Path, Node>(4);
+			Node child = new Node(this, name);
+			this.children.put(name, child);
+			return child;
+		}
+
+		void removeChild(Path name){
+			if(this.children != null){
+				this.children.remove(name);
+				if(this.children.isEmpty())
+					this.children = null;
+			}
+		}
+	}
+}
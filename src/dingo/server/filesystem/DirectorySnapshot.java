@@ -0,0 +1,179 @@
+package dingo.server.filesystem;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Content of a watched directory as last seen: name, type, size and modification time of every entry.
+ *  Kept up to date with the events of the directory, it tells what really changed when events are lost.
+ * @author marco
+ *
+ */
+public class DirectorySnapshot {
+	private HashMap<Path, Entry> entries = new HashMap<Path, Entry>();
+
+	private DirectorySnapshot(){
+	}
+
+	/** Reads the current content of a directory
+	 * @param dir Absolute Path of the directory
+	 * @param index Index updated with the files of the directory, can be null
+	 * @return the snapshot of the directory
+	 * @throws IOException if the directory can't be read
+	 */
+	public static DirectorySnapshot scan(Path dir, FileIndex index) throws IOException{
+		return scan(dir, index, null);
+	}
+
+	/** Reads the current content of a directory, leaving out the ignored entries
+	 * @param dir Absolute Path of the directory
+	 * @param index Index updated with the files of the directory, can be null
+	 * @param ignore Entries not to read, can be null
+	 * @return the snapshot of the directory
+	 * @throws IOException if the directory can't be read
+	 */
+	public static DirectorySnapshot scan(Path dir, FileIndex index, IgnoreRules ignore) throws IOException{
+		DirectorySnapshot snapshot = new DirectorySnapshot();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)){
+			for(Path child: stream){
+				Entry entry = stat(child, index, ignore);
+				if(entry != null)
+					snapshot.entries.put(child.getFileName(), entry);
+			}
+		}
+		return snapshot;
+	}
+
+	/** Reads again a single entry after an event
+	 * @param dir Absolute Path of the directory
+	 * @param name Name of the entry
+	 * @param index Index updated with the entry, can be null
+	 */
+	public void update(Path dir, Path name, FileIndex index){
+		Entry entry = stat(dir.resolve(name), index, null);
+		if(entry == null)
+			this.entries.remove(name);
+		else
+			this.entries.put(name, entry);
+	}
+
+	/** Forgets an entry after it has been deleted
+	 * @param name Name of the entry
+	 */
+	public void remove(Path name){
+		this.entries.remove(name);
+	}
+
+	/** Compares this (old) snapshot with the current content of the directory
+	 * @param current Newer snapshot of the same directory
+	 * @return the changes, in this order: entries removed, added and modified
+	 */
+	public List<Change> diff(DirectorySnapshot current){
+		List<Change> removed = new ArrayList<Change>();
+		List<Change> added = new ArrayList<Change>();
+		List<Change> modified = new ArrayList<Change>();
+
+		for(Map.Entry<Path, Entry> item: this.entries.entrySet()){
+			Entry now = current.entries.get(item.getKey());
+			//Replaced by something of another type: removed and added again
+			if(now == null || now.directory != item.getValue().directory)
+				removed.add(new Change(item.getKey(), Change.REMOVED, item.getValue().directory));
+		}
+		for(Map.Entry<Path, Entry> item: current.entries.entrySet()){
+			Entry before = this.entries.get(item.getKey());
+			if(before == null || before.directory != item.getValue().directory)
+				added.add(new Change(item.getKey(), Change.ADDED, item.getValue().directory));
+			else if(!item.getValue().directory && (before.size != item.getValue().size || before.modified != item.getValue().modified))
+				modified.add(new Change(item.getKey(), Change.MODIFIED, false));
+		}
+
+		removed.addAll(added);
+		removed.addAll(modified);
+		return removed;
+	}
+
+	/**
+	 * @param name Name of an entry
+	 * @return true if the entry is in the snapshot
+	 */
+	public boolean contains(Path name){
+		return this.entries.containsKey(name);
+	}
+
+	/**
+	 * @return number of entries of the directory
+	 */
+	public int size(){
+		return this.entries.size();
+	}
+
+	private static Entry stat(Path file, FileIndex index, IgnoreRules ignore){
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if(ignore != null && ignore.isIgnored(file, attributes.isDirectory()))
+				return null;
+			if(index != null)
+				index.update(file, attributes);
+			return new Entry(attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis());
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Difference between two snapshots of a directory
+	 */
+	public static class Change {
+		public static final int REMOVED = 0;
+		public static final int ADDED = 1;
+		public static final int MODIFIED = 2;
+
+		private Path name;
+		private int type;
+		private boolean directory;
+
+		Change(Path name, int type, boolean directory){
+			this.name = name;
+			this.type = type;
+			this.directory = directory;
+		}
+
+		public Path getName(){
+			return this.name;
+		}
+
+		public int getType(){
+			return this.type;
+		}
+
+		public boolean isDirectory(){
+			return this.directory;
+		}
+	}
+
+	/**
+	 * Entry of the directory
+	 */
+	private static class Entry {
+		boolean directory;
+		long size;
+		long modified;
+
+		Entry(boolean directory, long size, long modified){
+			this.directory = directory;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package dingo.server.filesystem;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+import dingo.server.filesystem.UpdateEvent.Kind;
+
+/**
+ * Sits between the {@link WatchDog} and the updater: merges all the events of the same path into one net operation,
+ * waiting for the path to be quiet for a while before passing it on. E.g. a file created and then modified
+ * becomes a single file_added, a file created and then deleted disappears.
+ * @author marco
+ *
+ */
+public class EventCoalescer implements Runnable{
+
+	private static final Kind[] NOTHING = new Kind[0];
+
+	private EventRing input;
+	private PathTable paths;
+	private BlockingQueue<UpdateEvent> output;
+	private long quietWindow;
+	private long maxDelay;
+	private volatile boolean run;
+
+	//Pending changes, in the order their path was first seen
+	private LinkedHashMap<Path, PendingChange> pending = new LinkedHashMap<Path, PendingChange>();
+
+	/** Creates a new EventCoalescer
+	 * @param input Ring the WatchDog puts raw events in
+	 * @param paths Paths of the raw events
+	 * @param output Queue of the merged events
+	 * @param quietWindow Time (ms) a path has to be quiet before its change is passed on
+	 */
+	public EventCoalescer(EventRing input, PathTable paths, BlockingQueue<UpdateEvent> output, long quietWindow){
+		this.input = input;
+		this.paths = paths;
+		this.output = output;
+		this.quietWindow = quietWindow < 0 ? 0 : quietWindow;
+		//A path that never stops changing is passed on anyway after a while
+		this.maxDelay = this.quietWindow * 10;
+	}
+
+	public void run() {
+		System.out.println("[Coalescer] Starting, quiet window: " + this.quietWindow + " ms");
+		this.run = true;
+
+		while(this.run){
+			try {
+				long item = this.input.take(this.nextTimeout());
+				if(item != EventRing.NONE){
+					this.merge(EventRing.pathId(item), EventRing.kind(item));
+					//Merge everything else already available before flushing
+					while((item = this.input.take(0)) != EventRing.NONE){
+						this.merge(EventRing.pathId(item), EventRing.kind(item));
+					}
+				}
+				this.flush(System.currentTimeMillis());
+			} catch (InterruptedException e) {
+				System.out.println("[Coalescer] Interrupted!");
+				return;
+			}
+		}
+
+		System.out.println("[Coalescer] Shutting down.");
+	}
+
+	/**
+	 * @return how long to wait for the next event before checking the pending changes again
+	 */
+	private long nextTimeout(){
+		if(this.pending.isEmpty())
+			return Long.MAX_VALUE;
+
+		long now = System.currentTimeMillis();
+		long next = Long.MAX_VALUE;
+		for(PendingChange change: this.pending.values()){
+			next = Math.min(next, change.deadline());
+		}
+		return Math.max(1, next - now);
+	}
+
+	/** Merges an event into the change pending for its path
+	 * @param pathId Id of the path of the raw event
+	 * @param kind Kind of the raw event
+	 */
+	private void merge(int pathId, Kind kind){
+		boolean directory = kind.isDirectory();
+		boolean added = kind.isAdded();
+		boolean deleted = kind.isDeleted();
+
+		//Changes of a directory are meaningless for the Bolts
+		if(directory && !added && !deleted){
+			this.paths.release(pathId);
+			return;
+		}
+
+		Path file = this.paths.path(pathId);
+		long now = System.currentTimeMillis();
+		PendingChange change = this.pending.get(file);
+		if(change == null){
+			change = new PendingChange();
+			change.pathId = pathId;
+			change.existedBefore = !added;
+			change.wasDirectory = directory;
+			change.firstSeen = now;
+			this.pending.put(file, change);
+		} else {
+			//The pending change already holds a reference to the path
+			this.paths.release(pathId);
+		}
+
+		change.lastSeen = now;
+		if(deleted){
+			if(change.existedBefore)
+				change.replaced = true;
+			change.existsNow = false;
+		} else {
+			change.existsNow = true;
+			change.directory = directory;
+		}
+
+		//Anything pending inside a deleted directory is cancelled together with it
+		if(deleted && directory){
+			Iterator<Map.Entry<Path, PendingChange>> itr = this.pending.entrySet().iterator();
+			while(itr.hasNext()){
+				Map.Entry<Path, PendingChange> other = itr.next();
+				if(!other.getKey().equals(file) && other.getKey().startsWith(file)){
+					itr.remove();
+					this.paths.release(other.getValue().pathId);
+				}
+			}
+		}
+	}
+
+	/** Passes on all the changes whose path has been quiet long enough
+	 * @param now Current time
+	 * @throws InterruptedException
+	 */
+	private void flush(long now) throws InterruptedException{
+		ArrayList<Path> ready = new ArrayList<Path>();
+		for(Map.Entry<Path, PendingChange> entry: this.pending.entrySet()){
+			if(entry.getValue().deadline() <= now && !this.hasPendingParent(entry.getKey()))
+				ready.add(entry.getKey());
+		}
+
+		for(Path file: ready){
+			PendingChange change = this.pending.remove(file);
+			Kind[] kinds = change.netKinds();
+			UpdateEvent[] events = new UpdateEvent[kinds.length];
+			for(int i=0; i<kinds.length; i++){
+				events[i] = this.paths.event(change.pathId, kinds[i]);
+			}
+			//The events keep the path itself, the id can be reused
+			this.paths.release(change.pathId);
+			for(UpdateEvent event: events){
+				this.output.put(event);
+			}
+		}
+	}
+
+	/** A change can't be passed on before the changes of its parent directories (e.g. a new file inside a new directory)
+	 */
+	private boolean hasPendingParent(Path file){
+		for(Path parent = file.getParent(); parent != null; parent = parent.getParent()){
+			if(this.pending.containsKey(parent))
+				return true;
+		}
+		return false;
+	}
+
+	//Method to stop the thread
+	public void shutdown(){
+		this.run = false;
+	}
+
+	/**
+	 * Net state of a path since its first pending event
+	 */
+	private class PendingChange{
+		int pathId;
+		boolean existedBefore;
+		boolean wasDirectory;
+		boolean existsNow;
+		boolean directory;
+		//The path has been deleted at least once after its first event
+		boolean replaced;
+		long firstSeen;
+		long lastSeen;
+
+		long deadline(){
+			return Math.min(this.lastSeen + quietWindow, this.firstSeen + maxDelay);
+		}
+
+		/**
+		 * @return the events equivalent to all the merged ones, possibly none
+		 */
+		Kind[] netKinds(){
+			if(!this.existedBefore){
+				if(!this.existsNow)
+					return NOTHING;
+				return new Kind[]{ this.directory ? Kind.DIRECTORY_ADDED : Kind.FILE_ADDED };
+			}
+
+			Kind deleteKind = this.wasDirectory ? Kind.DIRECTORY_DELETED : Kind.FILE_DELETED;
+			if(!this.existsNow)
+				return new Kind[]{ deleteKind };
+
+			if(this.wasDirectory == this.directory && !this.directory)
+				return new Kind[]{ Kind.FILE_CHANGED };
+			if(this.wasDirectory == this.directory && !this.replaced)
+				return NOTHING;
+
+			//Replaced by something of a different type, or a directory recreated from scratch
+			return new Kind[]{ deleteKind, this.directory ? Kind.DIRECTORY_ADDED : Kind.FILE_ADDED };
+		}
+	}
+}
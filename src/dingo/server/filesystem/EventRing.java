@@ -0,0 +1,134 @@
+package dingo.server.filesystem;
+
+/** Fixed size ring buffer of raw events between the {@link WatchDog} and the {@link EventCoalescer}. An event is
+ *  the id of its path in the {@link PathTable} and its kind, stored in preallocated arrays: passing an event
+ *  doesn't create any object. The consumer waits when the ring is empty, the producer either waits when it is full
+ *  or gives up with {@link #offer(int, UpdateEvent.Kind)}.
+ * @author marco
+ *
+ */
+public class EventRing {
+	/** Returned by take when no event arrived in time */
+	public static final long NONE = -1;
+
+	private int[] ids;
+	private byte[] kinds;
+	private int mask;
+	//Positions of the next event to take and of the next one to put, they only grow
+	private long head = 0;
+	private long tail = 0;
+	//Maximum number of events seen waiting
+	private int highWater = 0;
+
+	/**
+	 * @param capacity Maximum number of events, rounded up to a power of two
+	 */
+	public EventRing(int capacity){
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.ids = new int[size];
+		this.kinds = new byte[size];
+		this.mask = size - 1;
+	}
+
+	/** Adds an event, waiting if the ring is full
+	 * @param pathId Id of the path in the PathTable
+	 * @param kind Kind of change
+	 * @throws InterruptedException
+	 */
+	public synchronized void put(int pathId, UpdateEvent.Kind kind) throws InterruptedException{
+		while(this.tail - this.head == this.ids.length){
+			this.wait();
+		}
+		this.add(pathId, kind);
+	}
+
+	/** Adds an event only if there is room, without waiting
+	 * @param pathId Id of the path in the PathTable
+	 * @param kind Kind of change
+	 * @return false if the ring is full, the event is not added
+	 */
+	public synchronized boolean offer(int pathId, UpdateEvent.Kind kind){
+		if(this.tail - this.head == this.ids.length)
+			return false;
+		this.add(pathId, kind);
+		return true;
+	}
+
+	private void add(int pathId, UpdateEvent.Kind kind){
+		int slot = (int) (this.tail & this.mask);
+		this.ids[slot] = pathId;
+		this.kinds[slot] = (byte) kind.ordinal();
+		if(this.tail++ == this.head)
+			this.notifyAll();
+		if(this.tail - this.head > this.highWater)
+			this.highWater = (int) (this.tail - this.head);
+	}
+
+	/** Takes the oldest event, waiting for one if the ring is empty
+	 * @param timeout Maximum time to wait (ms)
+	 * @return the event, to be read with {@link #pathId(long)} and {@link #kind(long)}, or NONE if the time expired
+	 * @throws InterruptedException
+	 */
+	public synchronized long take(long timeout) throws InterruptedException{
+		if(this.head == this.tail && timeout > 0){
+			long now = System.currentTimeMillis();
+			long deadline = timeout > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeout;
+			while(this.head == this.tail && now < deadline){
+				this.wait(deadline - now);
+				now = System.currentTimeMillis();
+			}
+		}
+		if(this.head == this.tail)
+			return NONE;
+
+		int slot = (int) (this.head & this.mask);
+		long event = ((long) this.ids[slot] << 8) | this.kinds[slot];
+		if(this.tail - this.head++ == this.ids.length)
+			this.notifyAll();
+		return event;
+	}
+
+	/**
+	 * @param event Event returned by take
+	 * @return id of the path of the event
+	 */
+	public static int pathId(long event){
+		return (int) (event >>> 8);
+	}
+
+	/**
+	 * @param event Event returned by take
+	 * @return kind of change of the event
+	 */
+	public static UpdateEvent.Kind kind(long event){
+		return UpdateEvent.Kind.of((int) (event & 0xff));
+	}
+
+	/**
+	 * @return number of events waiting
+	 */
+	public synchronized int size(){
+		return (int) (this.tail - this.head);
+	}
+
+	/**
+	 * @return number of events that can be added without waiting
+	 */
+	public synchronized int remaining(){
+		return this.ids.length - (int) (this.tail - this.head);
+	}
+
+	/**
+	 * @return maximum number of events seen waiting at the same time
+	 */
+	public synchronized int getHighWater(){
+		return this.highWater;
+	}
+
+	/**
+	 * @return maximum number of events
+	 */
+	public int capacity(){
+		return this.ids.length;
+	}
+}
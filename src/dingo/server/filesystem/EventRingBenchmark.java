@@ -0,0 +1,113 @@
+package dingo.server.filesystem;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmark of the hand-off of raw events from the {@link WatchDog} to the {@link EventCoalescer}: one producer
+ *  thread puts events, one consumer thread takes them. The {@link EventRing} is compared with the queue of
+ *  {@link UpdateEvent} objects it replaced. It reports the events per second and the bytes allocated per event by
+ *  the two threads, as counted by the JVM.
+ *  Every passage is run a few times, the first ones warm up the JVM.
+ *  Usage: EventRingBenchmark [events]
+ * @author marco
+ *
+ */
+public class EventRingBenchmark {
+	private static final int PATHS = 1024;
+	private static final int CAPACITY = 65536;
+	private static final int RUNS = 5;
+
+	private static com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) throws Exception {
+		int events = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+
+		PathTable paths = new PathTable(FileSystems.getDefault().getPath("/tmp/dingo.tar.gz"));
+		final Path[] files = new Path[PATHS];
+		final int[] ids = new int[PATHS];
+		for(int i=0; i<PATHS; i++){
+			files[i] = FileSystems.getDefault().getPath("/tmp/base/dir" + i % 32 + "/file" + i);
+			ids[i] = paths.intern(files[i]);
+		}
+		final UpdateEvent.Kind[] kinds = {UpdateEvent.Kind.FILE_CHANGED, UpdateEvent.Kind.FILE_ADDED, UpdateEvent.Kind.FILE_DELETED};
+
+		for(int run=1; run<=RUNS; run++){
+			final EventRing ring = new EventRing(CAPACITY);
+			report("ring ", run, events, new Passage(events) {
+				void produce(int i) throws InterruptedException {
+					ring.put(ids[i & (PATHS - 1)], kinds[i % kinds.length]);
+				}
+				void consume() throws InterruptedException {
+					if(EventRing.pathId(ring.take(Long.MAX_VALUE)) < 0)
+						throw new IllegalStateException();
+				}
+			});
+
+			final BlockingQueue<UpdateEvent> queue = new LinkedBlockingQueue<UpdateEvent>(CAPACITY);
+			report("queue", run, events, new Passage(events) {
+				void produce(int i) throws InterruptedException {
+					queue.put(new UpdateEvent(files[i & (PATHS - 1)], kinds[i % kinds.length]));
+				}
+				void consume() throws InterruptedException {
+					if(queue.poll(Long.MAX_VALUE, TimeUnit.MILLISECONDS).getFile() == null)
+						throw new IllegalStateException();
+				}
+			});
+		}
+	}
+
+	private static void report(String name, int run, int events, Passage passage) throws InterruptedException {
+		passage.run();
+		System.out.println(name + " run " + run + ": " + (long) (events / (passage.nanos / 1e9)) + " events/s, "
+				+ passage.bytes / events + " bytes/event");
+	}
+
+	/**
+	 * Events passed from a producer thread to the calling thread
+	 */
+	private static abstract class Passage {
+		private int events;
+		private volatile long produced;
+		long nanos;
+		long bytes;
+
+		Passage(int events){
+			this.events = events;
+		}
+
+		abstract void produce(int i) throws InterruptedException;
+
+		abstract void consume() throws InterruptedException;
+
+		void run() throws InterruptedException {
+			Thread producer = new Thread() {
+				public void run() {
+					long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+					try {
+						for(int i=0; i<events; i++){
+							produce(i);
+						}
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+					produced = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+				}
+			};
+			long consumer = Thread.currentThread().getId();
+			long before = threads.getThreadAllocatedBytes(consumer);
+			long start = System.nanoTime();
+			producer.start();
+			for(int i=0; i<this.events; i++){
+				this.consume();
+			}
+			this.nanos = System.nanoTime() - start;
+			this.bytes = threads.getThreadAllocatedBytes(consumer) - before;
+			producer.join();
+			this.bytes += this.produced;
+		}
+	}
+}
@@ -0,0 +1,399 @@
+package dingo.server.filesystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Persistent index of the local files: path, size, modification time, file key and md5 of the content.
+ *  The index is a log of records in a memory-mapped file, replayed at startup and rewritten when it holds too many
+ *  outdated records. Hashes are computed lazily and kept as long as size and modification time don't change,
+ *  so after a restart only the files changed while the server was down have to be read again.
+ * @author marco
+ *
+ */
+public class FileIndex {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] MAGIC = "DINGOIDX".getBytes(UTF8);
+	private static final int VERSION = 1;
+	//Magic, version, bytes of records
+	private static final int HEADER_SIZE = 8 + 4 + 8;
+	private static final int INITIAL_SIZE = 1024 * 1024;
+	//The log is compacted when it is at least this big and twice the size of the live records
+	private static final long COMPACT_THRESHOLD = 4 * 1024 * 1024;
+
+	private static final byte OP_PUT = 1;
+	private static final byte OP_REMOVE = 2;
+
+	private Path file;
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private long used;
+	private long liveBytes;
+	private TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+	//Entries seen by the current scan, the others are removed at the end of it
+	private int generation = 0;
+	private boolean scanning = false;
+
+	private FileIndex(Path file){
+		this.file = file;
+	}
+
+	/** Opens an index, creating it if it doesn't exist, and loads all its entries
+	 * @param file Path of the index file
+	 * @return the index
+	 * @throws IOException if the file can't be created or mapped
+	 */
+	public static FileIndex open(Path file) throws IOException{
+		FileIndex index = new FileIndex(file);
+		index.load();
+		System.out.println("[FileIndex] " + index.entries.size() + " files loaded from " + file);
+		return index;
+	}
+
+	private void load() throws IOException{
+		this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = this.channel.size();
+		this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_SIZE));
+
+		byte[] magic = new byte[MAGIC.length];
+		this.map.get(magic);
+		if(size < HEADER_SIZE || !Arrays.equals(magic, MAGIC) || this.map.getInt(8) != VERSION){
+			if(size > 0)
+				System.out.println("[FileIndex] " + this.file + " is not a valid index, starting from scratch.");
+			this.map.clear();
+			this.map.put(MAGIC);
+			this.map.putInt(VERSION);
+			this.setUsed(0);
+			return;
+		}
+
+		long recorded = this.map.getLong(12);
+		int position = HEADER_SIZE;
+		//Records after a torn write are ignored
+		while(position + 4 <= HEADER_SIZE + recorded){
+			int length = this.map.getInt(position);
+			if(length <= 0 || position + 4 + length > HEADER_SIZE + recorded)
+				break;
+			this.replay(position + 4, length);
+			position += 4 + length;
+		}
+		this.used = position - HEADER_SIZE;
+	}
+
+	private void replay(int position, int length){
+		ByteBuffer record = this.map.duplicate();
+		record.position(position);
+		record.limit(position + length);
+
+		byte op = record.get();
+		String path = readString(record);
+		if(op == OP_REMOVE){
+			this.forget(path);
+			return;
+		}
+
+		Entry entry = new Entry();
+		entry.size = record.getLong();
+		entry.modified = record.getLong();
+		entry.fileKey = readString(record);
+		if(record.get() == 1){
+			entry.hash = new byte[16];
+			record.get(entry.hash);
+		}
+		entry.recordSize = 4 + length;
+		this.keep(path, entry);
+	}
+
+	/** Starts a full scan: every file still existing has to be updated before endScan
+	 */
+	public synchronized void beginScan(){
+		this.generation++;
+		this.scanning = true;
+	}
+
+	/** Ends a full scan, removing the files that have not been seen
+	 * @return number of files removed
+	 */
+	public synchronized int endScan(){
+		this.scanning = false;
+		ArrayList<String> gone = new ArrayList<String>();
+		for(Map.Entry<String, Entry> item: this.entries.entrySet()){
+			if(item.getValue().seen != this.generation)
+				gone.add(item.getKey());
+		}
+		for(String path: gone){
+			this.append(OP_REMOVE, path, null);
+		}
+		this.compactIfNeeded();
+		return gone.size();
+	}
+
+	/** Records the current state of a file, its hash is kept only if size and modification time didn't change
+	 * @param file Absolute Path of the file
+	 * @param attributes Attributes just read
+	 */
+	public synchronized void update(Path file, BasicFileAttributes attributes){
+		if(!attributes.isRegularFile())
+			return;
+
+		String path = file.toString();
+		Entry entry = this.entries.get(path);
+		String fileKey = attributes.fileKey() == null ? "" : attributes.fileKey().toString();
+		long modified = attributes.lastModifiedTime().toMillis();
+		if(entry != null && entry.size == attributes.size() && entry.modified == modified && entry.fileKey.equals(fileKey)){
+			entry.seen = this.generation;
+			return;
+		}
+
+		entry = new Entry();
+		entry.size = attributes.size();
+		entry.modified = modified;
+		entry.fileKey = fileKey;
+		this.append(OP_PUT, path, entry);
+	}
+
+	/** Removes a file
+	 * @param file Absolute Path of the file
+	 */
+	public synchronized void remove(Path file){
+		if(this.entries.containsKey(file.toString()))
+			this.append(OP_REMOVE, file.toString(), null);
+	}
+
+	/** Removes all the files of a directory and of its sub-directories
+	 * @param dir Absolute Path of the directory
+	 */
+	public synchronized void removeTree(Path dir){
+		String prefix = dir.toString() + dir.getFileSystem().getSeparator();
+		//Separator is followed by '0' in the character table, so this is the range of all paths below the directory
+		String end = dir.toString() + (char) (dir.getFileSystem().getSeparator().charAt(0) + 1);
+		ArrayList<String> gone = new ArrayList<String>(this.entries.subMap(prefix, end).keySet());
+		for(String path: gone){
+			this.append(OP_REMOVE, path, null);
+		}
+	}
+
+	/** Returns the md5 of a file, reading the file only if it changed since the last time it was hashed
+	 * @param file Absolute Path of the file
+	 * @return md5 of the content of the file
+	 * @throws IOException if the file can't be read
+	 */
+	public byte[] hash(Path file) throws IOException{
+		BasicFileAttributes before = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		synchronized(this){
+			this.update(file, before);
+			Entry entry = this.entries.get(file.toString());
+			if(entry != null && entry.hash != null)
+				return entry.hash.clone();
+		}
+
+		byte[] hash = md5(file);
+
+		BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		synchronized(this){
+			Entry entry = this.entries.get(file.toString());
+			//Don't record anything if the file changed while it was read
+			if(entry != null && entry.size == after.size() && entry.modified == after.lastModifiedTime().toMillis()
+					&& before.size() == after.size() && before.lastModifiedTime().equals(after.lastModifiedTime())){
+				Entry hashed = new Entry();
+				hashed.size = entry.size;
+				hashed.modified = entry.modified;
+				hashed.fileKey = entry.fileKey;
+				hashed.hash = hash;
+				this.append(OP_PUT, file.toString(), hashed);
+			}
+		}
+		return hash.clone();
+	}
+
+	/**
+	 * @return number of files in the index
+	 */
+	public synchronized int size(){
+		return this.entries.size();
+	}
+
+	/** Writes all the changes to disk and releases the file
+	 */
+	public synchronized void close(){
+		try {
+			this.map.force();
+			this.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "file index [files=" + this.entries.size() + ", log=" + this.used / 1024 + " KB, live=" + this.liveBytes / 1024 + " KB]";
+	}
+
+	/** Appends a record to the log and applies it to the entries
+	 */
+	private void append(byte op, String path, Entry entry){
+		byte[] pathBytes = path.getBytes(UTF8);
+		byte[] keyBytes = entry == null ? null : entry.fileKey.getBytes(UTF8);
+		int length = 1 + 4 + pathBytes.length;
+		if(entry != null)
+			length += 8 + 8 + 4 + keyBytes.length + 1 + (entry.hash == null ? 0 : 16);
+
+		try {
+			this.ensureCapacity(4 + length);
+		} catch (IOException e) {
+			//The index is only an optimization, losing a record means hashing a file again
+			e.printStackTrace();
+			return;
+		}
+
+		int position = (int) (HEADER_SIZE + this.used);
+		this.map.position(position);
+		this.map.putInt(length);
+		this.map.put(op);
+		this.map.putInt(pathBytes.length);
+		this.map.put(pathBytes);
+		if(entry != null){
+			this.map.putLong(entry.size);
+			this.map.putLong(entry.modified);
+			this.map.putInt(keyBytes.length);
+			this.map.put(keyBytes);
+			if(entry.hash == null){
+				this.map.put((byte) 0);
+			} else {
+				this.map.put((byte) 1);
+				this.map.put(entry.hash);
+			}
+		}
+		//The record is valid only once the header includes it
+		this.setUsed(this.used + 4 + length);
+
+		if(op == OP_REMOVE){
+			this.forget(path);
+		} else {
+			entry.recordSize = 4 + length;
+			this.keep(path, entry);
+		}
+	}
+
+	private void keep(String path, Entry entry){
+		entry.seen = this.generation;
+		Entry old = this.entries.put(path, entry);
+		if(old != null)
+			this.liveBytes -= old.recordSize;
+		this.liveBytes += entry.recordSize;
+	}
+
+	private void forget(String path){
+		Entry old = this.entries.remove(path);
+		if(old != null)
+			this.liveBytes -= old.recordSize;
+	}
+
+	private void setUsed(long used){
+		this.used = used;
+		this.map.putLong(12, used);
+	}
+
+	private void ensureCapacity(int length) throws IOException{
+		long needed = HEADER_SIZE + this.used + length;
+		if(needed <= this.map.capacity())
+			return;
+		if(!this.scanning && this.compactIfNeeded() && HEADER_SIZE + this.used + length <= this.map.capacity())
+			return;
+
+		long capacity = this.map.capacity();
+		while(capacity < needed)
+			capacity *= 2;
+		if(capacity > Integer.MAX_VALUE)
+			throw new IOException("File index too big");
+		this.map.force();
+		this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	/** Rewrites the log with only the live entries, if it is worth it
+	 * @return true if the log has been compacted
+	 */
+	private boolean compactIfNeeded(){
+		if(this.used < COMPACT_THRESHOLD || this.used < 2 * this.liveBytes)
+			return false;
+
+		System.out.println("[FileIndex] Compacting " + this.file + ": " + this.used / 1024 + " KB, " + this.liveBytes / 1024 + " KB live...");
+		Path compacted = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+		try {
+			Files.deleteIfExists(compacted);
+			FileIndex copy = new FileIndex(compacted);
+			copy.load();
+			copy.generation = this.generation;
+			Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+			while(it.hasNext()){
+				Map.Entry<String, Entry> item = it.next();
+				copy.append(OP_PUT, item.getKey(), item.getValue());
+			}
+			copy.close();
+
+			this.map.force();
+			this.channel.close();
+			Files.move(compacted, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			this.channel = FileChannel.open(this.file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(this.channel.size(), INITIAL_SIZE));
+			this.used = copy.used;
+			this.liveBytes = copy.liveBytes;
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private static String readString(ByteBuffer buffer){
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static byte[] md5(Path file) throws IOException{
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		byte[] buffer = new byte[64 * 1024];
+		try(InputStream in = Files.newInputStream(file)){
+			int count;
+			while((count = in.read(buffer)) >= 0){
+				md5.update(buffer, 0, count);
+			}
+		}
+		return md5.digest();
+	}
+
+	/**
+	 * State of a file
+	 */
+	private static class Entry {
+		long size;
+		long modified;
+		String fileKey = "";
+		byte[] hash;
+		//Bytes taken by the record of this entry in the log
+		int recordSize;
+		int seen;
+	}
+}
@@ -0,0 +1,258 @@
+package dingo.server.filesystem;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/** Paths of the base directory that are not replicated, read from a gitignore-style file: one pattern per line,
+ *  # for comments, ! to include again, a trailing / to match only directories, a leading or inner / to match from
+ *  the base directory, *, ?, [...] and ** as in git. The content of an ignored directory is never looked at.
+ *  <p>Patterns are compiled once: plain names and *.suffix patterns, the most common ones, are matched with a
+ *  hash lookup or a string comparison, only the others with a regular expression.
+ * @author marco
+ *
+ */
+public class IgnoreRules {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private Path baseDir;
+	//All the rules, in the order of the file: the last one matching decides
+	private Rule[] rules;
+	//Without ! rules the order doesn't matter and plain names are looked up in a set
+	private boolean negations;
+	private HashSet<String> names = new HashSet<String>();
+	private HashSet<String> directoryNames = new HashSet<String>();
+	private Rule[] others;
+
+	/**
+	 * @param baseDir Absolute Path of the base directory, patterns are relative to it
+	 * @param lines Lines of the rule file
+	 */
+	public IgnoreRules(Path baseDir, List<String> lines){
+		this.baseDir = baseDir;
+		List<Rule> rules = new ArrayList<Rule>();
+		for(String line: lines){
+			Rule rule = Rule.compile(line);
+			if(rule != null)
+				rules.add(rule);
+		}
+		this.rules = rules.toArray(new Rule[rules.size()]);
+
+		List<Rule> others = new ArrayList<Rule>();
+		for(Rule rule: this.rules){
+			this.negations |= rule.negate;
+			if(rule.regex == null && rule.suffix == null)
+				(rule.directoryOnly ? this.directoryNames : this.names).add(rule.name);
+			else
+				others.add(rule);
+		}
+		this.others = others.toArray(new Rule[others.size()]);
+	}
+
+	/** Reads the rules from a file
+	 * @param baseDir Absolute Path of the base directory, patterns are relative to it
+	 * @param file Rule file, if it doesn't exist nothing is ignored
+	 * @return the rules
+	 * @throws IOException if the file can't be read
+	 */
+	public static IgnoreRules load(Path baseDir, Path file) throws IOException{
+		if(!Files.exists(file))
+			return new IgnoreRules(baseDir, Collections.<String>emptyList());
+		return new IgnoreRules(baseDir, Files.readAllLines(file, UTF8));
+	}
+
+	/**
+	 * @param file Absolute Path
+	 * @param directory true if the path is a directory
+	 * @return true if the path is in the base directory and is ignored
+	 */
+	public boolean isIgnored(Path file, boolean directory){
+		if(this.rules.length == 0 || !file.startsWith(this.baseDir) || file.equals(this.baseDir))
+			return false;
+		return this.isIgnored(this.baseDir.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/"), directory);
+	}
+
+	/**
+	 * @param name Path relative to the base directory, separated by /
+	 * @param directory true if the path is a directory
+	 * @return true if the path is ignored
+	 */
+	public boolean isIgnored(String name, boolean directory){
+		if(this.rules.length == 0)
+			return false;
+		String base = name.substring(name.lastIndexOf('/') + 1);
+
+		if(!this.negations){
+			if(this.names.contains(base) || (directory && this.directoryNames.contains(base)))
+				return true;
+			for(Rule rule: this.others){
+				if(rule.matches(name, base, directory))
+					return true;
+			}
+			return false;
+		}
+
+		for(int i = this.rules.length - 1; i >= 0; i--){
+			if(this.rules[i].matches(name, base, directory))
+				return !this.rules[i].negate;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if nothing is ignored
+	 */
+	public boolean isEmpty(){
+		return this.rules.length == 0;
+	}
+
+	/**
+	 * @return number of rules
+	 */
+	public int size(){
+		return this.rules.length;
+	}
+
+	/**
+	 * One line of the rule file, compiled
+	 */
+	private static class Rule {
+		boolean negate;
+		boolean directoryOnly;
+		//Set for a plain name matched at any depth
+		String name;
+		//Set for *suffix matched at any depth
+		String suffix;
+		//Set for all the other patterns: matched against the name if not anchored, else against the whole relative
+		//path, only if it starts with the literal beginning of the pattern
+		Pattern regex;
+		boolean anchored;
+		String prefix;
+
+		/**
+		 * @return the rule, null for blank lines and comments
+		 */
+		static Rule compile(String line){
+			//Trailing spaces are ignored, unless escaped
+			int end = line.length();
+			while(end > 0 && line.charAt(end - 1) == ' ' && (end < 2 || line.charAt(end - 2) != '\\'))
+				end--;
+			String pattern = line.substring(0, end);
+			if(pattern.isEmpty() || pattern.startsWith("#"))
+				return null;
+
+			Rule rule = new Rule();
+			if(pattern.startsWith("!")){
+				rule.negate = true;
+				pattern = pattern.substring(1);
+			}
+			if(pattern.endsWith("/")){
+				rule.directoryOnly = true;
+				pattern = pattern.substring(0, pattern.length() - 1);
+			}
+			//A / anywhere but at the end ties the pattern to the base directory
+			boolean anchored = pattern.indexOf('/') >= 0;
+			if(pattern.startsWith("/"))
+				pattern = pattern.substring(1);
+			if(pattern.isEmpty())
+				return null;
+
+			if(!anchored && !hasWildcards(pattern, 0))
+				rule.name = pattern;
+			else if(!anchored && pattern.charAt(0) == '*' && pattern.length() > 1 && !hasWildcards(pattern, 1))
+				rule.suffix = pattern.substring(1);
+			else {
+				rule.anchored = anchored;
+				rule.prefix = anchored ? literalPrefix(pattern) : "";
+				rule.regex = Pattern.compile(toRegex(pattern));
+			}
+			return rule;
+		}
+
+		boolean matches(String name, String base, boolean directory){
+			if(this.directoryOnly && !directory)
+				return false;
+			if(this.name != null)
+				return this.name.equals(base);
+			if(this.suffix != null)
+				return base.endsWith(this.suffix);
+			if(!this.anchored)
+				return this.regex.matcher(base).matches();
+			return name.startsWith(this.prefix) && this.regex.matcher(name).matches();
+		}
+
+		private static String literalPrefix(String pattern){
+			int i = 0;
+			while(i < pattern.length() && "*?[\\".indexOf(pattern.charAt(i)) < 0)
+				i++;
+			return pattern.substring(0, i);
+		}
+
+		private static boolean hasWildcards(String pattern, int from){
+			for(int i = from; i < pattern.length(); i++){
+				char c = pattern.charAt(i);
+				if(c == '*' || c == '?' || c == '[' || c == '\\')
+					return true;
+			}
+			return false;
+		}
+
+		private static String toRegex(String pattern){
+			StringBuilder regex = new StringBuilder();
+			int n = pattern.length();
+			int i = 0;
+			while(i < n){
+				char c = pattern.charAt(i);
+				if(c == '*' && i + 1 < n && pattern.charAt(i + 1) == '*' && (i == 0 || pattern.charAt(i - 1) == '/') && (i + 2 == n || pattern.charAt(i + 2) == '/')){
+					if(i + 2 == n){
+						//Everything inside
+						regex.append(".*");
+						i += 2;
+					} else {
+						//Any number of directories
+						regex.append("(?:.*/)?");
+						i += 3;
+					}
+					continue;
+				}
+
+				if(c == '*'){
+					regex.append("[^/]*");
+				} else if(c == '?'){
+					regex.append("[^/]");
+				} else if(c == '\\' && i + 1 < n){
+					i++;
+					regex.append(quote(pattern.charAt(i)));
+				} else if(c == '[' && pattern.indexOf(']', i + 2) > 0){
+					int close = pattern.indexOf(']', i + 2);
+					regex.append('[');
+					int j = i + 1;
+					if(pattern.charAt(j) == '!' || pattern.charAt(j) == '^'){
+						regex.append('^');
+						j++;
+					}
+					for(; j < close; j++){
+						char d = pattern.charAt(j);
+						regex.append(d == '-' ? "-" : quote(d));
+					}
+					regex.append(']');
+					i = close;
+				} else {
+					regex.append(quote(c));
+				}
+				i++;
+			}
+			return regex.toString();
+		}
+
+		private static String quote(char c){
+			return Character.isLetterOrDigit(c) ? String.valueOf(c) : "\\" + c;
+		}
+	}
+}
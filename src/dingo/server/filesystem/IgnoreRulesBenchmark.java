@@ -0,0 +1,77 @@
+package dingo.server.filesystem;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/** Benchmark of {@link IgnoreRules}: matches a set of mixed paths against typical rules, or against the rules of a
+ *  file, and reports the paths matched per second, for relative names and for absolute Paths, which are
+ *  relativized first. Every measure is run a few times, the first ones warm up the JVM.
+ *  Usage: IgnoreRulesBenchmark [rule file]
+ * @author marco
+ *
+ */
+public class IgnoreRulesBenchmark {
+	private static final int PATHS = 4096;
+	private static final int ROUNDS = 2000;
+	private static final int RUNS = 5;
+
+	private static final List<String> TYPICAL = Arrays.asList(
+			"# build output",
+			"target/",
+			"bin/",
+			".git/",
+			"*.swp",
+			"*.class",
+			"*~",
+			"/logs/*.log",
+			"docs/**/draft-*",
+			"tmp[0-9]",
+			"!keep.class");
+
+	public static void main(String[] args) throws IOException {
+		Path baseDir = FileSystems.getDefault().getPath("/tmp/base");
+		IgnoreRules rules = args.length > 0 ? IgnoreRules.load(baseDir, FileSystems.getDefault().getPath(args[0]))
+				: new IgnoreRules(baseDir, TYPICAL);
+		System.out.println(rules.size() + " rules, " + PATHS + " paths");
+
+		String[] dirs = {"src/dingo/server", "target/classes", "docs/guide/draft-1", "logs", "lib", ".git/objects/ab", "tmp3", "bin"};
+		String[] files = {"Main.java", "Main.class", "notes.txt.swp", "server.log", "README~", "keep.class", "draft-2.md", "data.bin"};
+		String[] names = new String[PATHS];
+		Path[] paths = new Path[PATHS];
+		int ignored = 0;
+		for(int i=0; i<PATHS; i++){
+			names[i] = dirs[i % dirs.length] + "/" + (i / 64) + "/" + files[(i / dirs.length) % files.length];
+			paths[i] = baseDir.resolve(names[i]);
+			if(rules.isIgnored(names[i], false))
+				ignored++;
+		}
+		System.out.println(ignored + " paths ignored");
+
+		for(int run=1; run<=RUNS; run++){
+			long start = System.nanoTime();
+			int matched = 0;
+			for(int r=0; r<ROUNDS; r++){
+				for(int i=0; i<PATHS; i++){
+					if(rules.isIgnored(names[i], false))
+						matched++;
+				}
+			}
+			long namesTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for(int r=0; r<ROUNDS / 4; r++){
+				for(int i=0; i<PATHS; i++){
+					if(rules.isIgnored(paths[i], false))
+						matched++;
+				}
+			}
+			long pathsTime = System.nanoTime() - start;
+
+			System.out.println("run " + run + ": " + (long) (ROUNDS * (double) PATHS / (namesTime / 1e9)) + " names/s, "
+					+ (long) (ROUNDS / 4 * (double) PATHS / (pathsTime / 1e9)) + " Paths/s (" + matched + " matches)");
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package dingo.server.filesystem;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/** Gives every path of an event in flight a small integer id, so events can be passed around as numbers,
+ *  and classifies the path once (is it the archive? is it in the directory of the archive?).
+ *  Every event in flight holds a reference to the id of its path: when the last one is released the path is
+ *  forgotten and its id reused, so the table only grows with the number of paths changing at the same time.
+ * @author marco
+ *
+ */
+public class PathTable {
+	private Path archive;
+	private Path archiveDir;
+	private HashMap<Path, Integer> ids = new HashMap<Path, Integer>();
+	private ArrayList<Path> paths = new ArrayList<Path>();
+	private byte[] flags = new byte[1024];
+	//References to each id, an id without references is free
+	private int[] references = new int[1024];
+	//Ids released, reused before new ones
+	private int[] free = new int[1024];
+	private int freeCount = 0;
+
+	/**
+	 * @param archive Absolute Path of the local archive
+	 */
+	public PathTable(Path archive){
+		this.archive = archive;
+		this.archiveDir = archive.getParent();
+	}
+
+	/** Takes a reference to the id of a path, to be given back with {@link #release(int)}
+	 * @param file Absolute Path
+	 * @return the id of the path, a new or reused one if the path has no id
+	 */
+	public synchronized int intern(Path file){
+		Integer id = this.ids.get(file);
+		if(id != null){
+			this.references[id]++;
+			return id;
+		}
+
+		int next;
+		if(this.freeCount > 0){
+			next = this.free[--this.freeCount];
+			this.paths.set(next, file);
+		} else {
+			next = this.paths.size();
+			this.paths.add(file);
+			if(next == this.flags.length){
+				this.flags = Arrays.copyOf(this.flags, next * 2);
+				this.references = Arrays.copyOf(this.references, next * 2);
+			}
+		}
+		this.ids.put(file, next);
+		this.flags[next] = this.classify(file);
+		this.references[next] = 1;
+		return next;
+	}
+
+	/** Gives back a reference taken by {@link #intern(Path)}, the id is freed when no reference is left
+	 * @param id Id of a path
+	 */
+	public synchronized void release(int id){
+		if(--this.references[id] > 0)
+			return;
+		this.ids.remove(this.paths.get(id));
+		this.paths.set(id, null);
+		if(this.freeCount == this.free.length)
+			this.free = Arrays.copyOf(this.free, this.freeCount * 2);
+		this.free[this.freeCount++] = id;
+	}
+
+	/**
+	 * @param id Id of a path
+	 * @return the path
+	 */
+	public synchronized Path path(int id){
+		return this.paths.get(id);
+	}
+
+	/** Creates an event for an interned path
+	 * @param id Id of the path
+	 * @param kind Kind of change
+	 * @return the event
+	 */
+	public synchronized UpdateEvent event(int id, UpdateEvent.Kind kind){
+		return new UpdateEvent(this.paths.get(id), id, this.flags[id], kind, -1);
+	}
+
+	/** Creates an event for a path, without interning it
+	 * @param file Absolute Path
+	 * @param kind Kind of change
+	 * @param sequence Position of the event in the change journal, -1 if not journaled
+	 * @return the event
+	 */
+	public UpdateEvent event(Path file, UpdateEvent.Kind kind, long sequence){
+		return new UpdateEvent(file, -1, this.classify(file), kind, sequence);
+	}
+
+	private byte classify(Path file){
+		byte flags = 0;
+		if(file.equals(this.archive))
+			flags |= UpdateEvent.ARCHIVE;
+		if(this.archiveDir != null && this.archiveDir.equals(file.getParent()))
+			flags |= UpdateEvent.ARCHIVE_DIRECTORY;
+		return flags;
+	}
+
+	/**
+	 * @return number of paths in the table
+	 */
+	public synchronized int size(){
+		return this.paths.size() - this.freeCount;
+	}
+}
@@ -1,22 +1,144 @@
 package dingo.server.filesystem;
 import java.nio.file.Path;
 
+import dingo.CommandProtocol;
 
+/**
+ * Change of a path, to be propagated to the Bolt instances. The kind of change and what the path is (e.g. the archive)
+ * are decided once, when the event is created, so whoever handles the event doesn't have to compare strings or paths.
+ * @author marco
+ *
+ */
 public class UpdateEvent {
+	//Flags of the path
+	static final byte ARCHIVE = 1;
+	static final byte ARCHIVE_DIRECTORY = 2;
+
 	private Path file;
-	private String type;
-	
-	public UpdateEvent(Path file, String type){
+	private Kind kind;
+	//Id of the path in the PathTable, -1 if not interned
+	private int pathId = -1;
+	private byte flags;
+	//Position of the event in the change journal, -1 if not journaled
+	private long sequence = -1;
+
+	public UpdateEvent(Path file, Kind kind){
 		this.file = file;
-		this.type = type;
+		this.kind = kind;
+	}
+
+	UpdateEvent(Path file, int pathId, byte flags, Kind kind, long sequence){
+		this(file, kind);
+		this.pathId = pathId;
+		this.flags = flags;
+		this.sequence = sequence;
 	}
-	
+
+	/**
+	 * @param sequence Position of the event in the change journal
+	 * @return the same event with a position in the journal
+	 */
+	public UpdateEvent withSequence(long sequence){
+		return new UpdateEvent(this.file, this.pathId, this.flags, this.kind, sequence);
+	}
+
 	public Path getFile() {
 		return file;
 	}
 
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return the kind of change as in the {@link CommandProtocol}
+	 */
 	public String getType() {
-		return type;
+		return kind.getMessage();
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public int getPathId() {
+		return pathId;
+	}
+
+	/**
+	 * @return true if the path is the local archive
+	 */
+	public boolean isArchive() {
+		return (flags & ARCHIVE) != 0;
+	}
+
+	/**
+	 * @return true if the path is in the directory of the local archive
+	 */
+	public boolean isInArchiveDirectory() {
+		return (flags & ARCHIVE_DIRECTORY) != 0;
+	}
+
+	/**
+	 * Kinds of change
+	 */
+	public enum Kind {
+		FILE_ADDED(CommandProtocol.MESSAGE_FILE_ADDED, false),
+		FILE_DELETED(CommandProtocol.MESSAGE_FILE_DELETED, false),
+		FILE_CHANGED(CommandProtocol.MESSAGE_FILE_CHANGED, false),
+		DIRECTORY_ADDED(CommandProtocol.MESSAGE_DIRECTORY_ADDED, true),
+		DIRECTORY_DELETED(CommandProtocol.MESSAGE_DIRECTORY_DELETED, true),
+		DIRECTORY_CHANGED(CommandProtocol.MESSAGE_DIRECTORY_CHANGED, true),
+		RECONCILE_NEEDED(CommandProtocol.MESSAGE_RECONCILE_NEEDED, true);
+
+		private static final Kind[] KINDS = values();
+
+		private String message;
+		private boolean directory;
+
+		private Kind(String message, boolean directory){
+			this.message = message;
+			this.directory = directory;
+		}
+
+		/**
+		 * @return the kind of change as in the {@link CommandProtocol}
+		 */
+		public String getMessage(){
+			return this.message;
+		}
+
+		public boolean isDirectory(){
+			return this.directory;
+		}
+
+		public boolean isAdded(){
+			return this == FILE_ADDED || this == DIRECTORY_ADDED;
+		}
+
+		public boolean isDeleted(){
+			return this == FILE_DELETED || this == DIRECTORY_DELETED;
+		}
+
+		/**
+		 * @param message Kind of change as in the {@link CommandProtocol}
+		 * @return the kind, null if unknown
+		 */
+		public static Kind of(String message){
+			for(Kind kind: KINDS){
+				if(kind.message.equalsIgnoreCase(message))
+					return kind;
+			}
+			return null;
+		}
+
+		/**
+		 * @param ordinal Ordinal of a kind
+		 * @return the kind, without copying the array of values
+		 */
+		static Kind of(int ordinal){
+			return KINDS[ordinal];
+		}
 	}
 
 }
@@ -1,65 +1,123 @@
 package dingo.server.filesystem;
 
 import java.io.IOException;
-import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.attribute.*;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
 //import java.util.ArrayList;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.concurrent.BlockingQueue;
+import java.util.LinkedHashSet;
+import java.util.List;
 //import java.util.ArrayList;
 //import java.util.HashMap;
 //import java.util.Properties;
 
 import static java.nio.file.StandardWatchEventKinds.*;
 
-import dingo.CommandProtocol;
+import dingo.server.filesystem.UpdateEvent.Kind;
 
 /**
  * Recursively watches a directory for changes, notifies the server when a change happens.
+ * The WatchService and the thread waiting on it can be shared with other WatchDogs through a {@link WatchHub}.
  * @author Marco
  *
  */
 public class WatchDog implements Runnable{
 	
-	private boolean run;
-	private WatchService watcher;
+	private volatile boolean run;
+	//Shared WatchService and its thread, created by this WatchDog if not given
+	private WatchHub hub;
+	private boolean ownHub = false;
 	private Path localDir;
 	private Path localArch;
 	private boolean trace;
 	private HashMap<WatchKey,Path> keys;
-	private HashSet<Path> directories;
+	private DirectoryIndex directories;
+	//Persistent index of the files, can be null
+	private FileIndex files;
+	//Paths not watched nor reported
+	private IgnoreRules ignore;
 	
-	private BlockingQueue<UpdateEvent> queue;
+	private EventRing queue;
+	private PathTable paths;
+	//Directories whose events have been lost, scanned again when the ring has room
+	private LinkedHashSet<Path> rescans = new LinkedHashSet<Path>();
 	
-	/** Creates a new WatchDog, it will put updates in the queue
-	 * @param q BlockingQueue to put updates in
+	/** Creates a new WatchDog, it will put updates in the ring
+	 * @param q EventRing to put updates in
+	 * @param paths Table of the paths of the updates
 	 * @param localDir Path of the local directory to look for changes in 
 	 * @param localArch Path of the archive file, will look for changes in this directory too
 	 * @throws InstantiationException
 	 */
-	public WatchDog(BlockingQueue<UpdateEvent> q, Path localDir, Path localArch) throws InstantiationException 
+	public WatchDog(EventRing q, PathTable paths, Path localDir, Path localArch) throws InstantiationException 
 	{
+		this(q, paths, localDir, localArch, null);
+	}
+	
+	/** Creates a new WatchDog, it will put updates in the ring and keep the file index up to date
+	 * @param q EventRing to put updates in
+	 * @param paths Table of the paths of the updates
+	 * @param localDir Path of the local directory to look for changes in 
+	 * @param localArch Path of the archive file, will look for changes in this directory too
+	 * @param files Persistent index of the files, null if not used
+	 * @throws InstantiationException
+	 */
+	public WatchDog(EventRing q, PathTable paths, Path localDir, Path localArch, FileIndex files) throws InstantiationException 
+	{
+		this(q, paths, localDir, localArch, files, new IgnoreRules(localDir, new ArrayList<String>()));
+	}
+	
+	/** Creates a new WatchDog, it will put updates in the ring and keep the file index up to date, ignored
+	 *  directories are not watched and changes of ignored files are not reported
+	 * @param q EventRing to put updates in
+	 * @param paths Table of the paths of the updates
+	 * @param localDir Path of the local directory to look for changes in 
+	 * @param localArch Path of the archive file, will look for changes in this directory too
+	 * @param files Persistent index of the files, null if not used
+	 * @param ignore Paths not to replicate
+	 * @throws InstantiationException
+	 */
+	public WatchDog(EventRing q, PathTable paths, Path localDir, Path localArch, FileIndex files, IgnoreRules ignore) throws InstantiationException 
+	{
+		this(q, paths, localDir, localArch, files, ignore, null);
+	}
+	
+	/** Creates a new WatchDog sharing the WatchService of a hub with other WatchDogs
+	 * @param q EventRing to put updates in
+	 * @param paths Table of the paths of the updates
+	 * @param localDir Path of the local directory to look for changes in 
+	 * @param localArch Path of the archive file, will look for changes in this directory too
+	 * @param files Persistent index of the files, null if not used
+	 * @param ignore Paths not to replicate
+	 * @param hub Shared WatchService, null to create one for this WatchDog only
+	 * @throws InstantiationException
+	 */
+	public WatchDog(EventRing q, PathTable paths, Path localDir, Path localArch, FileIndex files, IgnoreRules ignore, WatchHub hub) throws InstantiationException 
+	{
+		this.hub = hub;
+		this.paths = paths;
+		this.files = files;
+		this.ignore = ignore;
 		this.localDir = localDir;
 		this.localArch = localArch;
 		System.out.println("[WD] The base directory is: " + this.localDir + " and local archive: " + this.localArch);
+		if (!ignore.isEmpty())
+			System.out.println("[WD] " + ignore.size() + " ignore rules.");
 		this.keys = new HashMap<WatchKey, Path>();
-		this.directories = new HashSet<Path>();
+		this.directories = new DirectoryIndex();
 		
 		this.queue = q;
 	}
 	
 	public void run() {
 		System.out.println("[WD] Starting...");
-		this.run = true;
 		
 		try {
 			this.watchChanges();
@@ -70,141 +128,294 @@ public class WatchDog implements Runnable{
 		
 	}
 	
-	/** Recursively register directories and enter an infinite loop to watch for changes
+	/** Recursively register directories, the hub then hands the changes to {@link #process(WatchKey, List)}
 	 * @throws InterruptedException
 	 */
 	private void watchChanges() throws InterruptedException{
 		System.out.println("[WD] Watching directory " + this.localDir + " and " + this.localArch.getParent() + " for changes");
-		this.watcher = null;
-		// 1) Create a WatchService for the file system
-		System.out.println("[WD] Initializing watcher...");
-		try {
-			this.watcher = FileSystems.getDefault().newWatchService();
-		} catch (IOException e) {e.printStackTrace();}
-		
-		if(watcher==null){
-			System.out.println("[WD] Ops something went wrong: watcher is null!");
-			return;
+		this.run = true;
+		// 1) Create a WatchService for the file system, unless a shared one is given
+		if (this.hub == null) {
+			System.out.println("[WD] Initializing watcher...");
+			try {
+				this.hub = new WatchHub();
+				this.ownHub = true;
+			} catch (IOException e) {
+				System.out.println("[WD] Ops something went wrong: unable to create the watcher!");
+				e.printStackTrace();
+				return;
+			}
 		}
 		
+		//Files changed while the server was down are found comparing them with the index
+		if (this.files != null)
+			this.files.beginScan();
 		try {
 			this.registerAll(this.localDir);
 			this.register(this.localArch.getParent());
 		} catch (IOException e) {e.printStackTrace();}
+		if (this.files != null)
+			System.out.println("[WD] " + this.files.endScan() + " files deleted since the last run, " + this.files);
 		
 		//Enable trace after initial registration
 		this.trace = true;
 		
-		// 3) Infinite loop to wait for incoming events. When an event occurs, the key is signaled and 
+		// 3) The hub waits for incoming events. When an event occurs, the key is signaled and 
 		// placed into the Watcher's queue.
+		this.hub.start();
+	}
+	
+	/** Handles the events of a watched directory, called by the hub. It never waits: when the ring is full the
+	 *  remaining events of the directory are dropped and the directory is scanned again once there is room.
+	 * 
+	 * @param key Key of the directory, signalled
+	 * @param events Pending events of the key
+	 */
+	void process(WatchKey key, List<WatchEvent<?>> events){
+		if (!this.run)
+			return;
+		
+		// Retrieves the directory associated with this key
+		Path dir;
+		synchronized (this) {
+			dir = keys.get(key);
+			//Its rescan will find these changes too
+			if (dir != null && this.rescans.contains(dir))
+				return;
+		}
+		if (dir == null) {
+			//Registered by another WatchDog only, or already forgotten
+			return;
+		}
+		
+		// 5) Retrieve each pending event for the key
+		for (WatchEvent<?> event: events) {
+			WatchEvent.Kind<?> kind = event.kind();
+			//The fileName is the context of the event
+			WatchEvent<Path> ev = cast(event);
+			Path filename = ev.context();
+			
+			if (kind == OVERFLOW || filename == null) {
+				System.out.println("[WD] Events lost in " + dir + ", scanning it again...");
+				this.needsRescan(dir);
+				return;
+			}
+	
+			//Dropped before anything else, ignored entries aren't even in the snapshots
+			if (this.isIgnored(dir, filename, kind == ENTRY_DELETE))
+				continue;
+			
+			Path file = dir.resolve(filename);
+			Kind change;
+			if (kind == ENTRY_CREATE) {
+				change = Files.isDirectory(file) ? Kind.DIRECTORY_ADDED : Kind.FILE_ADDED;
+			} else if (kind == ENTRY_DELETE) {
+				change = this.checkIsDirectory(dir, filename) ? Kind.DIRECTORY_DELETED : Kind.FILE_DELETED;
+			} else if (Files.isDirectory(file)) {
+				//Changes of a directory only mean its content changed, the content has its own events
+				this.updateSnapshot(dir, filename, false);
+				continue;
+			} else {
+				change = Kind.FILE_CHANGED;
+			}
+			
+			//The snapshot is left as it was, so the rescan finds this change and the following ones.
+			//A new directory may already have some content, created before it was watched
+			if (change == Kind.DIRECTORY_ADDED ? !this.addedTree(file) : !this.emit(file, change)) {
+				System.out.println("[WD] Event ring full, " + dir + " will be scanned again.");
+				this.needsRescan(dir);
+				return;
+			}
+			this.updateSnapshot(dir, filename, kind == ENTRY_DELETE);
+			
+			if (change == Kind.DIRECTORY_DELETED) {
+				this.unregisterAll(file);
+			} else if (change == Kind.FILE_DELETED && this.files != null) {
+				this.files.remove(file);
+			}
+		}
+	}
+	
+	/** Scans again the directories whose events have been lost, as long as the ring has room, called by the hub
+	 */
+	void retry(){
 		while (this.run) {
-			// 4) Retrieve the key from the watcher's queue
-			//wait for key to be signaled
-		    WatchKey key;
-		    try {
-		    	key = watcher.take();
-		    } catch (InterruptedException x) {return;}
-		    
-		    // Retrieves the directory associated with this key
-		    Path dir = keys.get(key);
-            if (dir == null) {
-                System.out.println("WatchKey not recognized!!");
-                continue;
-            }
-            
-            // 5) Retrieve each pending event for the key
-		    for (WatchEvent<?> event: key.pollEvents()) {
-				WatchEvent.Kind<?> kind = event.kind();
-				//The fileName is the context of the event
-				WatchEvent<Path> ev = cast(event);
-				Path filename = ev.context();
+			Path dir;
+			synchronized (this) {
+				if (this.rescans.isEmpty())
+					return;
+				dir = this.rescans.iterator().next();
+			}
+			if (!this.rescan(dir))
+				return;
+			synchronized (this) {
+				this.rescans.remove(dir);
+			}
+		}
+	}
 	
-				if (kind == ENTRY_CREATE && filename!=null) {
-					if(Files.isDirectory( dir.resolve(filename) )){
-						//System.out.println("[WD] New directory created:" + filename.toAbsolutePath());
-						synchronized(this){
-							try {
-								this.registerAll( dir.resolve(filename) );
-							} catch (IOException e) { e.printStackTrace(); }
-						}
-						this.queue.put(new UpdateEvent(dir.resolve(filename), CommandProtocol.MESSAGE_DIRECTORY_ADDED));
-						//this.hs.fileChanged( dir.resolve(filename) , CommandProtocol.MESSAGE_DIRECTORY_ADDED);
-					}
-					else {
-						//System.out.println("[WD] New file created:" + filename.toAbsolutePath());
-						this.queue.put(new UpdateEvent(dir.resolve(filename), CommandProtocol.MESSAGE_FILE_ADDED));
-						//this.hs.fileChanged( dir.resolve(filename), CommandProtocol.MESSAGE_FILE_ADDED);
-					}					
-				    continue;
-				} else 
-				if (kind == ENTRY_DELETE && filename!=null) {
-					if( this.checkIsDirectory(dir, filename) ){
-						//System.out.println("[WD] Directory deleted:" + filename.toAbsolutePath());
-						this.queue.put(new UpdateEvent(dir.resolve(filename), CommandProtocol.MESSAGE_DIRECTORY_DELETED));
-						//this.hs.fileChanged( dir.resolve(filename), CommandProtocol.MESSAGE_DIRECTORY_DELETED);
-					}
-					else { 
-						//System.out.println("[WD] File deleted:" + filename.toAbsolutePath());
-						this.queue.put(new UpdateEvent(dir.resolve(filename), CommandProtocol.MESSAGE_FILE_DELETED));
-						//this.hs.fileChanged( dir.resolve(filename), CommandProtocol.MESSAGE_FILE_DELETED);
-					}
-				    continue;
-				} else
-				if (kind == ENTRY_MODIFY && filename!=null) {
-					if(Files.isDirectory( dir.resolve(filename) )){
-						//System.out.println("[WD] Directory modified:" + filename.toAbsolutePath());
-						//this.hs.fileChanged( dir.resolve(filename), CommandProtocol.MESSAGE_DIRECTORY_CHANGED);
-						this.queue.put(new UpdateEvent(dir.resolve(filename), CommandProtocol.MESSAGE_DIRECTORY_CHANGED));
-					}
-					else { 
-						//System.out.println("[WD] File modified:" + filename.toAbsolutePath() );
-						this.queue.put(new UpdateEvent(dir.resolve(filename), CommandProtocol.MESSAGE_FILE_CHANGED));
-						//this.hs.fileChanged( dir.resolve(filename), CommandProtocol.MESSAGE_FILE_CHANGED);
-					}
-				    continue;
-				} else
-				if (kind == OVERFLOW) {
-					System.out.println("[WD] Ops, maybe I lost some events!");
-				    continue;
-				}
-				
-		    }
+	private synchronized void needsRescan(Path dir){
+		this.rescans.add(dir);
+	}
 	
-		    // 6) Reset the key -- this step is critical if you want to receive
-		    //further watch events. If the key is no longer valid, the directory
-		    //is inaccessible so exit the loop.
-		    boolean valid = key.reset();
-		    if (!valid) {
-                keys.remove(key);
-                // all directories are inaccessible
-                if (keys.isEmpty()) {
-                    break;
-                }
-            }
-		    
-		}//End while, can exit only if this.run=false
-		
-		System.out.println("[WD] Shutting down.");
+	/** Forgets a directory that is not accessible anymore, called by the hub
+	 * 
+	 * @param key Key of the directory
+	 */
+	synchronized void invalidated(WatchKey key){
+		//The directory stays in the index until its parent reports the deletion, with all its sub-directories
+		this.keys.remove(key);
 	}
 	
-	/** Check if the second argument is a Directory
+	/** Check if the second argument is a watched Directory, it costs as much as the depth of the path
 	 * 
 	 * @param dir
 	 * @param filename
 	 * @return
 	 */
-	private boolean checkIsDirectory(Path dir, Path filename){
-		System.out.println("[WD] Controlling if " + dir.resolve(filename) + " is a directory...");
-		Iterator<Path> itr = this.directories.iterator();
-		boolean isDirectory = false;
-		while(itr.hasNext()){
-			Path item = itr.next();
-			if( item.compareTo(dir.resolve(filename))==0 ){
-				System.out.println("[WD] Deleted file is a directory!");
-				isDirectory=true;
+	private synchronized boolean checkIsDirectory(Path dir, Path filename){
+		return this.directories.contains(dir.resolve(filename));
+	}
+	
+	/**Checks if an entry of a watched directory is ignored
+	 * 
+	 * @param dir Absolute Path of the directory
+	 * @param filename Name of the entry
+	 * @param deleted true if the entry has been deleted, its type can't be read anymore
+	 * @return true if the entry is ignored
+	 */
+	private boolean isIgnored(Path dir, Path filename, boolean deleted){
+		Path file = dir.resolve(filename);
+		if(this.ignore.isEmpty() || file.equals(this.localArch))
+			return false;
+		if(deleted){
+			//Entries in the snapshot are not ignored, the others are if they match either as file or as directory
+			synchronized(this){
+				DirectorySnapshot snapshot = this.directories.getSnapshot(dir);
+				if(snapshot != null && snapshot.contains(filename))
+					return false;
+			}
+			return this.ignore.isIgnored(file, false) || this.ignore.isIgnored(file, true);
+		}
+		return this.ignore.isIgnored(file, Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS));
+	}
+	
+	/**Keeps the snapshot of a directory in line with its events
+	 */
+	private synchronized void updateSnapshot(Path dir, Path filename, boolean deleted){
+		DirectorySnapshot snapshot = this.directories.getSnapshot(dir);
+		if(snapshot == null)
+			return;
+		if(deleted)
+			snapshot.remove(filename);
+		else
+			snapshot.update(dir, filename, this.files);
+	}
+	
+	/**Reads again a directory whose events have been lost, compares it with its snapshot and reports the real differences.
+	 * The snapshot follows every change reported, so if the ring fills up the next rescan goes on from there.
+	 * 
+	 * @param dir Absolute Path of the directory
+	 * @return false if the ring is full and some changes have not been reported yet
+	 */
+	private boolean rescan(Path dir){
+		DirectorySnapshot current;
+		try {
+			current = DirectorySnapshot.scan(dir, this.files, this.ignore);
+		} catch (IOException e) {
+			//Deleted in the meantime, its parent reports it
+			return true;
+		}
+		
+		DirectorySnapshot previous;
+		synchronized(this){
+			previous = this.directories.getSnapshot(dir);
+			if(previous == null){
+				this.directories.setSnapshot(dir, current);
+				return true;
+			}
+		}
+		
+		int count = 0;
+		for(DirectorySnapshot.Change change: previous.diff(current)){
+			Path file = dir.resolve(change.getName());
+			if(change.getType() == DirectorySnapshot.Change.REMOVED){
+				if(!this.emit(file, change.isDirectory() ? Kind.DIRECTORY_DELETED : Kind.FILE_DELETED))
+					return false;
+				if(change.isDirectory())
+					this.unregisterAll(file);
+				else if (this.files != null)
+					this.files.remove(file);
+			} else if(change.getType() == DirectorySnapshot.Change.ADDED){
+				if(change.isDirectory() ? !this.addedTree(file) : !this.emit(file, Kind.FILE_ADDED))
+					return false;
+			} else if(!this.emit(file, Kind.FILE_CHANGED)){
+				return false;
+			}
+			synchronized(this){
+				if(change.getType() == DirectorySnapshot.Change.REMOVED)
+					previous.remove(change.getName());
+				else
+					previous.update(dir, change.getName(), this.files);
+			}
+			count++;
+		}
+		synchronized(this){
+			this.directories.setSnapshot(dir, current);
+		}
+		System.out.println("[WD] " + count + " changes found in " + dir + ".");
+		return true;
+	}
+	
+	/**Registers a new directory and reports it with all its content, none of it has been reported yet
+	 * @return false if the ring has no room for all of it, nothing is reported
+	 */
+	private boolean addedTree(Path start){
+		try {
+			this.registerAll(start);
+			final List<UpdateEvent> events = new ArrayList<UpdateEvent>();
+			Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attr) {
+					if(ignore.isIgnored(dir, true))
+						return FileVisitResult.SKIP_SUBTREE;
+					events.add(new UpdateEvent(dir, Kind.DIRECTORY_ADDED));
+					return FileVisitResult.CONTINUE;
+				}
+				
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attr) {
+					if(ignore.isIgnored(file, false))
+						return FileVisitResult.CONTINUE;
+					events.add(new UpdateEvent(file, Kind.FILE_ADDED));
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			//The WatchDog is the only producer of its ring, the room can only grow meanwhile
+			if(events.size() > this.queue.remaining())
+				return false;
+			for(UpdateEvent event: events){
+				this.emit(event.getFile(), event.getKind());
 			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return true;
+	}
+	
+	/**Stops watching a deleted directory and all its sub-directories, cancelling their keys
+	 * 
+	 * @param start Root path of the deleted tree
+	 */
+	private synchronized void unregisterAll(Path start){
+		for(WatchKey key: this.directories.removeTree(start)){
+			this.hub.unregister(key, this);
+			this.keys.remove(key);
 		}
-		return isDirectory;
+		if (this.files != null)
+			this.files.removeTree(start);
+		if (trace)
+			System.out.println("[WD] Stopped watching " + start + ", " + this.directories.size() + " directories watched.");
 	}
 	
     /**Register the given directory, and all its sub-directories, with the
@@ -218,13 +429,13 @@ public class WatchDog implements Runnable{
     	SimpleFileVisitor<Path> directoryRegister = new SimpleFileVisitor<Path>() {
     		@Override
     		public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attr) throws IOException {
-    			System.out.println("[WD] Calling register...");
+    			if (ignore.isIgnored(dir, true))
+    				return FileVisitResult.SKIP_SUBTREE;
     			register(dir); 
     			return FileVisitResult.CONTINUE; 
     		}
     	};
     	
-    	System.out.println("[WD] Calling walkFileTree...");
     	Files.walkFileTree(start, directoryRegister); 
     }
 
@@ -234,12 +445,14 @@ public class WatchDog implements Runnable{
      * @throws IOException
      */
     private synchronized void register(Path dir) throws IOException {
-    	if(watcher==null) System.out.println("[WD] Ops something went wrong: watcher is null!");
+    	if(hub==null) System.out.println("[WD] Ops something went wrong: watcher is null!");
         
     	// 2) For each directory that you want to be monitored, register it with the watcher. You receive a WatchKey
     	// instance for each directory that you register.
-    	WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-    	this.directories.add(dir);
+    	WatchKey key = this.hub.register(dir, this);
+    	this.directories.put(dir, key);
+    	//Taken after registering, so nothing can change unnoticed in between
+    	this.directories.setSnapshot(dir, DirectorySnapshot.scan(dir, this.files, this.ignore));
     	
         if (trace) {
             Path prev = keys.get(key);
@@ -252,11 +465,21 @@ public class WatchDog implements Runnable{
             }
         }
         
-        System.out.println("[WD] Registering directory: " + dir);
-        
         keys.put(key, dir);
     }
     
+	/** Puts an event in the ring if there is room, the path is interned and no event object is created.
+	 *  The event holds a reference to the id of the path until the EventCoalescer is done with it.
+	 * @return false if the ring is full
+	 */
+	private boolean emit(Path file, Kind kind){
+		int id = this.paths.intern(file);
+		if(this.queue.offer(id, kind))
+			return true;
+		this.paths.release(id);
+		return false;
+	}
+	
 	@SuppressWarnings("unchecked")
 	private static WatchEvent<Path> cast(WatchEvent<?> event) {
 	    return (WatchEvent<Path>)event;
@@ -267,6 +490,15 @@ public class WatchDog implements Runnable{
     	this.run = false;
     	
     	synchronized (this){
+    		//Directories shared with other WatchDogs stay watched for them
+    		if (this.hub != null) {
+    			for (WatchKey key: new ArrayList<WatchKey>(this.keys.keySet()))
+    				this.hub.unregister(key, this);
+    			this.hub.remove(this);
+    			if (this.ownHub)
+    				this.hub.shutdown();
+    		}
+    		this.keys.clear();
 			this.notifyAll();
 		}
     }
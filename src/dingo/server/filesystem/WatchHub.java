@@ -0,0 +1,161 @@
+package dingo.server.filesystem;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/** One WatchService shared by the {@link WatchDog}s of all the managers: a single thread takes the signalled keys
+ *  and hands their events to the WatchDogs watching the directory. A directory watched by more than one WatchDog,
+ *  e.g. the directory of the archives, is registered once and its events go to all of them.
+ *  The thread never waits for a WatchDog, so a manager that is behind doesn't delay the others: a WatchDog whose
+ *  ring is full scans its directories again later, when the hub calls it back.
+ * @author marco
+ *
+ */
+public class WatchHub implements Runnable{
+	//Time between the calls to the WatchDogs with directories to scan again (ms)
+	private static final long RETRY_INTERVAL = 500;
+
+	private WatchService watcher;
+	//All the WatchDogs of the hub
+	private List<WatchDog> dogs = new CopyOnWriteArrayList<WatchDog>();
+	//WatchDogs interested in every key
+	private HashMap<WatchKey, List<WatchDog>> owners = new HashMap<WatchKey, List<WatchDog>>();
+	private Thread thread;
+	private volatile boolean run;
+
+	/**
+	 * @throws IOException if the WatchService can't be created
+	 */
+	public WatchHub() throws IOException{
+		this.watcher = FileSystems.getDefault().newWatchService();
+	}
+
+	/**
+	 * Starts the thread of the hub, if not started yet
+	 */
+	public synchronized void start(){
+		if(this.thread != null)
+			return;
+		this.run = true;
+		this.thread = new Thread(this, "WatchHub");
+		this.thread.start();
+	}
+
+	public void run() {
+		System.out.println("[Hub] Watching directories...");
+		while(this.run){
+			WatchKey key;
+			try {
+				key = this.watcher.poll(RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				continue;
+			} catch (ClosedWatchServiceException e) {
+				break;
+			}
+			//Directories whose events didn't fit in the rings
+			for(WatchDog dog: this.dogs){
+				dog.retry();
+			}
+			if(key == null)
+				continue;
+
+			List<WatchDog> dogs;
+			//Waits for a registration in progress, so the first events of a directory are not lost
+			synchronized(this){
+				dogs = this.owners.get(key);
+			}
+			List<WatchEvent<?>> events = key.pollEvents();
+			if(dogs == null){
+				System.out.println("WatchKey not recognized!!");
+				continue;
+			}
+			for(WatchDog dog: dogs){
+				dog.process(key, events);
+			}
+
+			//The directory is inaccessible, the WatchDogs forget it
+			if(!key.reset()){
+				for(WatchDog dog: dogs){
+					dog.invalidated(key);
+				}
+				synchronized(this){
+					this.owners.remove(key);
+				}
+			}
+		}
+		System.out.println("[Hub] Shutting down.");
+	}
+
+	/** Registers a directory for a WatchDog
+	 * @param dir Absolute Path of the directory
+	 * @param dog WatchDog receiving the events of the directory
+	 * @return the key of the directory, the same for all the WatchDogs watching it
+	 * @throws IOException
+	 */
+	synchronized WatchKey register(Path dir, WatchDog dog) throws IOException{
+		WatchKey key = dir.register(this.watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+		List<WatchDog> dogs = this.owners.get(key);
+		if(dogs == null){
+			dogs = new CopyOnWriteArrayList<WatchDog>();
+			this.owners.put(key, dogs);
+		}
+		if(!dogs.contains(dog))
+			dogs.add(dog);
+		if(!this.dogs.contains(dog))
+			this.dogs.add(dog);
+		return key;
+	}
+
+	/** Forgets a WatchDog that has been shut down
+	 * @param dog WatchDog to forget, its directories have to be unregistered already
+	 */
+	void remove(WatchDog dog){
+		this.dogs.remove(dog);
+	}
+
+	/** Stops sending the events of a directory to a WatchDog, the directory is not watched anymore when no
+	 *  WatchDog is interested in it
+	 * @param key Key of the directory
+	 * @param dog WatchDog not interested anymore
+	 */
+	synchronized void unregister(WatchKey key, WatchDog dog){
+		List<WatchDog> dogs = this.owners.get(key);
+		if(dogs == null)
+			return;
+		dogs.remove(dog);
+		if(dogs.isEmpty()){
+			this.owners.remove(key);
+			key.cancel();
+		}
+	}
+
+	/**
+	 * @return number of directories watched
+	 */
+	public synchronized int size(){
+		return this.owners.size();
+	}
+
+	//Method to stop the thread, the WatchService is closed
+	public void shutdown(){
+		this.run = false;
+		try {
+			this.watcher.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
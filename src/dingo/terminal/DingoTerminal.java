@@ -1,11 +1,18 @@
 package dingo.terminal;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.LinkedList;
 
 import commons.FunnyThings;
 
@@ -24,6 +31,12 @@ public class DingoTerminal implements Runnable
  	private boolean connected = false;
 	private String host;
 	private int port;
+	//Framed mode: every request has an id, and the answers come in frames with the same id
+	private boolean framed;
+	private InputStream input;
+	private int lastRequest = 0;
+	//Lines of the answer to the last request, not read yet
+	private LinkedList<String> answer = new LinkedList<String>();
 	
 	public static void main(String[] args)
 	{
@@ -109,6 +122,11 @@ public class DingoTerminal implements Runnable
 	    			recognizedCommand = true;
 	    			this.handleCommandAddBolt(tokens);
 	    		}
+	    		if (tokens[0].equalsIgnoreCase(CommandProtocol.COMMAND_ADD_BOLTS))
+	    		{
+	    			recognizedCommand = true;
+	    			this.handleCommandAddBolts(tokens);
+	    		}
 	    		if (tokens[0].equalsIgnoreCase(CommandProtocol.COMMAND_REMOVE_BOLT))
 	    		{
     				recognizedCommand = true;
@@ -119,6 +137,41 @@ public class DingoTerminal implements Runnable
     				recognizedCommand = true;
     				this.handleCommandRemoveAllBolt(tokens);
 	    		}
+	    		if (tokens[0].equalsIgnoreCase(CommandProtocol.COMMAND_RECONCILE))
+	    		{
+	    			recognizedCommand = true;
+	    			this.handleCommandReconcile(tokens);
+	    		}
+	    		if (tokens[0].equalsIgnoreCase(CommandProtocol.COMMAND_USE))
+	    		{
+	    			recognizedCommand = true;
+	    			this.handleCommandUse(tokens);
+	    		}
+	    		if (tokens[0].equalsIgnoreCase(CommandProtocol.COMMAND_ADD_MANAGER))
+	    		{
+	    			recognizedCommand = true;
+	    			this.handleCommandAddManager(tokens);
+	    		}
+	    		if (tokens[0].equalsIgnoreCase(CommandProtocol.COMMAND_JOBS))
+	    		{
+	    			recognizedCommand = true;
+	    			this.handleCommandJobs(tokens);
+	    		}
+	    		if (tokens[0].equalsIgnoreCase(CommandProtocol.COMMAND_JOB))
+	    		{
+	    			recognizedCommand = true;
+	    			this.handleCommandJob(tokens, CommandProtocol.MESSAGE_JOB);
+	    		}
+	    		if (tokens[0].equalsIgnoreCase(CommandProtocol.COMMAND_WAIT))
+	    		{
+	    			recognizedCommand = true;
+	    			this.handleCommandJob(tokens, CommandProtocol.MESSAGE_WAIT);
+	    		}
+	    		if (tokens[0].equalsIgnoreCase(CommandProtocol.COMMAND_CANCEL))
+	    		{
+	    			recognizedCommand = true;
+	    			this.handleCommandJob(tokens, CommandProtocol.MESSAGE_CANCEL);
+	    		}
 	    		if (!recognizedCommand) System.out.println("[DT] Unrecognized command."); 
 		    } 
 	    	while (iterate);
@@ -199,14 +252,23 @@ public class DingoTerminal implements Runnable
 	
 	private void handleCommandHelp()
 	{
-		System.out.println("CONNECT host port         Connects to a specified host and port.");
+		System.out.println("CONNECT host port [legacy]         Connects to a specified host and port, legacy to send a command per line to older servers.");
 		System.out.println("DISCONNECT       Disconnects an active connection.");
 		System.out.println("SERVER_STATUS    Provides info on HyaenaServer status.");
 		System.out.println("SERVER_SHUTDOWN  Terminates the server and closes the active connection.");
 		System.out.println("SAY string             Sends to the server the specified string.");
-		System.out.println("ADD_BOLT username@host[:port] remote_directory         Adds the specified Bolt machine to the cloud.");
-		System.out.println("REMOVE_BOLT username@host     Removes the specified Bolt machine from the cloud.");
-		System.out.println("REMOVE_ALL_BOLTS  Removes all remote machines from the cluster");
+		System.out.println("ADD_BOLT username@host[:port] remote_directory [&]         Adds the specified Bolt machine to the cloud.");
+		System.out.println("ADD_BOLTS inventory_file [&]         Adds all the Bolt machines listed in the file, one \"username@host[:port] remote_directory\" per line.");
+		System.out.println("REMOVE_BOLT username@host [&]     Removes the specified Bolt machine from the cloud.");
+		System.out.println("REMOVE_ALL_BOLTS [&]  Removes all remote machines from the cluster");
+		System.out.println("                 Commands ending with & run in the background as jobs, the terminal doesn't wait for them.");
+		System.out.println("JOBS             Lists the jobs running and the last ones finished.");
+		System.out.println("JOB id           Prints the state and the progress of a job.");
+		System.out.println("WAIT id          Follows the progress of a job until it is over.");
+		System.out.println("CANCEL id        Stops a job, machines already added stay in the cloud.");
+		System.out.println("RECONCILE        Sends to all Bolt machines only the files that differ from the base directory.");
+		System.out.println("USE manager      Sends the next Bolt commands to the specified manager (default: default).");
+		System.out.println("ADD_MANAGER manager base_directory archive     Creates a manager keeping its own machines updated with its own directory.");
 		System.out.println("STATUS           Provides info on " + DingoTerminal.NAME + " connection status.");
 		System.out.println("VER              Prints " + DingoTerminal.NAME + " version.");
 		System.out.println("EXIT             Quits " + DingoTerminal.NAME + ".");
@@ -222,8 +284,9 @@ public class DingoTerminal implements Runnable
 	
 	private void handleCommandConnect(String[] args)
 	{
-		if (args.length == 3)
+		if (args.length == 3 || (args.length == 4 && args[3].equalsIgnoreCase(CommandProtocol.COMMAND_LEGACY)))
 		{
+			this.framed = args.length == 3;
 			this.host = args[1];
 			this.port = 0;
 			try
@@ -238,9 +301,11 @@ public class DingoTerminal implements Runnable
 						this.out = new PrintStream(this.socket.getOutputStream());
 						this.out.flush();
 						this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+						this.input = new BufferedInputStream(this.socket.getInputStream());
+						this.answer.clear();
 						String s = "";
-						//Waiting for MESSAGE HI from Server
-						do {s = this.receiveMessage();} while(!s.startsWith(CommandProtocol.MESSAGE_HI));
+						//Waiting for MESSAGE HI from Server, always a line
+						do {s = this.framed ? this.readLine() : this.receiveMessage();} while(!s.startsWith(CommandProtocol.MESSAGE_HI));
 						this.connected = true;
 						System.out.println("Connected to [" + this.host + ":" + this.port + "]");
 					}
@@ -299,19 +364,55 @@ public class DingoTerminal implements Runnable
 		if (!this.connected) 
 			System.out.println("[DT] Not connected.");
 		else {
+			boolean background = isBackground(args);
+			args = foreground(args);
 			if (args.length == 3) {	
 				System.out.println("[DT] I am sending the message add_c3po");
 				String message = args[0] + " " + args[1] + " " + args[2];
-				this.sendMessage(message);
-				String s;
-				do{ s = this.receiveMessage(); } 
-					while(!s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK) && !s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO));
-				if ( s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK) )
-					System.out.println ( "[DT] Added instance of Bolt." );
-				else if ( s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO) )
+				if ( this.runJob(message, background) )
+					System.out.println ( background ? "[DT] Adding instance of Bolt." : "[DT] Added instance of Bolt." );
+				else
 					System.out.println ( "[DT] Failure during the addition of the Bolt instances." );
 			} else 
-				System.out.println("[DT] Usage: add_c3po user@host[:port] remote_directory_to_create");
+				System.out.println("[DT] Usage: add_c3po user@host[:port] remote_directory_to_create [&]");
+		}
+	}
+	
+	//Reads the inventory file, one "username@host[:port] remote_directory" per line
+	private void handleCommandAddBolts(String[] args){
+		if (!this.connected) 
+			System.out.println("[DT] Not connected.");
+		else {
+			boolean background = isBackground(args);
+			args = foreground(args);
+			if (args.length == 2) {	
+				String message = CommandProtocol.MESSAGE_ADD_BOLTS;
+				int count = 0;
+				try (BufferedReader inventory = new BufferedReader(new FileReader(args[1]))) {
+					String line;
+					while ((line = inventory.readLine()) != null) {
+						line = line.trim();
+						if (line.isEmpty() || line.startsWith("#")) continue;
+						String[] fields = line.split("\\s+");
+						if (fields.length != 2) {
+							System.out.println("[DT] Invalid inventory line: " + line);
+							return;
+						}
+						message = message + " " + fields[0] + " " + fields[1];
+						count++;
+					}
+				} catch (IOException e) {
+					System.out.println("[DT] Unable to read inventory " + args[1]);
+					return;
+				}
+				
+				System.out.println("[DT] Adding " + count + " Bolt instances...");
+				if ( !this.runJob(message, background) )
+					System.out.println ( "[DT] Failure during the addition of some Bolt instances." );
+				else if ( !background )
+					System.out.println ( "[DT] All Bolt instances added." );
+			} else 
+				System.out.println("[DT] Usage: add_bolts inventory_file [&]");
 		}
 	}
 	
@@ -319,20 +420,18 @@ public class DingoTerminal implements Runnable
 		if (!this.connected) 
 			System.out.println("[DT] Not connected.");
 		else {
+			boolean background = isBackground(args);
+			args = foreground(args);
 			if (args.length == 2) {	
 				System.out.println("[DT] I am sending the message remove_c3po");
 				String message = args[0] + " " + args[1];
-				this.sendMessage(message);
-				String s;
-				do{ s = this.receiveMessage(); } 
-					while(!s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK) && !s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO));
-				if ( s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK) )
-					System.out.println ( "[DT] Bolt instance removed." );
-				else if ( s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO) )
+				if ( !this.runJob(message, background) )
 					System.out.println ( "[DT] Failure during the removal of the Bolt instance." );
+				else if ( !background )
+					System.out.println ( "[DT] Bolt instance removed." );
 			}
 			else 
-				System.out.println("[DT] Usage: remove_c3po user@host[:port]");
+				System.out.println("[DT] Usage: remove_c3po user@host[:port] [&]");
 		}
 	}
 	
@@ -341,26 +440,148 @@ public class DingoTerminal implements Runnable
 		if (!this.connected) 
 			System.out.println("[DT] Not connected.");
 		else {
+			boolean background = isBackground(args);
+			args = foreground(args);
 			if (args.length == 1) {	
 				System.out.println("[DT] I am sending the message remove_all_c3po");
 				String message = args[0];
-				this.sendMessage(message);
-				String s;
-				do{ s = this.receiveMessage(); } 
-					while(!s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK) && !s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO));
-				if ( s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK) )
-					System.out.println ( "[DT] All Bolt instances removed." );
-				else if ( s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO) )
+				if ( !this.runJob(message, background) )
 					System.out.println ( "[DT] Failure during the removal of all Bolt instances." );
+				else if ( !background )
+					System.out.println ( "[DT] All Bolt instances removed." );
+			}
+			else 
+				System.out.println("[DT] Usage: remove_all_c3po [&]");
+		}
+	}
+	
+	private void handleCommandReconcile(String[] args){
+		if (!this.connected) 
+			System.out.println("[DT] Not connected.");
+		else {
+			if (args.length == 1) {	
+				this.sendMessage(CommandProtocol.MESSAGE_RECONCILE);
+				String s;
+				do{ 
+					s = this.receiveMessage();
+					if (!s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK) && !s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO)) System.out.println(s);
+				} while(!s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK) && !s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO));
 			}
 			else 
-				System.out.println("[DT] Usage: remove_all_c3po");
+				System.out.println("[DT] Usage: reconcile");
 		}
 	}
 	
-	//Tries to receive a message every 100 milliseconds
+	private void handleCommandUse(String[] args){
+		if (!this.connected) 
+			System.out.println("[DT] Not connected.");
+		else {
+			if (args.length == 2) {	
+				this.sendMessage(CommandProtocol.MESSAGE_USE + " " + args[1]);
+				String s;
+				do{ 
+					s = this.receiveMessage();
+					if (!s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK) && !s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO)) System.out.println(s);
+				} while(!s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK) && !s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO));
+			}
+			else 
+				System.out.println("[DT] Usage: use manager");
+		}
+	}
+	
+	private void handleCommandAddManager(String[] args){
+		if (!this.connected) 
+			System.out.println("[DT] Not connected.");
+		else {
+			if (args.length == 4) {	
+				this.sendMessage(CommandProtocol.MESSAGE_ADD_MANAGER + " " + args[1] + " " + args[2] + " " + args[3]);
+				String s;
+				do{ 
+					s = this.receiveMessage();
+					if (!s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK) && !s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO)) System.out.println(s);
+				} while(!s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK) && !s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO));
+			}
+			else 
+				System.out.println("[DT] Usage: add_manager manager base_directory archive");
+		}
+	}
+	
+	private void handleCommandJobs(String[] args){
+		if (!this.connected) 
+			System.out.println("[DT] Not connected.");
+		else {
+			if (args.length == 1) {	
+				this.sendMessage(CommandProtocol.MESSAGE_JOBS);
+				this.receiveReply();
+			}
+			else 
+				System.out.println("[DT] Usage: jobs");
+		}
+	}
+	
+	//Sends job, wait or cancel with the id of a job
+	private void handleCommandJob(String[] args, String message){
+		if (!this.connected) 
+			System.out.println("[DT] Not connected.");
+		else {
+			if (args.length == 2) {	
+				this.sendMessage(message + " " + args[1]);
+				this.receiveReply();
+			}
+			else 
+				System.out.println("[DT] Usage: " + args[0].toLowerCase() + " id");
+		}
+	}
+	
+	/** Sends a command starting a job on the server, then follows the job until it is over
+	 * @param message Command starting the job
+	 * @param background true to go on without waiting for the job
+	 * @return true if the job succeeded, or started if in the background
+	 */
+	private boolean runJob(String message, boolean background){
+		this.sendMessage(message);
+		String job = null;
+		String s;
+		do{ 
+			s = this.receiveMessage();
+			if (s.startsWith(CommandProtocol.MESSAGE_JOB + " ")) job = s.substring(CommandProtocol.MESSAGE_JOB.length() + 1).trim();
+			else if (!s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK) && !s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO)) System.out.println(s);
+		} while(!s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK) && !s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO));
+		if (s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO) || job == null)
+			return false;
+		
+		if (background) {
+			System.out.println("[DT] Job " + job + " running in the background, follow it with: wait " + job);
+			return true;
+		}
+		this.sendMessage(CommandProtocol.MESSAGE_WAIT + " " + job);
+		return this.receiveReply();
+	}
+	
+	//Prints the answer of the server, returns true if it ends with OK and false if it ends with KO
+	private boolean receiveReply(){
+		String s;
+		do{ 
+			s = this.receiveMessage();
+			if (!s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK) && !s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO)) System.out.println(s);
+		} while(!s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK) && !s.equalsIgnoreCase(CommandProtocol.MESSAGE_KO));
+		return s.equalsIgnoreCase(CommandProtocol.MESSAGE_OK);
+	}
+	
+	//True if a command starting a job ends with &
+	private static boolean isBackground(String[] args){
+		return args.length > 1 && args[args.length - 1].equals(CommandProtocol.COMMAND_BACKGROUND);
+	}
+	
+	//Removes the & at the end of a command starting a job
+	private static String[] foreground(String[] args){
+		return isBackground(args) ? Arrays.copyOf(args, args.length - 1) : args;
+	}
+	
+	//Tries to receive a message every 100 milliseconds, in the framed mode returns the next line of the answer to the last request
 	private String receiveMessage()
  	{
+		if (this.framed) return this.receiveAnswer();
  		while(true){
 			try {
 				if(this.in.ready()) return this.in.readLine();
@@ -372,9 +593,71 @@ public class DingoTerminal implements Runnable
 	
 	private boolean sendMessage(String msg)
 	{
+		if (this.framed) return this.sendFrame(msg);
 		this.out.println(msg);
 		out.flush();
 		return true;
 	}
 	
+	//Sends a request in a frame with a new id, answers to older requests are ignored from now on
+	private boolean sendFrame(String msg)
+	{
+		byte[] payload;
+		try {payload = msg.getBytes("UTF-8");} catch (IOException e) {return false;}
+		this.lastRequest++;
+		this.answer.clear();
+		this.out.print(CommandProtocol.MESSAGE_FRAME + " " + this.lastRequest + " " + payload.length + "\n");
+		this.out.write(payload, 0, payload.length);
+		this.out.flush();
+		return true;
+	}
+	
+	//Reads frames until a line of the answer to the last request is available, the result is the last line
+	private String receiveAnswer()
+	{
+		try
+		{
+			while (this.answer.isEmpty())
+			{
+				String header = this.readLine();
+				String[] tokens = header.split(" ");
+				if (tokens.length != 4 || !tokens[0].equals(CommandProtocol.MESSAGE_FRAME))
+				{
+					System.out.println("[DT] Invalid frame: " + header);
+					continue;
+				}
+				int id = Integer.parseInt(tokens[1]);
+				byte[] payload = new byte[Integer.parseInt(tokens[2])];
+				for (int read = 0; read < payload.length; )
+				{
+					int count = this.input.read(payload, read, payload.length - read);
+					if (count < 0) throw new EOFException();
+					read += count;
+				}
+				if (id != this.lastRequest) continue;
+				
+				if (payload.length > 0)
+					for (String line : new String(payload, "UTF-8").split("\n"))
+						this.answer.add(line.replace("\r", ""));
+				if (!tokens[3].equals(CommandProtocol.MESSAGE_MORE))
+					this.answer.add(tokens[3]);
+			}
+		}
+		catch(IOException | RuntimeException e) {System.out.println("[DT] Connection lost."); return CommandProtocol.MESSAGE_KO;}
+		return this.answer.poll();
+	}
+	
+	//Reads a line of the framed mode, byte by byte so that the frame after it is not consumed
+	private String readLine() throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = this.input.read()) != '\n')
+		{
+			if (b < 0) throw new EOFException();
+			line.write(b);
+		}
+		return line.toString("UTF-8").trim();
+	}
+	
 }
\ No newline at end of file
@@ -0,0 +1,136 @@
+package dingo.terminal;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Properties;
+
+import dingo.CommandProtocol;
+import dingo.Settings;
+import dingo.server.DingoServer;
+
+/** Load benchmark of the command server: opens many terminal sessions at the same time, keeps all of them open and
+ *  sends some rounds of commands on each, one command per session in flight.
+ *  It reports the time to connect and greet all the sessions, the command throughput, the latency percentiles and
+ *  the number of threads of the JVM.
+ *  Without a host the server is started in this JVM with the settings file, so that its threads are counted too.
+ *  Thousands of sessions need a limit of open files above twice the number of sessions, e.g. ulimit -n 20000.
+ *  Usage: LoadBenchmark sessions rounds [host port]
+ * @author marco
+ *
+ */
+public class LoadBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length != 2 && args.length != 4)
+		{
+			System.out.println("Usage: LoadBenchmark sessions rounds [host port]");
+			return;
+		}
+		int sessions = Integer.parseInt(args[0]);
+		int rounds = Integer.parseInt(args[1]);
+		String host;
+		int port;
+		PrintStream report = System.out;
+		if (args.length == 4)
+		{
+			host = args[2];
+			port = Integer.parseInt(args[3]);
+		}
+		else
+		{
+			Properties settings = new Properties();
+			settings.load(new FileInputStream(Settings.DINGO_PROPERTIES));
+			host = "127.0.0.1";
+			port = Integer.parseInt(settings.getProperty("COMMAND_INTERFACE_PORT").trim());
+			//The server logs every command
+			System.setOut(new PrintStream(new OutputStream() {
+				public void write(int b) {}
+				public void write(byte[] b, int off, int len) {}
+			}));
+			new DingoServer();
+			Thread.sleep(500);
+		}
+		int threads = Thread.activeCount();
+
+		Socket[] sockets = new Socket[sessions];
+		BufferedReader[] in = new BufferedReader[sessions];
+		PrintStream[] out = new PrintStream[sessions];
+		long start = System.nanoTime();
+		for (int i = 0; i < sessions; i++)
+		{
+			sockets[i] = new Socket(host, port);
+			sockets[i].setTcpNoDelay(true);
+			in[i] = new BufferedReader(new InputStreamReader(sockets[i].getInputStream()));
+			out[i] = new PrintStream(sockets[i].getOutputStream(), true);
+		}
+		for (int i = 0; i < sessions; i++)
+		{
+			String line = in[i].readLine();
+			if (!CommandProtocol.MESSAGE_HI.equals(line))
+				throw new IOException("Session " + i + " not greeted: " + line);
+		}
+		long connected = System.nanoTime();
+		int peak = Thread.activeCount();
+
+		//USE only changes the manager of the session, so the server is measured and not the machines
+		long[] latencies = new long[sessions * rounds];
+		int count = 0;
+		long[] sent = new long[sessions];
+		for (int r = 0; r < rounds; r++)
+		{
+			for (int i = 0; i < sessions; i++)
+			{
+				sent[i] = System.nanoTime();
+				out[i].println(CommandProtocol.MESSAGE_USE + " default");
+			}
+			for (int i = 0; i < sessions; i++)
+			{
+				waitAnswer(in[i]);
+				latencies[count++] = System.nanoTime() - sent[i];
+			}
+			peak = Math.max(peak, Thread.activeCount());
+		}
+		long done = System.nanoTime();
+
+		for (int i = 0; i < sessions; i++)
+		{
+			out[i].println(CommandProtocol.MESSAGE_BYE);
+		}
+		for (int i = 0; i < sessions; i++)
+		{
+			waitAnswer(in[i]);
+			sockets[i].close();
+		}
+		long closed = System.nanoTime();
+
+		Arrays.sort(latencies);
+		report.println(sessions + " sessions: connect and greet " + (connected - start) / 1000000 + " ms, bye " + (closed - done) / 1000000 + " ms");
+		if (count > 0)
+		{
+			report.println(count + " commands in " + (done - connected) / 1000000 + " ms, " + (long) (count / ((done - connected) / 1e9)) + " commands/s, "
+					+ "latency p50 " + latencies[count / 2] / 1000 + " us, p99 " + latencies[count * 99 / 100] / 1000 + " us");
+		}
+		report.println("Threads: " + threads + " before the sessions, " + peak + " with all the sessions open");
+		System.exit(0);
+	}
+
+	private static void waitAnswer(BufferedReader in) throws IOException
+	{
+		String line;
+		while ((line = in.readLine()) != null)
+		{
+			if (line.equals(CommandProtocol.MESSAGE_OK))
+				return;
+			if (line.equals(CommandProtocol.MESSAGE_KO))
+				throw new IOException("Command failed");
+		}
+		throw new IOException("Connection closed");
+	}
+}